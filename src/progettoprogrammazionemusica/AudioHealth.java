@@ -0,0 +1,245 @@
+package progettoprogrammazionemusica;
+import com.jsyn.Synthesizer;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+* AudioHealth measures, on the audio thread, how the synthesizer keeps up
+* with the sound card:
+*
+* - the render time of each block, from the first unit run in the block
+*   (blockStarted) to the last one (blockEnded), and the blocks that took
+*   longer than their own duration;
+* - the jitter of the buffers: JSyn renders BLOCKS_PER_BUFFER blocks and
+*   writes them to the device, the time between two buffers is compared with
+*   the duration of a buffer;
+* - the dropouts: the device buffer (bufferFrames) is filled by each written
+*   buffer and drained in real time. When more time passed since the last
+*   buffer than the device buffer could play, the device ran out of samples
+*   and played silence. The fill can never exceed the device buffer, since
+*   writing blocks when it is full, so the estimate does not drift.
+*
+* Block times and jitter are recorded in TimeHistograms without allocating.
+* Every reportBlocks blocks their percentiles, the render load (time spent
+* rendering over elapsed time) and the usage measured by JSyn are copied into
+* a report, that can be read from any thread or over JMX.
+*/
+public class AudioHealth implements AudioHealthMXBean {
+
+    public static final int BLOCKS_PER_BUFFER = 8; // blocks JSyn renders before each write to the device
+    private static final int FRAMES_PER_BUFFER = BLOCKS_PER_BUFFER * Synthesizer.FRAMES_PER_BLOCK;
+
+    private final Synthesizer synth;
+    private final TimeHistogram blockTimes;
+    private final TimeHistogram jitter;
+    private volatile int reportBlocks; // blocks between two reports
+    private volatile int bufferFrames; // frames the device buffer holds, 0 disables dropout detection
+
+    // audio thread
+    private long blockStart;
+    private long lastBuffer; // start of the previous buffer, 0 if none
+    private double fill; // estimated frames in the device buffer
+    private boolean playing; // a buffer has been written to the device
+    private long busyNanos; // time spent rendering since the last report
+    private long reportStart; // start of the report window
+    private int blocksSinceReport;
+
+    // counters, written by the audio thread
+    private volatile long blocks;
+    private volatile long lateBlocks;
+    private volatile long dropouts;
+    private volatile long droppedFrames;
+
+    // last report, guarded by this
+    private double usage;
+    private double renderLoad;
+    private double blockP50;
+    private double blockP99;
+    private double blockP999;
+    private double blockMax;
+    private double jitterP99;
+    private double jitterMax;
+
+    public AudioHealth(Synthesizer synth) {
+        this.synth = synth;
+        blockTimes = new TimeHistogram();
+        jitter = new TimeHistogram();
+        reportBlocks = 4096; // about 0.75 seconds at 44100 Hz
+    }
+
+    /*
+    * Starting the measurements again, when the synthesizer starts. The
+    * device buffer is bufferFrames long, 0 when there is no device
+    */
+    public synchronized void reset(int bufferFrames) {
+        this.bufferFrames = bufferFrames;
+        lastBuffer = 0;
+        fill = 0;
+        playing = false;
+        busyNanos = 0;
+        reportStart = 0;
+        blocksSinceReport = 0;
+        blocks = 0;
+        lateBlocks = 0;
+        dropouts = 0;
+        droppedFrames = 0;
+        blockTimes.reset();
+        jitter.reset();
+    }
+
+    // audio thread, before any unit of the block runs
+    public void blockStarted() {
+        long now = System.nanoTime();
+        blockStart = now;
+        if (reportStart == 0) {
+            reportStart = now;
+        }
+        if (synth.getFrameCount() % FRAMES_PER_BUFFER != 0) {
+            return;
+        }
+        // first block of a buffer: the previous one has just been written to the device
+        double rate = synth.getFrameRate();
+        if (lastBuffer != 0) {
+            long interval = now - lastBuffer;
+            jitter.record(Math.abs(interval - (long) (FRAMES_PER_BUFFER * 1e9 / rate)));
+            int capacity = bufferFrames;
+            if (capacity > 0) {
+                if (playing) {
+                    fill -= interval * rate / 1e9; // played since the previous buffer
+                    if (fill < 0) {
+                        dropouts++;
+                        droppedFrames += (long) -fill;
+                        fill = 0;
+                    }
+                }
+                fill = Math.min(capacity, fill + FRAMES_PER_BUFFER);
+                playing = true; // the device plays from the first buffer written
+            }
+        }
+        lastBuffer = now;
+    }
+
+    // audio thread, after all the units of the block ran
+    public void blockEnded() {
+        long now = System.nanoTime();
+        long elapsed = now - blockStart;
+        blockTimes.record(elapsed);
+        busyNanos += elapsed;
+        blocks++;
+        if (elapsed * synth.getFrameRate() > Synthesizer.FRAMES_PER_BLOCK * 1_000_000_000L) {
+            lateBlocks++; // rendered slower than real time
+        }
+        blocksSinceReport++;
+        if (blocksSinceReport >= reportBlocks) {
+            report(now);
+        }
+    }
+
+    private void report(long now) {
+        synchronized (this) {
+            blockP50 = blockTimes.percentile(0.5) / 1e3;
+            blockP99 = blockTimes.percentile(0.99) / 1e3;
+            blockP999 = blockTimes.percentile(0.999) / 1e3;
+            blockMax = blockTimes.getMax() / 1e3;
+            jitterP99 = jitter.percentile(0.99) / 1e3;
+            jitterMax = jitter.getMax() / 1e3;
+            renderLoad = now > reportStart ? (double) busyNanos / (now - reportStart) : 0;
+            usage = synth.isRealTime() ? synth.getUsage() : renderLoad;
+        }
+        blockTimes.reset();
+        jitter.reset();
+        busyNanos = 0;
+        reportStart = now;
+        blocksSinceReport = 0;
+    }
+
+    // registering on the platform MBean server
+    public void registerMBean(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+    }
+
+    public void setReportBlocks(int blocks) {
+        reportBlocks = Math.max(1, blocks);
+    }
+
+    @Override
+    public int getFrameRate() {
+        return synth.getFrameRate();
+    }
+
+    @Override
+    public int getBufferFrames() {
+        return bufferFrames;
+    }
+
+    // usage measured by JSyn, the render load when not in real time
+    @Override
+    public synchronized double getUsage() {
+        return usage;
+    }
+
+    @Override
+    public synchronized double getRenderLoad() {
+        return renderLoad;
+    }
+
+    @Override
+    public synchronized double getBlockP50Micros() {
+        return blockP50;
+    }
+
+    @Override
+    public synchronized double getBlockP99Micros() {
+        return blockP99;
+    }
+
+    @Override
+    public synchronized double getBlockP999Micros() {
+        return blockP999;
+    }
+
+    @Override
+    public synchronized double getBlockMaxMicros() {
+        return blockMax;
+    }
+
+    @Override
+    public synchronized double getJitterP99Micros() {
+        return jitterP99;
+    }
+
+    @Override
+    public synchronized double getJitterMaxMicros() {
+        return jitterMax;
+    }
+
+    @Override
+    public long getBlocks() {
+        return blocks;
+    }
+
+    @Override
+    public long getLateBlocks() {
+        return lateBlocks;
+    }
+
+    @Override
+    public long getDropouts() {
+        return dropouts;
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("load %.2f, block p50 %.1f us p99 %.1f us p99.9 %.1f us max %.1f us, "
+                             + "jitter p99 %.1f us, late blocks %d, dropouts %d (%d frames)",
+                             renderLoad, blockP50, blockP99, blockP999, blockMax, jitterP99,
+                             lateBlocks, dropouts, droppedFrames);
+    }
+
+}
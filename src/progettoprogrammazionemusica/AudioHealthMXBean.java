@@ -0,0 +1,38 @@
+package progettoprogrammazionemusica;
+
+/*
+* Health of the audio engine exposed over JMX. Times are in microseconds and
+* hold the values of the last report, counters are totals since the engine
+* was started.
+*/
+public interface AudioHealthMXBean {
+
+    int getFrameRate();
+
+    int getBufferFrames();
+
+    double getUsage();
+
+    double getRenderLoad();
+
+    double getBlockP50Micros();
+
+    double getBlockP99Micros();
+
+    double getBlockP999Micros();
+
+    double getBlockMaxMicros();
+
+    double getJitterP99Micros();
+
+    double getJitterMaxMicros();
+
+    long getBlocks();
+
+    long getLateBlocks();
+
+    long getDropouts();
+
+    long getDroppedFrames();
+
+}
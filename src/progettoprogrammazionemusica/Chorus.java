@@ -8,6 +8,7 @@ import com.jsyn.unitgen.Multiply;
 import com.jsyn.unitgen.SineOscillator;
 import com.jsyn.unitgen.InterpolatingDelay;
 import com.jsyn.unitgen.Circuit;
+import java.util.Random;
 
 public class Chorus extends Circuit {
     // Declare units and ports.
@@ -27,6 +28,11 @@ public class Chorus extends Circuit {
     RangeConverter modeDepthR;
 
     public Chorus() {
+        this(new Random());
+    }
+
+    // rand draws the phase of the right modulator
+    public Chorus(Random rand) {
         
         // Create unit generators.
         add(delayLineL = new InterpolatingDelay());
@@ -73,7 +79,7 @@ public class Chorus extends Circuit {
         modDepthL.max.set(0.05); // maximum delay time
         timeModR.frequency.set(0.2);
         timeModR.amplitude.set(1.0);
-        timeModR.phase.set(Math.random());
+        timeModR.phase.set(rand.nextDouble());
         modeDepthR.min.set(0.01);
         modeDepthR.max.set(0.05);                
         setMix(0.5f);
@@ -0,0 +1,206 @@
+package progettoprogrammazionemusica;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+* ControlChannel changes a running sketch without ControlP5: a TCP server
+* on the loopback interface, so only programs on the same machine can reach
+* it, reading one command per line and answering "ok", "error ..." or the
+* requested status. E.g. with netcat:
+*
+*   echo "mode flow" | nc localhost 7400
+*
+* Commands:
+*   particles N     number of displayed particles
+*   mode NAME       particle or flow
+*   shade NAME      red, green or blue
+*   seed N          seed of the Perlin noise
+*   fps N           frames per second
+*   tickrate N      simulation ticks per second
+*   governor on|off adaptive quality
+*   timings on|off  timings overlay
+*   restart, stop, continue
+*   status          current settings, quality levels and audio health
+*   startup         when the sketch reached each milestone of its start
+*   quit            closing the sketch
+*
+* Clients are served one at a time on the thread of the channel. Changes
+* are passed to the sketch with submit and run on the animation thread
+* before the next frame, as the ControlP5 events would.
+*/
+public class ControlChannel implements Runnable {
+
+    private static final long STATUS_TIMEOUT_MILLIS = 1000; // the sketch answers within a few frames
+
+    private final ProcessingGraphics sketch;
+    private final int port;
+    private ServerSocket server;
+    private Thread thread;
+
+    public ControlChannel(ProcessingGraphics sketch, int port) {
+        this.sketch = sketch;
+        this.port = port;
+    }
+
+    // listening on the loopback interface, on a daemon thread
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        server = new ServerSocket(port, 4, InetAddress.getLoopbackAddress());
+        thread = new Thread(this, "control channel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        try {
+            server.close(); // accept() throws and the thread ends
+        } catch (IOException e) {
+            System.err.println("Control channel not closed: " + e);
+        }
+        server = null;
+    }
+
+    @Override
+    public void run() {
+        ServerSocket listening = server;
+        while (!listening.isClosed()) {
+            try (Socket client = listening.accept()) {
+                serve(client);
+            } catch (IOException e) {
+                if (!listening.isClosed()) {
+                    System.err.println("Control channel client dropped: " + e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket client) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(client.getOutputStream(), true, StandardCharsets.UTF_8);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (!line.isBlank()) {
+                out.println(execute(line));
+            }
+        }
+    }
+
+    // running one command, the answer is written back to the client
+    public String execute(String line) {
+        String[] words = line.trim().split("\\s+", 2);
+        String argument = words.length > 1 ? words[1] : "";
+        try {
+            switch (words[0].toLowerCase()) {
+                case "particles":
+                    int n = Integer.parseInt(argument);
+                    sketch.submit(() -> sketch.setNumParticles(n));
+                    break;
+                case "mode":
+                    Mode mode = Mode.fromName(argument);
+                    sketch.submit(() -> sketch.setMode(mode));
+                    break;
+                case "shade":
+                    Shade shade = Shade.fromName(argument);
+                    sketch.submit(() -> sketch.setShade(shade));
+                    break;
+                case "seed":
+                    int seed = Integer.parseInt(argument);
+                    sketch.submit(() -> sketch.setSeed(seed));
+                    break;
+                case "fps":
+                    int fps = Integer.parseInt(argument);
+                    sketch.submit(() -> sketch.setTargetFrameRate(fps));
+                    break;
+                case "tickrate":
+                    double rate = Double.parseDouble(argument);
+                    if (!Double.isFinite(rate)) {
+                        throw new IllegalArgumentException("finite rate expected: " + argument);
+                    }
+                    sketch.submit(() -> sketch.setTickRate(rate));
+                    break;
+                case "governor":
+                    boolean governor = parseSwitch(argument);
+                    sketch.submit(() -> sketch.setQualityGovernor(governor));
+                    break;
+                case "timings":
+                    boolean timings = parseSwitch(argument);
+                    sketch.submit(() -> sketch.setTimingOverlay(timings));
+                    break;
+                case "restart":
+                    sketch.submit(sketch::restart);
+                    break;
+                case "stop":
+                    sketch.submit(sketch::stopSketch);
+                    break;
+                case "continue":
+                    sketch.submit(sketch::continueSketch);
+                    break;
+                case "status":
+                    return status();
+                case "startup":
+                    return sketch.getStartupTimer().toString();
+                case "quit":
+                    sketch.submit(sketch::exit);
+                    break;
+                default:
+                    return "error unknown command: " + words[0];
+            }
+        } catch (IllegalArgumentException e) {
+            return "error " + e.getMessage(); // also NumberFormatException
+        }
+        return "ok";
+    }
+
+    private static boolean parseSwitch(String value) {
+        switch (value.toLowerCase()) {
+            case "on":
+                return true;
+            case "off":
+                return false;
+            default:
+                throw new IllegalArgumentException("on or off expected: " + value);
+        }
+    }
+
+    // read on the animation thread, so that it is a consistent picture of a frame
+    private String status() {
+        CompletableFuture<String> status = new CompletableFuture<>();
+        sketch.submit(() -> {
+            QualityGovernor governor = sketch.getQualityGovernor();
+            ParticleSystemAudio audio = sketch.getAudioSystem();
+            String voices = audio != null ? "voices " + audio.getActiveVoices() + ", audio " + audio.getHealth()
+                                          : "audio starting";
+            status.complete(String.format("fps %.1f of %d, particles %d, mode %s, shade %s, seed %d, "
+                                          + "quality visual %d audio %d, %s",
+                                          sketch.frameRate, sketch.getTargetFrameRate(), sketch.getNumParticles(),
+                                          sketch.getMode(), sketch.getShade(), sketch.getSeed(),
+                                          governor.getVisualLevel(), governor.getAudioLevel(), voices));
+        });
+        try {
+            return status.get(STATUS_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return "error the sketch does not answer";
+        } catch (ExecutionException e) {
+            return "error " + e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "error interrupted";
+        }
+    }
+
+}
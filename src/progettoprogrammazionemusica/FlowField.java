@@ -0,0 +1,164 @@
+package progettoprogrammazionemusica;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+* FlowField holds one unit flow vector for each cell in which the sketch is
+* devided. Vectors are stored as angle, cosine and sine in primitive arrays
+* that are allocated once and updated in place every frame, so computing the
+* field does not create any object.
+*
+* The grid resolution is independent of the sketch size. The field covers a
+* region of the noise space that is noiseScale high and aspect * noiseScale
+* wide, so the same flow is obtained with any number of cells, and the z axis
+* moves by zPerFrame each frame across all the rows.
+*
+* The field is computed sampling a NoiseSource row by row. Row y samples the
+* noise space at y * yStep on the y axis and zOffset + y * zStep on the z
+* axis, so each row depends only on its own index: rows can be computed in
+* any order, or in parallel, giving bit-identical results.
+*/
+public class FlowField {
+
+    private static final float TWO_PI = (float) (2 * Math.PI);
+    private static final int CELLS_PER_TASK = 2048; // below this size a block of rows is not split further
+
+    private final int cols; // columns in which the sketch is devided
+    private final int rows; // rows in which the sketch is devided
+    private final float[] angle; // angle of the flow vector of each cell
+    private final float[] cos; // x component of the unit flow vector of each cell
+    private final float[] sin; // y component of the unit flow vector of each cell
+    private final float xStep; // distance in the noise space between two columns
+    private final float yStep; // distance in the noise space between two rows
+    private final float zStep; // distance on the z axis of the noise space between two rows
+    private final float zPerFrame; // distance on the z axis covered by the field each frame
+
+    public FlowField(int cols, int rows, float aspect, float noiseScale, float zPerFrame) {
+        this.cols = cols;
+        this.rows = rows;
+        this.zPerFrame = zPerFrame;
+        xStep = aspect * noiseScale / cols;
+        yStep = noiseScale / rows;
+        zStep = zPerFrame / rows;
+        angle = new float[cols * rows];
+        cos = new float[cols * rows];
+        sin = new float[cols * rows];
+    }
+
+    // Computing the whole field on the calling thread
+    public void update(NoiseSource noise, float zOffset) {
+        computeRows(noise, 0, rows, zOffset, angle);
+    }
+
+    /*
+    * Computing the field splitting the rows across the threads of a fork-join
+    * pool. The noise source must be reentrant.
+    */
+    public void update(NoiseSource noise, float zOffset, ForkJoinPool pool) {
+        sample(noise, zOffset, angle, pool);
+    }
+
+    /*
+    * Sampling the angles of the field into target without touching the flow
+    * vectors (unless target is the field itself). Used to compute keyframes
+    * that are later interpolated.
+    */
+    public void sample(NoiseSource noise, float zOffset, float[] target, ForkJoinPool pool) {
+        if (cols * rows <= CELLS_PER_TASK) {
+            computeRows(noise, 0, rows, zOffset, target);
+        } else {
+            pool.invoke(new RowTask(noise, 0, rows, zOffset, target));
+        }
+    }
+
+    // setting every flow vector to the linear interpolation of two arrays of angles
+    public void interpolate(float[] from, float[] to, float t) {
+        for (int index = 0; index < angle.length; index++) {
+            set(index, from[index] + (to[index] - from[index]) * t);
+        }
+    }
+
+    // sampling Perlin noise space to have flow vectotors with a coherent direction one another
+    private void computeRows(NoiseSource noise, int fromRow, int toRow, float zOffset, float[] target) {
+        for (int y = fromRow; y < toRow; y++) {
+            int start = y * cols;
+            noise.noiseRow(0, xStep, y * yStep, zOffset + y * zStep, target, start, cols);
+            for (int index = start; index < start + cols; index++) {
+                target[index] *= TWO_PI * 4;
+            }
+            if (target == angle) {
+                for (int index = start; index < start + cols; index++) {
+                    set(index, angle[index]);
+                }
+            }
+        }
+    }
+
+    // number of cells of the field
+    public int size() {
+        return angle.length;
+    }
+
+    // updating the flow vector of a cell given its angle
+    public void set(int index, float a) {
+        angle[index] = a;
+        cos[index] = (float) Math.cos(a);
+        sin[index] = (float) Math.sin(a);
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public float getZPerFrame() {
+        return zPerFrame;
+    }
+
+    public float getAngle(int index) {
+        return angle[index];
+    }
+
+    // arrays are exposed for the particle loops, they must be treated as read only
+    public float[] getCos() {
+        return cos;
+    }
+
+    public float[] getSin() {
+        return sin;
+    }
+
+    // computes a block of rows, splitting it in two halves while it is large
+    private class RowTask extends RecursiveAction {
+
+        private final NoiseSource noise;
+        private final int fromRow;
+        private final int toRow;
+        private final float zOffset;
+        private final float[] target;
+
+        RowTask(NoiseSource noise, int fromRow, int toRow, float zOffset, float[] target) {
+            this.noise = noise;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.zOffset = zOffset;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            if ((toRow - fromRow) * cols <= CELLS_PER_TASK || toRow - fromRow < 2) {
+                computeRows(noise, fromRow, toRow, zOffset, target);
+            } else {
+                int middle = (fromRow + toRow) >>> 1;
+                invokeAll(new RowTask(noise, fromRow, middle, zOffset, target),
+                          new RowTask(noise, middle, toRow, zOffset, target));
+            }
+        }
+
+    }
+
+}
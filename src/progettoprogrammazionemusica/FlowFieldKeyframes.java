@@ -0,0 +1,108 @@
+package progettoprogrammazionemusica;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/*
+* FlowFieldKeyframes computes the full noise field only once every
+* "interval" frames (the keyframes) and, in the frames in between, sets the
+* flow field to the interpolation of the angles of the two keyframes around
+* the current frame.
+*
+* Three angle buffers are used: the keyframe before the current frame, the
+* one after it and the one after that, which is computed in background on
+* the fork-join pool while the other two are interpolated. When the frame
+* reaches the next keyframe the buffers are rotated.
+*
+* Keyframe k samples the noise space at zOffset + k * interval * zPerFrame,
+* which is the zOffset the sketch would have at that frame.
+*/
+public class FlowFieldKeyframes {
+
+    private final FlowField flowField;
+    private final int interval; // frames between two keyframes
+    private final ForkJoinPool pool;
+    private float[] previousKey; // keyframe before the current frame
+    private float[] nextKey; // keyframe after the current frame
+    private float[] pendingKey; // keyframe computed in background
+    private ForkJoinTask<?> pending; // background computation of pendingKey
+    private NoiseSource noise;
+    private float zStart; // zOffset of the first keyframe
+    private int keyIndex; // index of previousKey
+    private int frame; // frames elapsed since previousKey
+
+    public FlowFieldKeyframes(FlowField flowField, int interval, ForkJoinPool pool) {
+        this.flowField = flowField;
+        this.interval = Math.max(1, interval);
+        this.pool = pool;
+        previousKey = new float[flowField.size()];
+        nextKey = new float[flowField.size()];
+        pendingKey = new float[flowField.size()];
+    }
+
+    /*
+    * Number of frames between keyframes such that the z axis of the noise
+    * space moves at most by zDelta between two of them
+    */
+    public static int framesForZDelta(float zDelta, float zPerFrame) {
+        return Math.max(1, (int) (zDelta / zPerFrame));
+    }
+
+    /*
+    * Restarting the keyframes from zOffset, for example when the seed and so
+    * the noise source change. The first two keyframes are computed right away.
+    */
+    public void reset(NoiseSource noise, float zOffset) {
+        if (pending != null) {
+            pending.join(); // the buffer could still be written
+            pending = null;
+        }
+        this.noise = noise;
+        zStart = zOffset;
+        keyIndex = 0;
+        frame = 0;
+        flowField.sample(noise, keyZ(0), previousKey, pool);
+        flowField.sample(noise, keyZ(1), nextKey, pool);
+        startPending();
+    }
+
+    /*
+    * Setting the flow field for the current frame and moving to the next one.
+    * Must be called once per frame after reset.
+    */
+    public void advance() {
+        if (frame == interval) {
+            pending.join();
+            float[] recycled = previousKey;
+            previousKey = nextKey;
+            nextKey = pendingKey;
+            pendingKey = recycled;
+            keyIndex++;
+            frame = 0;
+            startPending();
+        }
+        flowField.interpolate(previousKey, nextKey, (float) frame / interval);
+        frame++;
+    }
+
+    // computing in background the keyframe after nextKey
+    private void startPending() {
+        final float[] target = pendingKey;
+        final NoiseSource source = noise;
+        final float z = keyZ(keyIndex + 2);
+        pending = pool.submit(() -> flowField.sample(source, z, target, pool));
+    }
+
+    // z coordinate of the noise space of keyframe k
+    private float keyZ(int k) {
+        return zStart + k * interval * flowField.getZPerFrame();
+    }
+
+    public FlowField getFlowField() {
+        return flowField;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+}
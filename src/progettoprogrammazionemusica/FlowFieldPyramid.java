@@ -0,0 +1,49 @@
+package progettoprogrammazionemusica;
+
+/*
+* FlowFieldPyramid holds the same flow field at several grid resolutions:
+* level 0 is the finest and each following level has half the columns and
+* half the rows of the previous one. All the levels cover the same region of
+* the noise space, so particles follow the same flow whatever level they
+* sample.
+*
+* Only one level is computed each frame: the finest one whose number of
+* cells fits the budget. On a larger sketch a coarser level is picked, so
+* the field cost does not grow with the resolution.
+*/
+public class FlowFieldPyramid {
+
+    private static final int MIN_CELLS_PER_SIDE = 4; // coarsest level has at least 4 rows and columns
+
+    private final FlowField[] levels;
+
+    public FlowFieldPyramid(int cols, int rows, float aspect, float noiseScale, float zPerFrame) {
+        int count = 1;
+        while ((cols >> count) >= MIN_CELLS_PER_SIDE && (rows >> count) >= MIN_CELLS_PER_SIDE) {
+            count++;
+        }
+        levels = new FlowField[count];
+        for (int k = 0; k < count; k++) {
+            levels[k] = new FlowField(cols >> k, rows >> k, aspect, noiseScale, zPerFrame);
+        }
+    }
+
+    // index of the finest level with at most cellBudget cells, the coarsest if none fits
+    public int selectLevel(int cellBudget) {
+        for (int k = 0; k < levels.length; k++) {
+            if (levels[k].size() <= cellBudget) {
+                return k;
+            }
+        }
+        return levels.length - 1;
+    }
+
+    public FlowField getLevel(int k) {
+        return levels[k];
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+}
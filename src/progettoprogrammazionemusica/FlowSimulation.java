@@ -0,0 +1,282 @@
+package progettoprogrammazionemusica;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+* FlowSimulation is the part of the sketch that does not draw anything: the
+* flow field, the noise it is sampled from and the particles moving in it.
+* Each call to step() advances everything by one frame.
+*
+* It does not depend on the Processing sketch, so the same simulation can be
+* drawn by ProcessingGraphics or run without any window, for example to
+* render the sonification offline.
+*/
+public class FlowSimulation {
+
+    private final float aspect; // width of the sketch divided by its height
+    private final FlowFieldPyramid fieldPyramid; // the flow field at decreasing resolutions
+    private final ForkJoinPool fieldPool; // threads computing the rows of the flow field
+    private final Random rand;
+    private int fieldCellBudget; // maximum number of cells of the flow field computed each frame
+    private FlowField flowField; // level of the pyramid in use
+    private int keyframeInterval; // frames between two full computations of the flow field, 1 computes it every frame
+    private FlowFieldKeyframes keyframes; // interpolates the flow field between keyframes
+    private boolean keyframesValid; // false when keyframes must restart, for example after a new seed
+    private float zOffset; // z coordinate to sample a point in the Perlin noise space
+    private int seed; // Perline noise seed
+    private String noiseType; // either "perlin" (same noise of Processing) or "simplex"
+    private NoiseSource noiseSource; // reentrant noise built from the seed
+    private ParticleStore particles; // location, speed, color and transparency of all the particles
+    private int numParticles; // number of particles moving
+    private Shade shade; // either red, green or blue, determines the colors that the particles have
+    private final ParticleGrid grid; // particles by cell of the finest flow field, for proximity events
+    private float proximityRadius; // distance at which two particles touch, 0 disables proximity events
+    private int proximityParticles; // the first particles that get proximity events, those with a voice
+    private SessionPlayer replay; // when set the steps read a recorded session instead of computing it
+
+    /*
+    * cols and rows are the size of the finest level of the flow field.
+    * noiseIncrement and zIncrement are the speed of "exploration" of the
+    * noise space per cell and per row of a 1280 x 720 sketch with cells of 20
+    * pixels: the flow field covers the same region of the noise space at any
+    * resolution.
+    */
+    public FlowSimulation(int cols, int rows, float aspect, float noiseIncrement, float zIncrement, Random rand) {
+        this.aspect = aspect;
+        this.rand = rand;
+        fieldPyramid = new FlowFieldPyramid(cols, rows, aspect, 36 * noiseIncrement, 36 * zIncrement);
+        fieldCellBudget = 64 * 36; // the cells of a 1280 x 720 sketch
+        flowField = fieldPyramid.getLevel(fieldPyramid.selectLevel(fieldCellBudget));
+        fieldPool = ForkJoinPool.commonPool();
+        /*
+        * zOffset moves by only rows * zIncrement each frame, so the full
+        * field is computed every 8 frames and interpolated in between
+        */
+        keyframeInterval = 8;
+        keyframes = new FlowFieldKeyframes(flowField, keyframeInterval, fieldPool);
+        keyframesValid = false;
+        zOffset = 0;
+        seed = 0;
+        noiseType = "perlin";
+        noiseSource = createNoiseSource();
+        shade = Shade.RED;
+        numParticles = 0;
+        particles = new ParticleStore(aspect, 128, rand);
+        grid = new ParticleGrid(cols, rows, 2, aspect); // cells of 10 pixels on a 1280 x 720 sketch
+        proximityRadius = 10f / 720; // 10 pixels of a 720 pixels high sketch
+        proximityParticles = Integer.MAX_VALUE;
+    }
+
+    /*
+    * Advancing the simulation by one frame: the flow field is updated, its
+    * rows are computed in parallel, then the particles follow it.
+    */
+    public void step() {
+        stepField();
+        stepParticles();
+    }
+
+    // first half of step(): moving the flow field by one frame
+    public void stepField() {
+        if (replay != null) {
+            return; // the recorded particles need no field
+        }
+        updateFlowField();
+        // with zOffset each vector cahnge direction sligthly frame by frame making the flow field dynamic
+        zOffset += flowField.getZPerFrame();
+    }
+
+    /*
+    * second half of step(): moving the particles in the current flow field.
+    * The locations of the previous step become the previous locations and
+    * the transparencies move on, so each step is a complete frame of the
+    * particles whatever the drawing does
+    */
+    public void stepParticles() {
+        if (replay != null) {
+            replay.readTick(this);
+            return;
+        }
+        particles.ensureSize(numParticles, shade);
+        particles.advanceAll(numParticles);
+        particles.move(flowField, numParticles);
+        if (proximityRadius > 0) {
+            grid.rebuild(particles, numParticles);
+            grid.updateProximity(proximityRadius, Math.min(numParticles, proximityParticles));
+        }
+    }
+
+    /*
+    * With keyframes the noise is sampled only every keyframeInterval frames
+    * and the flow vectors are interpolated in between, otherwise the whole
+    * field is computed every frame.
+    */
+    private void updateFlowField() {
+        FlowField level = fieldPyramid.getLevel(fieldPyramid.selectLevel(fieldCellBudget));
+        if (level != flowField) {
+            // a different level of the pyramid fits the budget, keyframes restart on it
+            flowField = level;
+            keyframes = new FlowFieldKeyframes(flowField, keyframeInterval, fieldPool);
+            keyframesValid = false;
+        }
+        if (keyframeInterval > 1) {
+            if (!keyframesValid) {
+                keyframes.reset(noiseSource, zOffset);
+                keyframesValid = true;
+            }
+            keyframes.advance();
+        } else {
+            flowField.update(noiseSource, zOffset, fieldPool);
+        }
+    }
+
+    /*
+    * Noise types:
+    * - perlin: same values of the Processing noise for the same seed, 4
+    *   octaves;
+    * - simplex: gradient noise on a simplex grid, 1 octave, so smoother. An
+    *   octave of simplex costs about twice one of perlin (NoiseBenchmark),
+    *   the single octave is what makes it cheaper here.
+    */
+    private NoiseSource createNoiseSource() {
+        if (noiseType.equals("simplex")) {
+            return new SimplexNoise(seed);
+        }
+        return new PerlinNoise(seed);
+    }
+
+    // new particles in random locations, reusing the store, the flow field goes on
+    public void restart() {
+        particles.clear();
+        particles.ensureSize(numParticles, shade);
+    }
+
+    /*
+    * Replaying a session written by SessionRecorder: each step reads the
+    * next recorded tick, the flow field and the physics are not computed.
+    * Null goes back to the simulation
+    */
+    public void setReplay(SessionPlayer player) {
+        replay = player;
+    }
+
+    // replay: n particles and shade of a recorded state, the player writes the particles
+    void setReplayState(int n, Shade shade) {
+        numParticles = n;
+        this.shade = shade;
+        particles.ensureSize(n, shade);
+    }
+
+    // replay: the rest of a recorded tick, after setReplayState
+    void setReplayTick(float zOffset, boolean[] touched) {
+        this.zOffset = zOffset;
+        grid.setTouched(touched, numParticles);
+    }
+
+    // changing the seed of the noise, its tables are rebuilt only when the seed changes
+    public void setSeed(int seed) {
+        if (seed != this.seed) {
+            this.seed = seed;
+            noiseSource = createNoiseSource();
+            keyframesValid = false;
+        }
+    }
+
+    // changing the noise that drives the flow field and the particles transparency
+    public void setNoiseType(String type) {
+        noiseType = type;
+        noiseSource = createNoiseSource();
+        keyframesValid = false;
+    }
+
+    // changing the number of frames between keyframes of the flow field, 1 disables keyframes
+    public void setKeyframeInterval(int interval) {
+        keyframeInterval = Math.max(1, interval);
+        keyframes = new FlowFieldKeyframes(flowField, keyframeInterval, fieldPool);
+        keyframesValid = false;
+    }
+
+    /*
+    * Changing the maximum number of cells of the flow field computed each
+    * frame, the finest level of the pyramid within the budget is used
+    */
+    public void setFieldCellBudget(int cells) {
+        fieldCellBudget = cells;
+    }
+
+    // changing the number of moving particles, the store grows to hold them
+    public void setNumParticles(int n) {
+        numParticles = Math.max(0, n);
+        particles.ensureSize(numParticles, shade);
+    }
+
+    // changing the colors of all the particles
+    public void setShade(Shade shade) {
+        this.shade = shade;
+        for (int i = 0; i < particles.size(); i++) {
+            particles.setColor(i, shade);
+        }
+    }
+
+    /*
+    * Changing the distance (in units of the sketch height) at which two
+    * particles touch and restart the envelopes of their voices, 0 disables
+    * proximity events. The grid cells are half a cell of the finest flow
+    * field, the radius is clamped to their side (getMaxRadius() of the grid,
+    * 10 pixels of a 1280 x 720 sketch)
+    */
+    public void setProximityRadius(float radius) {
+        proximityRadius = Math.max(0, Math.min(grid.getMaxRadius(), radius));
+    }
+
+    /*
+    * Only the first n particles get proximity events, the ones that can
+    * have a voice: the others are still the particles they come close to,
+    * but finding the events costs n lookups whatever the number of particles
+    */
+    public void setProximityParticles(int n) {
+        proximityParticles = Math.max(0, n);
+    }
+
+    // particles by cell, with the proximity events of the last step
+    public ParticleGrid getGrid() {
+        return proximityRadius > 0 ? grid : null;
+    }
+
+    public ParticleStore getParticles() {
+        return particles;
+    }
+
+    public FlowField getFlowField() {
+        return flowField;
+    }
+
+    public NoiseSource getNoiseSource() {
+        return noiseSource;
+    }
+
+    public int getNumParticles() {
+        return numParticles;
+    }
+
+    public Shade getShade() {
+        return shade;
+    }
+
+    public int getSeed() {
+        return seed;
+    }
+
+    public String getNoiseType() {
+        return noiseType;
+    }
+
+    public float getZOffset() {
+        return zOffset;
+    }
+
+    public float getAspect() {
+        return aspect;
+    }
+
+}
@@ -0,0 +1,223 @@
+package progettoprogrammazionemusica;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+* FrameProfiler measures how long each phase of a frame takes.
+*
+* The animation thread calls begin(phase) and end(phase) around each phase
+* and endFrame() at the end of the frame. Durations are recorded in one
+* TimeHistogram per phase, without allocations. Every reportFrames frames
+* median, 99th percentile, mean and maximum of each phase are copied into a
+* report, the histograms restart, and the report is appended to the CSV
+* file if one is set. The last report can be read from any thread, over JMX
+* or by the on-canvas overlay of ProcessingGraphics.
+*/
+public class FrameProfiler implements FrameProfilerMXBean {
+
+    // phases of a frame of ProcessingGraphics
+    public static final int FIELD = 0; // flow field update
+    public static final int PARTICLES = 1; // particles physics
+    public static final int RENDER = 2; // drawing the particles
+    public static final int AUDIO = 3; // voice budget and parameters sent to the audio thread
+    public static final int FRAME = 4; // the whole draw()
+    private static final String[] PHASES = {"field", "particles", "render", "audio", "frame"};
+
+    private final TimeHistogram[] histograms;
+    private final long[] startedAt; // start of the running phases
+    private int framesSinceReport;
+    private volatile int reportFrames; // frames between two reports
+
+    // last report, in milliseconds, guarded by this
+    private final double[] median;
+    private final double[] p99;
+    private final double[] mean;
+    private final double[] max;
+    private long frames; // frames measured since the profiler was created
+
+    // rolling CSV output, null if disabled
+    private File csvFile;
+    private long csvMaxBytes; // the file is rolled over to file.1 beyond this size
+    private BufferedWriter csv;
+    private long csvBytes;
+
+    public FrameProfiler(int reportFrames) {
+        histograms = new TimeHistogram[PHASES.length];
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            histograms[phase] = new TimeHistogram();
+        }
+        startedAt = new long[PHASES.length];
+        median = new double[PHASES.length];
+        p99 = new double[PHASES.length];
+        mean = new double[PHASES.length];
+        max = new double[PHASES.length];
+        this.reportFrames = Math.max(1, reportFrames);
+    }
+
+    public void begin(int phase) {
+        startedAt[phase] = System.nanoTime();
+    }
+
+    public void end(int phase) {
+        histograms[phase].record(System.nanoTime() - startedAt[phase]);
+    }
+
+    // to be called once at the end of each frame, after all the phases ended
+    public void endFrame() {
+        framesSinceReport++;
+        if (framesSinceReport >= reportFrames) {
+            report();
+            framesSinceReport = 0;
+        }
+    }
+
+    private void report() {
+        synchronized (this) {
+            for (int phase = 0; phase < PHASES.length; phase++) {
+                TimeHistogram histogram = histograms[phase];
+                median[phase] = histogram.percentile(0.5) / 1e6;
+                p99[phase] = histogram.percentile(0.99) / 1e6;
+                mean[phase] = histogram.mean() / 1e6;
+                max[phase] = histogram.getMax() / 1e6;
+                histogram.reset();
+            }
+            frames += framesSinceReport;
+        }
+        writeCsv();
+    }
+
+    /*
+    * Appending each report to file, one line per report. When the file grows
+    * beyond maxBytes it is renamed to file.1, replacing the previous one, and
+    * a new file is started.
+    */
+    public synchronized void setCsvOutput(File file, long maxBytes) throws IOException {
+        closeCsv();
+        csvFile = file;
+        csvMaxBytes = maxBytes;
+        openCsv();
+    }
+
+    public synchronized void closeCsv() throws IOException {
+        if (csv != null) {
+            csv.close();
+            csv = null;
+        }
+    }
+
+    private void openCsv() throws IOException {
+        csvBytes = csvFile.exists() ? csvFile.length() : 0;
+        csv = Files.newBufferedWriter(csvFile.toPath(), StandardCharsets.UTF_8,
+                                      StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (csvBytes == 0) {
+            StringBuilder header = new StringBuilder("time");
+            for (String phase : PHASES) {
+                header.append(',').append(phase).append("_p50,").append(phase).append("_p99,")
+                      .append(phase).append("_mean,").append(phase).append("_max");
+            }
+            writeLine(header);
+        }
+    }
+
+    private synchronized void writeCsv() {
+        if (csv == null) {
+            return; // checked under the lock, closeCsv can be called from any thread
+        }
+        StringBuilder line = new StringBuilder();
+        line.append(System.currentTimeMillis());
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            line.append(',').append((float) median[phase]).append(',').append((float) p99[phase])
+                .append(',').append((float) mean[phase]).append(',').append((float) max[phase]);
+        }
+        try {
+            writeLine(line);
+            if (csvBytes > csvMaxBytes) {
+                csv.close();
+                File rolled = new File(csvFile.getPath() + ".1");
+                Files.move(csvFile.toPath(), rolled.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                openCsv();
+            }
+        } catch (IOException e) {
+            // the timings are still available over JMX and on the overlay
+            System.err.println("FrameProfiler: CSV output disabled, " + e);
+            csv = null;
+        }
+    }
+
+    private void writeLine(CharSequence line) throws IOException {
+        csv.append(line).append('\n');
+        csv.flush();
+        csvBytes += line.length() + 1;
+    }
+
+    // registering the profiler on the platform MBean server
+    public void registerMBean(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+    }
+
+    @Override
+    public String[] getPhases() {
+        return PHASES.clone();
+    }
+
+    @Override
+    public synchronized double[] getMedianMillis() {
+        return median.clone();
+    }
+
+    @Override
+    public synchronized double[] getP99Millis() {
+        return p99.clone();
+    }
+
+    @Override
+    public synchronized double[] getMeanMillis() {
+        return mean.clone();
+    }
+
+    @Override
+    public synchronized double[] getMaxMillis() {
+        return max.clone();
+    }
+
+    // value of the last report of one phase, without copying the arrays
+    public synchronized double getMedianMillis(int phase) {
+        return median[phase];
+    }
+
+    public synchronized double getP99Millis(int phase) {
+        return p99[phase];
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASES[phase];
+    }
+
+    public static int getPhaseCount() {
+        return PHASES.length;
+    }
+
+    @Override
+    public synchronized long getFrames() {
+        return frames;
+    }
+
+    @Override
+    public int getReportFrames() {
+        return reportFrames;
+    }
+
+    @Override
+    public void setReportFrames(int frames) {
+        reportFrames = Math.max(1, frames);
+    }
+
+}
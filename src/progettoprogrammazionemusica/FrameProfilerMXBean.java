@@ -0,0 +1,25 @@
+package progettoprogrammazionemusica;
+
+/*
+* Frame timings exposed over JMX. Arrays are indexed by phase, in the order
+* given by getPhases(), and hold the values of the last report.
+*/
+public interface FrameProfilerMXBean {
+
+    String[] getPhases();
+
+    double[] getMedianMillis();
+
+    double[] getP99Millis();
+
+    double[] getMeanMillis();
+
+    double[] getMaxMillis();
+
+    long getFrames();
+
+    int getReportFrames();
+
+    void setReportFrames(int frames);
+
+}
@@ -0,0 +1,141 @@
+package progettoprogrammazionemusica;
+import com.jsyn.ports.UnitInputPort;
+import com.jsyn.ports.UnitOutputPort;
+import com.jsyn.unitgen.UnitGenerator;
+import java.util.Random;
+
+/*
+* FusedChorus is the stereo chorus of Chorus in a single unit generator:
+* each channel is delayed by a time swept between 10 and 50 ms by a 0.2 Hz
+* sine wave and mixed with the dry signal, all in one loop per channel over
+* float ring buffers. It has as many channels as the speakers.
+*
+* The sine waves are rotating phasors, two multiplications per sample
+* instead of a sine. The first one starts at phase 0 and the others at a
+* random phase, as the modulators of Chorus. The ring buffers hold the
+* longest delay at the sample rate of the synthesizer, they are allocated by
+* the first block, when the rate is known.
+*/
+public class FusedChorus extends UnitGenerator {
+
+    private static final double MIN_DELAY = 0.01; // seconds
+    private static final double MAX_DELAY = 0.05;
+    private static final double RATE = 0.2; // Hz of the delay modulation
+
+    public final UnitInputPort input; // one channel per speaker
+    public final UnitOutputPort output;
+    private final int channels;
+    private float[][] lines; // delay line of each channel, the length is a power of two
+    private int mask; // length - 1, to wrap the cursor
+    private int cursor; // where the next samples are written
+    private int frameRate; // rate the ring buffers were sized for
+    // phasors of the modulators, (cos, sin) of their phase, by channel
+    private final double[] cos;
+    private final double[] sin;
+    private double rotationCos; // rotation of the phasors per sample
+    private double rotationSin;
+    private volatile double wet;
+    private volatile double dry;
+
+    public FusedChorus() {
+        this(2);
+    }
+
+    public FusedChorus(int channels) {
+        this(channels, new Random());
+    }
+
+    // rand draws the phases of the modulators, the same seed gives the same chorus
+    public FusedChorus(int channels, Random rand) {
+        this.channels = channels;
+        addPort(input = new UnitInputPort(channels, PORT_NAME_INPUT));
+        addPort(output = new UnitOutputPort(channels, PORT_NAME_OUTPUT));
+        input.setup(0.0, 0.0, 1.0);
+        cos = new double[channels];
+        sin = new double[channels];
+        cos[0] = 1;
+        for (int ch = 1; ch < channels; ch++) {
+            double phase = Math.PI * rand.nextDouble(); // a phase between 0 and 1 of a JSyn oscillator
+            cos[ch] = Math.cos(phase);
+            sin[ch] = Math.sin(phase);
+        }
+        setMix(0.5f);
+    }
+
+    // the gains of Chorus, the square root of the square root of mix
+    public final void setMix(float mix) {
+        wet = Math.sqrt(Math.sqrt(mix));
+        dry = Math.sqrt(Math.sqrt(1f - mix));
+    }
+
+    /*
+    * Allocating the delay lines for rate before the synthesizer starts,
+    * otherwise the first block allocates them on the audio thread
+    */
+    public void prepare(int rate) {
+        if (frameRate != rate) {
+            allocate(rate);
+        }
+    }
+
+    private void allocate(int rate) {
+        int length = Integer.highestOneBit((int) Math.ceil(MAX_DELAY * rate) + 2) << 1;
+        lines = new float[channels][length];
+        mask = length - 1;
+        cursor = 0;
+        frameRate = rate;
+        double step = 2 * Math.PI * RATE / rate;
+        rotationCos = Math.cos(step);
+        rotationSin = Math.sin(step);
+    }
+
+    @Override
+    public void generate(int start, int limit) {
+        if (frameRate != getFrameRate()) {
+            allocate(getFrameRate());
+        }
+        // sine between -1 and 1 to delay in frames
+        double center = (MIN_DELAY + MAX_DELAY) * 0.5 * frameRate;
+        double depth = (MAX_DELAY - MIN_DELAY) * 0.5 * frameRate;
+        double wetGain = wet;
+        double dryGain = dry;
+        double rc = rotationCos;
+        double rs = rotationSin;
+        int m = mask;
+        for (int ch = 0; ch < channels; ch++) {
+            double[] in = input.getValues(ch);
+            double[] out = output.getValues(ch);
+            float[] line = lines[ch];
+            double co = cos[ch];
+            double si = sin[ch];
+            int c = cursor;
+            for (int i = start; i < limit; i++) {
+                double sample = in[i];
+                line[c] = (float) sample;
+                double nextCos = co * rc - si * rs;
+                si = si * rc + co * rs;
+                co = nextCos;
+                out[i] = sample * dryGain + read(line, c, center + depth * si, m) * wetGain;
+                c = (c + 1) & m;
+            }
+            // keeping the phasor on the unit circle, the rounding errors would change its amplitude
+            double norm = 1 / Math.sqrt(co * co + si * si);
+            cos[ch] = co * norm;
+            sin[ch] = si * norm;
+        }
+        cursor = (cursor + limit - start) & m;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    // sample written frames before the cursor, interpolated linearly as InterpolatingDelay
+    private static double read(float[] buffer, int cursor, double frames, int mask) {
+        int whole = (int) frames;
+        double weight = 1 - (frames - whole);
+        int a = (cursor - whole - 1) & mask;
+        return buffer[a] + weight * (buffer[(a + 1) & mask] - buffer[a]);
+    }
+
+}
@@ -0,0 +1,143 @@
+package progettoprogrammazionemusica;
+import com.jsyn.Synthesizer;
+import com.jsyn.ports.UnitInputPort;
+import com.jsyn.ports.UnitOutputPort;
+import com.jsyn.unitgen.UnitGenerator;
+import java.util.Random;
+
+/*
+* FusedPingPongDelay is the ping-pong delay of PingPongDelay, in stereo or on
+* more channels, in a single unit generator: the delay lines, the crossed
+* feedback and the dry / wet mix are one loop over float ring buffers,
+* instead of ten units each reading and writing a buffer per block.
+*
+* Each line is fed by its input and, with a feedback of 0.7, by the line of
+* the previous channel: in stereo the left delay feeds the right line and the
+* right delay the left one, with more channels the echoes travel around the
+* speakers. The delays are at least one block long, so the delayed samples
+* of a whole block are read before the block is written and the feedback has
+* no block of latency. The ring buffers hold the longest delay at the sample
+* rate of the synthesizer, they are allocated by the first block, when the
+* rate is known.
+*/
+public class FusedPingPongDelay extends UnitGenerator {
+
+    private static final double MAX_DELAY = 2; // seconds, as the delay lines of PingPongDelay
+    private static final double FEEDBACK = 0.7;
+
+    public final UnitInputPort input; // one channel per speaker
+    public final UnitOutputPort output;
+    private final int channels;
+    private float[][] lines; // delay line of each channel, the length is a power of two
+    private int mask; // length - 1, to wrap the cursor
+    private int cursor; // where the next samples are written
+    private int frameRate; // rate the ring buffers were sized for
+    private volatile float[] times; // channel independent delay times in seconds
+    private volatile double wet;
+    private volatile double dry;
+    private final double[][] delayed; // delayed samples of the current block, by channel
+    private final Random rand; // delay times
+
+    public FusedPingPongDelay() {
+        this(2);
+    }
+
+    public FusedPingPongDelay(int channels) {
+        this(channels, new Random());
+    }
+
+    // the same seed gives the same delay times
+    public FusedPingPongDelay(int channels, Random rand) {
+        this.channels = channels;
+        this.rand = rand;
+        addPort(input = new UnitInputPort(channels, PORT_NAME_INPUT));
+        addPort(output = new UnitOutputPort(channels, PORT_NAME_OUTPUT));
+        input.setup(0.0, 0.0, 1.0);
+        delayed = new double[channels][Synthesizer.FRAMES_PER_BLOCK];
+        randomizeDelayTimes();
+        setMix(0.5f);
+    }
+
+    // setting random delay times, as PingPongDelay does
+    public final void randomizeDelayTimes() {
+        float[] random = new float[channels];
+        for (int ch = 0; ch < channels; ch++) {
+            random[ch] = 0.4f + rand.nextFloat() * (0.8f - 0.2f);
+        }
+        times = random;
+    }
+
+    public final void setMix(float mix) {
+        wet = Math.sqrt(mix);
+        dry = Math.sqrt(1f - mix);
+    }
+
+    /*
+    * Allocating the delay lines for rate before the synthesizer starts,
+    * otherwise the first block allocates them on the audio thread
+    */
+    public void prepare(int rate) {
+        if (frameRate != rate) {
+            allocate(rate);
+        }
+    }
+
+    private void allocate(int rate) {
+        int length = Integer.highestOneBit((int) Math.ceil(MAX_DELAY * rate) + 2) << 1;
+        lines = new float[channels][length];
+        mask = length - 1;
+        cursor = 0;
+        frameRate = rate;
+    }
+
+    @Override
+    public void generate(int start, int limit) {
+        if (frameRate != getFrameRate()) {
+            allocate(getFrameRate());
+        }
+        int frames = limit - start;
+        int m = mask;
+        int c = cursor;
+        float[] delayTimes = times;
+        // delays in frames, constant in the block and at least one block long
+        double maxFrames = mask - 1;
+        for (int ch = 0; ch < channels; ch++) {
+            double delay = Math.max(Synthesizer.FRAMES_PER_BLOCK, Math.min(maxFrames, (double) delayTimes[ch] * frameRate));
+            int whole = (int) delay;
+            // linear interpolation between the frame before and after the delay, as InterpolatingDelay
+            double weight = 1 - (delay - whole);
+            float[] line = lines[ch];
+            double[] d = delayed[ch];
+            int first = c - whole - 1;
+            for (int i = 0; i < frames; i++) {
+                int a = (first + i) & m;
+                d[i] = line[a] + weight * (line[(a + 1) & m] - line[a]);
+            }
+        }
+        double wetGain = wet;
+        double dryGain = dry;
+        for (int ch = 0; ch < channels; ch++) {
+            float[] line = lines[ch];
+            double[] d = delayed[ch];
+            double[] feedback = delayed[(ch + channels - 1) % channels]; // the line of the previous channel
+            double[] in = input.getValues(ch);
+            double[] out = output.getValues(ch);
+            for (int i = 0; i < frames; i++) {
+                double sample = in[start + i];
+                line[(c + i) & m] = (float) (sample + FEEDBACK * feedback[i]);
+                out[start + i] = d[i] * wetGain + sample * dryGain;
+            }
+        }
+        cursor = (c + frames) & m;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    // delay time of channel ch in seconds
+    public float getTime(int ch) {
+        return times[ch];
+    }
+
+}
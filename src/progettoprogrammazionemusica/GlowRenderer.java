@@ -0,0 +1,324 @@
+package progettoprogrammazionemusica;
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/*
+* GlowRenderer draws the particles of particle mode, a point with four
+* fading contours each, without any call to the Processing renderer per
+* particle.
+*
+* The contours are pre-baked once as sprites: for each of ALPHA_LEVELS
+* particle transparencies a mask holds, per pixel, the opacity of the five
+* concentric points drawn one over the other. Colors come from a table of
+* the 360 hues. Particles are collected during the frame with add() and
+* drawn all together by render(), which blends the sprites straight into the
+* pixels of one image that is then drawn with a single image() call.
+*
+* The three large contours are soft, so they are blended in a buffer scaled
+* down by glowScale and scaled back up, the point and the first contour are
+* blended at full resolution over it. Both buffers are split in bands of
+* rows that are rendered in parallel on the fork-join pool.
+*
+* Fewer large contours can be drawn to save time (setGlowLayers): a sprite
+* is baked for each number of them, the smaller ones cover fewer pixels.
+*/
+public class GlowRenderer {
+
+    private static final int ALPHA_LEVELS = 32; // particle transparencies with a baked sprite
+    private static final float[] CORE_WEIGHTS = {7, 14}; // diameters in pixels of the point and first contour
+    private static final float[] CORE_ALPHAS = {255, 75};
+    private static final float[] GLOW_WEIGHTS = {28, 56, 112}; // diameters in pixels of the large contours
+    private static final float[] GLOW_ALPHAS = {50, 20, 10};
+    private static final int ROWS_PER_TASK = 32; // below this height a band is not split further
+
+    private final int width;
+    private final int height;
+    private final int glowScale; // the glow buffer is glowScale times smaller than the frame
+    private final int glowWidth;
+    private final int glowHeight;
+    private final PImage frame; // the image drawn on the sketch
+    private final int[] glow; // low resolution buffer of the large contours
+    private final int[][] lines; // by band of the frame, a glow row interpolated vertically
+    private final int[] hueColor; // RGB of each hue at full saturation and brightness
+    private Sprite core; // baked the first time it is drawn
+    private final Sprite[] halos; // by number of large contours, null for none or until first drawn
+    private volatile int glowLayers; // large contours drawn, from 0 to 3
+    private final ForkJoinPool pool;
+    private int background;
+    private Sprite halo; // large contours of the frame being rendered, null for none
+
+    // particles collected in the current frame, in pixels
+    private float[] x;
+    private float[] y;
+    private int[] rgb;
+    private int[] level; // alpha level
+    private int size;
+
+    public GlowRenderer(int width, int height, int glowScale, ForkJoinPool pool) {
+        this.width = width;
+        this.height = height;
+        this.glowScale = Math.max(1, glowScale);
+        this.pool = pool;
+        glowWidth = (width + this.glowScale - 1) / this.glowScale + 1;
+        glowHeight = (height + this.glowScale - 1) / this.glowScale + 1;
+        frame = new PImage(width, height, PApplet.RGB);
+        glow = new int[glowWidth * glowHeight];
+        lines = new int[(height + ROWS_PER_TASK - 1) / ROWS_PER_TASK][glowWidth];
+        hueColor = new int[360];
+        for (int h = 0; h < 360; h++) {
+            hueColor[h] = Color.HSBtoRGB(h / 360f, 1, 1) & 0xFFFFFF;
+        }
+        halos = new Sprite[GLOW_WEIGHTS.length + 1];
+        glowLayers = GLOW_WEIGHTS.length;
+        x = new float[128];
+        y = new float[128];
+        rgb = new int[128];
+        level = new int[128];
+    }
+
+    // drawing only the first layers (between 0 and 3) large contours, the innermost ones
+    public void setGlowLayers(int layers) {
+        glowLayers = Math.max(0, Math.min(GLOW_WEIGHTS.length, layers));
+    }
+
+    public int getGlowLayers() {
+        return glowLayers;
+    }
+
+    // starting a new frame cleared to the background color (ARGB, as returned by PApplet.color)
+    public void begin(int background) {
+        this.background = background;
+        size = 0;
+    }
+
+    /*
+    * Adding a particle at (px, py) pixels, with hue color between 0 and 360
+    * and transparency alpha between 0 and 1
+    */
+    public void add(float px, float py, float color, float alpha) {
+        if (size == x.length) {
+            x = Arrays.copyOf(x, size * 2);
+            y = Arrays.copyOf(y, size * 2);
+            rgb = Arrays.copyOf(rgb, size * 2);
+            level = Arrays.copyOf(level, size * 2);
+        }
+        x[size] = px;
+        y[size] = py;
+        rgb[size] = hueColor[Math.floorMod((int) color, 360)];
+        level[size] = Math.round(Math.max(0, Math.min(1, alpha)) * (ALPHA_LEVELS - 1));
+        size++;
+    }
+
+    // drawing all the particles added since begin() into the frame image
+    public PImage render() {
+        if (core == null) {
+            core = new Sprite(CORE_WEIGHTS, CORE_ALPHAS, 1);
+        }
+        halo = getHalo(glowLayers); // the same layers for the whole frame
+        // the glow buffer must be complete before it is scaled up
+        renderBands(true, glowHeight);
+        renderBands(false, height);
+        frame.updatePixels();
+        return frame;
+    }
+
+    /*
+    * Sprites are baked when first drawn, not when the renderer is built: at
+    * startup only the ones of the first frame are, and flow mode bakes none
+    */
+    private Sprite getHalo(int layers) {
+        if (layers > 0 && halos[layers] == null) {
+            halos[layers] = new Sprite(Arrays.copyOf(GLOW_WEIGHTS, layers), Arrays.copyOf(GLOW_ALPHAS, layers), glowScale);
+        }
+        return halos[layers];
+    }
+
+    private void renderBands(boolean glowPass, int rows) {
+        if (rows <= ROWS_PER_TASK) {
+            renderRows(glowPass, 0, rows);
+        } else {
+            pool.invoke(new BandTask(glowPass, 0, rows));
+        }
+    }
+
+    /*
+    * Rendering the rows from fromRow to toRow of the glow buffer or of the
+    * frame. Bands touch disjoint rows, so they can be rendered at the same
+    * time. They start at multiples of ROWS_PER_TASK, so each band of the
+    * frame has its own line buffer.
+    */
+    private void renderRows(boolean glowPass, int fromRow, int toRow) {
+        if (glowPass) {
+            Arrays.fill(glow, fromRow * glowWidth, toRow * glowWidth, background & 0xFFFFFF);
+            for (int i = 0; i < size && halo != null; i++) {
+                halo.blend(glow, glowWidth, fromRow, toRow, x[i] / glowScale, y[i] / glowScale, rgb[i], level[i]);
+            }
+        } else {
+            scaleUp(fromRow, toRow);
+            for (int i = 0; i < size; i++) {
+                core.blend(frame.pixels, width, fromRow, toRow, x[i], y[i], rgb[i], level[i]);
+            }
+        }
+    }
+
+    /*
+    * Bilinear interpolation of the glow buffer into the frame rows: each row
+    * of the glow buffer is first interpolated vertically into the line of
+    * the band, then the line is stretched horizontally
+    */
+    private void scaleUp(int fromRow, int toRow) {
+        int[] pixels = frame.pixels;
+        int scale = glowScale;
+        int[] line = lines[fromRow / ROWS_PER_TASK];
+        for (int row = fromRow; row < toRow; row++) {
+            int gy = row / scale;
+            int fy = (row % scale) * 256 / scale;
+            int top = gy * glowWidth;
+            int bottom = Math.min(gy + 1, glowHeight - 1) * glowWidth;
+            for (int gx = 0; gx < glowWidth; gx++) {
+                line[gx] = mix(glow[top + gx], glow[bottom + gx], fy);
+            }
+            int offset = row * width;
+            for (int gx = 0, col = 0; col < width; gx++) {
+                int left = line[gx];
+                int right = line[gx + 1];
+                int end = Math.min(width, col + scale);
+                if (left == right) {
+                    // flat regions, most of the background, need no interpolation
+                    Arrays.fill(pixels, offset + col, offset + end, 0xFF000000 | left);
+                    col = end;
+                } else {
+                    for (int fx = 0; col < end; col++, fx += 256 / scale) {
+                        pixels[offset + col] = 0xFF000000 | mix(left, right, fx);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+    * Linear interpolation of two RGB colors, t between 0 and 256. Red and
+    * blue are interpolated together, 8 bits apart from each other.
+    */
+    private static int mix(int a, int b, int t) {
+        int u = 256 - t;
+        int rb = ((a & 0xFF00FF) * u + (b & 0xFF00FF) * t) >>> 8 & 0xFF00FF;
+        int g = ((a & 0xFF00) * u + (b & 0xFF00) * t) >>> 8 & 0xFF00;
+        return rb | g;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /*
+    * Concentric points of the given diameters and alphas (as strokeWeight and
+    * stroke alpha of the original drawing) baked for each alpha level. Masks
+    * are opacities between 0 and 256, spans skip the transparent corners.
+    */
+    private static class Sprite {
+
+        private final int diameter; // side of the sprite in pixels
+        private final int[][] masks; // by alpha level, diameter x diameter opacities
+        private final int[] spanStart; // first and last + 1 non transparent column of each row
+        private final int[] spanEnd;
+
+        Sprite(float[] weights, float[] alphas, int scale) {
+            float radius = weights[weights.length - 1] / scale / 2;
+            diameter = (int) Math.ceil(radius * 2) + 1;
+            float center = diameter / 2f;
+            masks = new int[ALPHA_LEVELS][diameter * diameter];
+            spanStart = new int[diameter];
+            spanEnd = new int[diameter];
+            for (int level = 0; level < ALPHA_LEVELS; level++) {
+                float alpha = (float) level / (ALPHA_LEVELS - 1);
+                for (int row = 0; row < diameter; row++) {
+                    for (int col = 0; col < diameter; col++) {
+                        float dx = col + 0.5f - center;
+                        float dy = row + 0.5f - center;
+                        float distance = (float) Math.sqrt(dx * dx + dy * dy);
+                        // points drawn one over the other, each covering a disc with a soft edge of one pixel
+                        float opacity = 0;
+                        for (int k = 0; k < weights.length; k++) {
+                            float coverage = Math.max(0, Math.min(1, weights[k] / scale / 2 - distance + 0.5f));
+                            float a = alpha * alphas[k] / 255 * coverage;
+                            opacity += (1 - opacity) * a;
+                        }
+                        masks[level][row * diameter + col] = Math.round(opacity * 256);
+                    }
+                }
+            }
+            // spans are taken from the most opaque level, which covers every other one
+            int[] full = masks[ALPHA_LEVELS - 1];
+            for (int row = 0; row < diameter; row++) {
+                int start = 0;
+                while (start < diameter && full[row * diameter + start] == 0) {
+                    start++;
+                }
+                int end = diameter;
+                while (end > start && full[row * diameter + end - 1] == 0) {
+                    end--;
+                }
+                spanStart[row] = start;
+                spanEnd[row] = end;
+            }
+        }
+
+        // blending the sprite centered in (cx, cy) into the rows fromRow to toRow of target
+        void blend(int[] target, int targetWidth, int fromRow, int toRow, float cx, float cy, int rgb, int level) {
+            if (level == 0) {
+                return;
+            }
+            int[] mask = masks[level];
+            int left = Math.round(cx - diameter / 2f);
+            int top = Math.round(cy - diameter / 2f);
+            int firstRow = Math.max(fromRow, top);
+            int lastRow = Math.min(toRow, top + diameter);
+            for (int row = firstRow; row < lastRow; row++) {
+                int r = row - top;
+                int from = Math.max(spanStart[r], -left);
+                int to = Math.min(spanEnd[r], targetWidth - left);
+                int offset = row * targetWidth + left;
+                int maskOffset = r * diameter;
+                for (int c = from; c < to; c++) {
+                    int d = target[offset + c];
+                    target[offset + c] = (d & 0xFF000000) | mix(d, rgb, mask[maskOffset + c]);
+                }
+            }
+        }
+
+    }
+
+    // renders a band of rows, splitting it in two halves while it is tall
+    private class BandTask extends RecursiveAction {
+
+        private final boolean glowPass;
+        private final int fromRow;
+        private final int toRow;
+
+        BandTask(boolean glowPass, int fromRow, int toRow) {
+            this.glowPass = glowPass;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= ROWS_PER_TASK) {
+                renderRows(glowPass, fromRow, toRow);
+            } else {
+                // splitting on a multiple of ROWS_PER_TASK, the bands stay aligned
+                int bands = (toRow - fromRow + ROWS_PER_TASK - 1) / ROWS_PER_TASK;
+                int middle = fromRow + bands / 2 * ROWS_PER_TASK;
+                invokeAll(new BandTask(glowPass, fromRow, middle),
+                          new BandTask(glowPass, middle, toRow));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,143 @@
+package progettoprogrammazionemusica;
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Properties;
+import processing.core.PApplet;
+
+/*
+* InstallationLauncher runs the sketch unattended, without the Swing window
+* of UI and without the ControlP5 slider and buttons, from a properties
+* file. The sketch can be changed while it runs through the ControlChannel.
+*
+* Usage: InstallationLauncher [config.properties]
+*
+* Keys, all optional:
+*   display      window, fullscreen (a bare surface covering the screen) or
+*                offscreen (drawing into an image, no display needed)
+*   width        width of the sketch, the screen in fullscreen, 1280 otherwise
+*   height       height of the sketch, the screen in fullscreen, 720 otherwise
+*   cellSize     pixels of the cells of the flow field, 20
+*   controls     true to keep the ControlP5 controls, false
+*   particles    displayed particles, 20
+*   mode         particle or flow, particle
+*   shade        red, green or blue, red
+*   seed         seed of the Perlin noise, 0
+*   fps          frames per second, 30
+*   tickRate     simulation ticks per second, 30
+*   governor     adaptive quality, true
+*   timings      timings overlay, false
+*   timingsCsv   reports of the profilers appended to timingsCsv-draw.csv
+*                and timingsCsv-simulation.csv, none by default
+*   timingsCsvBytes size beyond which a CSV file is renamed to .1, 10000000
+*   scale        Scala (.scl) file replacing the scale of the shade
+*   speakers     stereo, ring N or grid CxR, stereo
+*   sampleRate   sample rate of the synthesizer, 44100
+*   latency      seconds of the device buffer, the default of the device
+*   controlPort  port of the control channel on localhost, 7400, 0 for none
+*   record       file the session is recorded to, none by default
+*   replay       recorded session drawn and played instead of the simulation,
+*                particles, mode, shade, seed, fps, tickRate and governor
+*                are then those of the session
+*   frames       with replay, file names of the saved frames, e.g.
+*                frames/####.png, none by default
+*/
+public class InstallationLauncher {
+
+    public static void main(String[] args) throws IOException {
+        Properties config = new Properties();
+        if (args.length > 0) {
+            try (Reader reader = new FileReader(args[0])) {
+                config.load(reader);
+            }
+        }
+        String display = config.getProperty("display", "window").trim();
+        boolean offscreen = display.equals("offscreen");
+        boolean fullScreen = display.equals("fullscreen");
+        if (!offscreen && !fullScreen && !display.equals("window")) {
+            throw new IllegalArgumentException("unknown display: " + display);
+        }
+        if (offscreen) {
+            System.setProperty("java.awt.headless", "true"); // before anything touches AWT
+        }
+
+        int width = 1280;
+        int height = 720;
+        if (fullScreen) {
+            DisplayMode screen = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode();
+            width = screen.getWidth();
+            height = screen.getHeight();
+        }
+        width = getInt(config, "width", width);
+        height = getInt(config, "height", height);
+        ProcessingGraphics sketch = new ProcessingGraphics(width, height, getInt(config, "cellSize", 20));
+        sketch.setOffscreen(offscreen);
+        sketch.setFullScreen(fullScreen);
+        sketch.setControls(Boolean.parseBoolean(config.getProperty("controls", "false")));
+        sketch.setSpeakerLayout(SpeakerLayout.fromName(config.getProperty("speakers", "stereo")));
+        sketch.setAudioFrameRate(getInt(config, "sampleRate", 44100));
+        sketch.setOutputLatency(Double.parseDouble(config.getProperty("latency", "0")));
+        if (config.getProperty("timingsCsv") != null) {
+            sketch.setTimingsCsv(config.getProperty("timingsCsv").trim(),
+                                 Long.parseLong(config.getProperty("timingsCsvBytes", "10000000").trim()));
+        }
+        if (config.getProperty("record") != null) {
+            sketch.setRecording(new File(config.getProperty("record").trim()));
+        }
+        if (config.getProperty("replay") != null) {
+            sketch.setReplay(new SessionPlayer(new File(config.getProperty("replay").trim())));
+            sketch.setFrameOutput(config.getProperty("frames"));
+        }
+
+        // the rest needs the audio system, built in setup(): it runs before the first frame
+        int particles = getInt(config, "particles", 20);
+        Mode mode = Mode.fromName(config.getProperty("mode", "particle"));
+        Shade shade = Shade.fromName(config.getProperty("shade", "red"));
+        int seed = getInt(config, "seed", 0);
+        int fps = getInt(config, "fps", 30);
+        double tickRate = Double.parseDouble(config.getProperty("tickRate", "30"));
+        boolean governor = Boolean.parseBoolean(config.getProperty("governor", "true"));
+        boolean timings = Boolean.parseBoolean(config.getProperty("timings", "false"));
+        Tuning tuning = Tuning.STANDARD;
+        if (config.getProperty("scale") != null) {
+            tuning = tuning.withScale(shade, Scale.load(new File(config.getProperty("scale").trim())));
+        }
+        Tuning startTuning = tuning;
+        boolean replay = config.getProperty("replay") != null;
+        sketch.submit(() -> {
+            if (!replay) {
+                // a replay runs at the tick rate and with the settings of the session
+                sketch.setTargetFrameRate(fps);
+                sketch.setTickRate(tickRate);
+                sketch.setQualityGovernor(governor);
+                sketch.setShade(shade);
+                sketch.setMode(mode);
+                sketch.setSeed(seed);
+                sketch.setNumParticles(particles);
+            }
+            sketch.setTuning(startTuning);
+            sketch.setTimingOverlay(timings);
+        });
+
+        if (offscreen) {
+            ProcessingGraphics.getPSurface(sketch).startThread();
+        } else {
+            PApplet.runSketch(new String[] {ProcessingGraphics.class.getName()}, sketch);
+        }
+
+        int port = getInt(config, "controlPort", 7400);
+        if (port > 0) {
+            new ControlChannel(sketch, port).start();
+            System.out.println("Control channel on localhost:" + port);
+        }
+    }
+
+    private static int getInt(Properties config, String key, int defaultValue) {
+        String value = config.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+}
@@ -0,0 +1,21 @@
+package progettoprogrammazionemusica;
+
+/*
+* Drawing mode, it also chooses how the gain of the voices moves
+*/
+public enum Mode {
+
+    PARTICLE, // particles drawn as glowing points, the gain follows an envelope restarted by events
+    FLOW; // particles drawn as lines, the gain is modulated by a slow sine wave
+
+    // "particle" or "flow", as written by the user
+    public static Mode fromName(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+
+}
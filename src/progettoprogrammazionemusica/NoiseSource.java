@@ -0,0 +1,33 @@
+package progettoprogrammazionemusica;
+
+/*
+* A source of coherent noise in 3D. Implementations must be reentrant: their
+* state is only written in the constructor, so the same instance can be
+* sampled at the same time from several threads.
+*/
+public interface NoiseSource {
+
+    // noise value in (0, 1) at the point (x, y, z)
+    float noise(float x, float y, float z);
+
+    // seed from which the tables of the noise have been built
+    long getSeed();
+
+    // one dimensional noise, as Processing it is the 3D noise on the x axis
+    default float noise(float x) {
+        return noise(x, 0, 0);
+    }
+
+    /*
+    * Sampling n points of a row: the i-th point is (x + i * xStep, y, z).
+    * Results are written in out starting from offset. x is accumulated by
+    * repeated addition exactly as a loop with "xOffset += xStep" would do.
+    */
+    default void noiseRow(float x, float xStep, float y, float z, float[] out, int offset, int n) {
+        for (int i = 0; i < n; i++) {
+            out[offset + i] = noise(x, y, z);
+            x += xStep;
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package progettoprogrammazionemusica;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/*
+* OfflineRenderer renders the sonification to a WAV file without window and
+* without sound card.
+*
+* The simulation is stepped at a fixed virtual frame rate and, after each
+* frame, the non-realtime synthesizer is advanced by the duration of one
+* frame: the audio is computed as fast as the CPU allows instead of following
+* the clock. The synthesizer renders on a single thread, the flow field
+* keyframes are computed in parallel on the other cores.
+*
+* Usage: OfflineRenderer file seconds [fps] [particles] [mode] [shade] [seed] [scale]
+*
+* scale is a Scala (.scl) file replacing the scale of the shade
+*/
+public class OfflineRenderer {
+
+    private static final int FRAME_RATE = 44100; // audio sample rate
+    private static final int POOL_SIZE = 100; // maximum number of sounding particles, as in the sketch
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: OfflineRenderer file seconds [fps] [particles] [mode] [shade] [seed] [scale]");
+            System.exit(1);
+        }
+        File file = new File(args[0]);
+        double seconds = Double.parseDouble(args[1]);
+        int fps = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        int numParticles = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        Mode mode = args.length > 4 ? Mode.fromName(args[4]) : Mode.PARTICLE;
+        Shade shade = args.length > 5 ? Shade.fromName(args[5]) : Shade.RED;
+        int seed = args.length > 6 ? Integer.parseInt(args[6]) : 0;
+        Tuning tuning = Tuning.STANDARD;
+        if (args.length > 7) {
+            tuning = tuning.withScale(shade, Scale.load(new File(args[7])));
+        }
+
+        render(file, seconds, fps, numParticles, mode, shade, seed, tuning);
+    }
+
+    /*
+    * Rendering "seconds" of audio of a 1280 x 720 sketch with cells of 20
+    * pixels, the same flow field drawn by ProcessingGraphics
+    */
+    public static void render(File file, double seconds, int fps, int numParticles,
+                              Mode mode, Shade shade, int seed, Tuning tuning) throws IOException {
+        FlowSimulation simulation = new FlowSimulation(64, 36, 1280f / 720f, 0.1f, 0.0003f, new Random(seed));
+        simulation.setSeed(seed);
+        simulation.setShade(shade);
+        simulation.setNumParticles(numParticles);
+        simulation.setProximityParticles(POOL_SIZE);
+        ParticleStore particles = simulation.getParticles();
+
+        ParticleSystemAudio audioSystem = new ParticleSystemAudio(POOL_SIZE, true);
+        audioSystem.setTuning(tuning);
+        WaveFileSink sink = new WaveFileSink(file, FRAME_RATE);
+        audioSystem.getSynthesizer().add(sink);
+        audioSystem.getOutput().connect(0, sink.input, 0);
+        audioSystem.getOutput().connect(1, sink.input, 1);
+        audioSystem.startOfflineAudioSystem(FRAME_RATE);
+        sink.start();
+        audioSystem.setMode(mode);
+        audioSystem.setSoundingParticles(particles, numParticles, shade, mode);
+
+        int frames = (int) Math.ceil(seconds * fps);
+        long startTime = System.nanoTime();
+        try {
+            for (int frame = 0; frame < frames; frame++) {
+                simulation.step();
+                audioSystem.updateVoices(particles, simulation.getGrid(), numParticles, shade, mode);
+                audioSystem.getSynthesizer().sleepUntil((double) (frame + 1) / fps);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            audioSystem.stopAudioSystem();
+            sink.close();
+        }
+        double elapsed = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("%s: %.1f s of audio in %.1f s (%.1fx realtime)%n",
+                          file, sink.getDuration(), elapsed, sink.getDuration() / elapsed);
+    }
+
+}
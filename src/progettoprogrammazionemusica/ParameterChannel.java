@@ -0,0 +1,212 @@
+package progettoprogrammazionemusica;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* ParameterChannel moves one snapshot per frame of the voice parameters from
+* the animation thread to the audio thread without locks.
+*
+* It is a triple buffer: the writer fills its own frame and publishes it by
+* swapping it with the shared one, the reader takes the shared frame by
+* swapping it with its own. The swap is a single atomic operation, so the
+* reader always sees a whole frame, never a mix of two, and neither side
+* waits for the other. Frames are allocated once and recycled.
+*
+* A frame not read before the next one is published is lost, so besides the
+* per-frame snapshot a frame carries the whole state of the voices (which
+* ones sound, their note, pitch and envelope): publishing copies it to the
+* next frame of the writer, and whichever frame the reader gets, it finds
+* in it every voice turned on or off since the one it read before.
+*/
+public class ParameterChannel {
+
+    private static final int DIRTY = 4; // flag of the shared index: a frame has been published and not read yet
+
+    private final Frame[] frames;
+    private final AtomicInteger shared; // index of the shared frame, plus DIRTY
+    private int writing; // index of the frame owned by the writer
+    private int reading; // index of the frame owned by the reader
+
+    // capacity is the maximum number of voices in a frame
+    public ParameterChannel(int capacity) {
+        frames = new Frame[] {new Frame(capacity), new Frame(capacity), new Frame(capacity)};
+        writing = 0;
+        shared = new AtomicInteger(1);
+        reading = 2;
+    }
+
+    // writer side: the frame to fill, emptied of the voices of the last frame but with their state
+    public Frame begin() {
+        Frame frame = frames[writing];
+        frame.size = 0;
+        return frame;
+    }
+
+    // writer side: the frame whose voice state is changed, the one published next
+    public Frame current() {
+        return frames[writing];
+    }
+
+    /*
+    * Writer side: making the frame filled after begin() visible to the
+    * reader. The reader does not write frames, so the state of the voices
+    * can be copied from the published frame even if it is being read
+    */
+    public void publish() {
+        int published = writing;
+        writing = shared.getAndSet(writing | DIRTY) & ~DIRTY;
+        frames[writing].copyVoices(frames[published]);
+    }
+
+    // reader side: the last published frame, or null if nothing new has been published
+    public Frame consume() {
+        if ((shared.get() & DIRTY) == 0) {
+            return null;
+        }
+        reading = shared.getAndSet(reading) & ~DIRTY;
+        return frames[reading];
+    }
+
+    /*
+    * Parameters of the sounding voices in one frame: the voice slot, the
+    * normalized location of its particle, whether it came close to another
+    * particle, and the drawing mode. Then the state of every voice, by slot:
+    * a voice turned on again gets a new note number, so the reader can tell
+    * a new note from the one it is playing even across the frames it missed
+    */
+    public static class Frame {
+
+        private final int[] slot;
+        private final float[] x;
+        private final float[] y;
+        private final boolean[] touched;
+        private int size;
+        private Mode mode;
+        private final boolean[] sounding;
+        private final int[] note; // times the voice was turned on
+        private final double[] frequency;
+        private final float[] harmonicAmplitude;
+        private final boolean[] envelope; // the gain follows the envelope, otherwise the modulator
+        private final float[] startX; // location of the particle when the voice was turned on
+        private final float[] startY;
+
+        Frame(int capacity) {
+            slot = new int[capacity];
+            x = new float[capacity];
+            y = new float[capacity];
+            touched = new boolean[capacity];
+            sounding = new boolean[capacity];
+            note = new int[capacity];
+            frequency = new double[capacity];
+            harmonicAmplitude = new float[capacity];
+            envelope = new boolean[capacity];
+            startX = new float[capacity];
+            startY = new float[capacity];
+        }
+
+        public void add(int voiceSlot, float voiceX, float voiceY) {
+            add(voiceSlot, voiceX, voiceY, false);
+        }
+
+        public void add(int voiceSlot, float voiceX, float voiceY, boolean voiceTouched) {
+            slot[size] = voiceSlot;
+            x[size] = voiceX;
+            y[size] = voiceY;
+            touched[size] = voiceTouched;
+            size++;
+        }
+
+        public void setMode(Mode mode) {
+            this.mode = mode;
+        }
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getSlot(int k) {
+            return slot[k];
+        }
+
+        public float getX(int k) {
+            return x[k];
+        }
+
+        public float getY(int k) {
+            return y[k];
+        }
+
+        public boolean isTouched(int k) {
+            return touched[k];
+        }
+
+        // a new note on the voice in slot v, from the location (voiceX, voiceY)
+        public void turnOn(int v, double voiceFrequency, float voiceHarmonicAmplitude, boolean voiceEnvelope,
+                           float voiceX, float voiceY) {
+            sounding[v] = true;
+            note[v]++;
+            frequency[v] = voiceFrequency;
+            harmonicAmplitude[v] = voiceHarmonicAmplitude;
+            envelope[v] = voiceEnvelope;
+            startX[v] = voiceX;
+            startY[v] = voiceY;
+        }
+
+        public void turnOff(int v) {
+            sounding[v] = false;
+        }
+
+        public void setPitch(int v, double voiceFrequency, float voiceHarmonicAmplitude) {
+            frequency[v] = voiceFrequency;
+            harmonicAmplitude[v] = voiceHarmonicAmplitude;
+        }
+
+        public void setEnvelope(int v, boolean voiceEnvelope) {
+            envelope[v] = voiceEnvelope;
+        }
+
+        public boolean isSounding(int v) {
+            return sounding[v];
+        }
+
+        public int getNote(int v) {
+            return note[v];
+        }
+
+        public double getFrequency(int v) {
+            return frequency[v];
+        }
+
+        public float getHarmonicAmplitude(int v) {
+            return harmonicAmplitude[v];
+        }
+
+        public boolean hasEnvelope(int v) {
+            return envelope[v];
+        }
+
+        public float getStartX(int v) {
+            return startX[v];
+        }
+
+        public float getStartY(int v) {
+            return startY[v];
+        }
+
+        private void copyVoices(Frame from) {
+            int n = sounding.length;
+            System.arraycopy(from.sounding, 0, sounding, 0, n);
+            System.arraycopy(from.note, 0, note, 0, n);
+            System.arraycopy(from.frequency, 0, frequency, 0, n);
+            System.arraycopy(from.harmonicAmplitude, 0, harmonicAmplitude, 0, n);
+            System.arraycopy(from.envelope, 0, envelope, 0, n);
+            System.arraycopy(from.startX, 0, startX, 0, n);
+            System.arraycopy(from.startY, 0, startY, 0, n);
+        }
+
+    }
+
+}
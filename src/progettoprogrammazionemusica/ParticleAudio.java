@@ -1,58 +1,65 @@
 package progettoprogrammazionemusica;
 import com.jsyn.data.SegmentedEnvelope;
+import com.jsyn.ports.UnitInputPort;
 import com.jsyn.ports.UnitOutputPort;
 import com.jsyn.unitgen.Circuit;
 import com.jsyn.unitgen.SineOscillator;
 import com.jsyn.unitgen.UnitOscillator;
 import com.jsyn.unitgen.MixerStereoRamped;
 import com.jsyn.unitgen.UnitSource;
-import com.softsynth.math.AudioMath;
 import java.util.Random;
 import static processing.core.PApplet.map;
 import com.jsyn.unitgen.VariableRateMonoReader;
 
-public class ParticleAudio  extends Circuit implements UnitSource{
+public class ParticleAudio  extends Circuit implements UnitSource, ParticleVoice{
     
     private final float max_amp = 0.7f;
     private final float min_amp = 0.2f;
-    private final int width = 1280;
-    private final int height = 720;
     private final UnitOscillator osc; // pure sine oscillator for audio
     private final UnitOscillator mod; // pure sine oscillator for amplitude modulation
     private final MixerStereoRamped smoother; // pain, gain and amp are smoothed to avoid glitches
-    Random rand = new Random();
+    private final Random rand; // harmonics and modulator, seeded by ParticleSystemAudio for a replay
     double[] envelopeData = {
         0.02, 1,
         0.5, 0.0
     };
     SegmentedEnvelope envelope = new SegmentedEnvelope(envelopeData);
     VariableRateMonoReader envPlayer;
+    private UnitInputPort destination; // stereo input the voice is connected to while turned on
     
     /*
     * ParticleAudio creates the audio component of a particle using its color,
-    * the shade paramter of ProcessingGraphcis, its location (x, y), the total
+    * the shade paramter of ProcessingGraphcis, its location (x, y) normalized
+    * between 0 and 1, the total
     * number of particles (to normalize the amplitude of the particle), a note
-    * given by ParticleSystemAudio and the mode to control the envelope
+    * and a tuning given by ParticleSystemAudio and the mode to control the
+    * envelope
     */
-    public ParticleAudio(float color, String shade, float x, float y, int numParticles, int scaleRoot, String mode){
+    public ParticleAudio(float color, Shade shade, float x, float y, int numParticles, int scaleRoot, Tuning tuning, Mode mode){
+        this(color, shade, x, y, numParticles, scaleRoot, tuning, mode, new Random());
+    }
+    
+    // rand draws the harmonic and the modulator, the same seed gives the same voice
+    public ParticleAudio(float color, Shade shade, float x, float y, int numParticles, int scaleRoot, Tuning tuning, Mode mode, Random rand){
+        this.rand = rand;
         
         add(osc = new SineOscillator());
         add(mod = new SineOscillator());
         add(smoother = new MixerStereoRamped(1));
         add(envPlayer = new VariableRateMonoReader());
         
-        setPitch(color, shade, scaleRoot);
+        setPitch(color, shade, scaleRoot, tuning);
         setAmplitude(y, numParticles);
         setPan(x);
         resetEnvelope();
         
-        mod.frequency.set((Math.random() * 2 + 0.01));
-        mod.phase.set(Math.random());
+        mod.frequency.set((rand.nextDouble() * 2 + 0.01));
+        mod.phase.set(rand.nextDouble());
         mod.amplitude.set(1);
         
-        if (mode.equals("particle")){
+        if (mode == Mode.PARTICLE){
             startEnvelope();
-        } else if (mode.equals("flow")) {
+        } else if (mode == Mode.FLOW) {
             stopEnvelope();
         }
         
@@ -61,8 +68,9 @@ public class ParticleAudio  extends Circuit implements UnitSource{
     }
     
     /*
-    * The frequency of the oscillator is based on three values:
+    * The frequency of the oscillator is based on four values:
     * ParticleGraphics shade:
+    *   chooses the scale of the tuning, by default
     *   - red: diatonic scale;
     *   - blue: pentatonic scale;
     *   - green: whole tone scale
@@ -73,74 +81,39 @@ public class ParticleAudio  extends Circuit implements UnitSource{
     *   is the hue scaled to a range of values between 0 and 360, in particular
     *   given the shade, color assumes values only in a certain range in order
     *   to produce shades of red, blue or green.
+    * ParticleSystemAudio tuning:
+    *   holds the frequencies of all the notes and of their harmonics
     */ 
-    public void setPitch(float color, String shade, int scaleRoot) {        
-        int min = 0; // initializing the ranges for the color parameter
-        int max = 0;
-        int note = 0;
-        int index = 0;
-        int[] diatonic = {0, 2, 4, 5, 7, 9, 11}; // degrees of each scale in terms of pitch classes
-        int[] pentatonic = {0, 2, 4, 7, 9};
-        int[] wholeTone = {0, 2, 4, 6, 8, 10};
-        switch (shade) {
-            case "red":
-                min = 216;
-                max = 360;
-                break;
-            case "blue":
-                min = 150;
-                max = 270;
-                break;
-            case "green":
-                min = 30;
-                max = 215;
-                break;
-            default:
-                break;
-        }
-        
-        // the color is mapped onto a degree of a scale
-        if (shade.equals("red")) {
-            index = (int) ( 0 + ( (color - min) * (6.99 - 0) ) / (max - min) );
-            note = diatonic[index];
-        } else if (shade.equals("blue")){
-            index = (int) ( 0 + ( (color - min) * (4.99 - 0) ) / (max - min) );
-            note = pentatonic[index];
-        } else if (shade.equals("green")) {
-            index = (int) ( 0 + ( (color - min) * (5.99 - 0) ) / (max - min) );
-            note = wholeTone[index];
-        }
-        
-        note += scaleRoot; // getting the midi pitch of the note
-        double frequency = AudioMath.pitchToFrequency(note); // convert the pitch to frequency
-        // harmonics contain the harmonics of the note
-        double[] harmonics = {frequency, frequency * 2, frequency * 3, frequency * 4, frequency * 5, frequency * 6, frequency * 7, frequency * 8, frequency * 9, frequency * 10};
-        int indexHarmonic = rand.nextInt(10);
-        double harmonic = harmonics[indexHarmonic];
+    @Override
+    public void setPitch(float color, Shade shade, int scaleRoot, Tuning tuning) {        
+        int indexHarmonic = rand.nextInt(Tuning.HARMONICS);
         // osc frequency is define as a random harmonic of the note
-        osc.frequency.set(harmonic);
+        osc.frequency.set(tuning.frequency(shade, color, scaleRoot, indexHarmonic));
         // lowering the amplitude of higher harmonics
         osc.amplitude.set(1 / (indexHarmonic / 5 + 1));
     }
     
     /*
-    * scaling the y coordinate of the particle between max_amp and min_amp to
+    * scaling the normalized y coordinate of the particle between max_amp and min_amp to
     * modulate the particle amplitude.
     * maximum amplitude is 0.7, minimum amplitude is 0.2
     */
+    @Override
     public void setAmplitude(float y, int numParticles) {
-        float mix = Math.abs( map(y, 0, height, max_amp, min_amp));
+        float mix = Math.abs( map(y, 0, 1, max_amp, min_amp));
         smoother.amplitude.set((mix / (numParticles * max_amp)));
     }
     
-    // scaling the x coordinate of the particle between -1 and +1 to modulate the pan
+    // scaling the normalized x coordinate of the particle between -1 and +1 to modulate the pan
+    @Override
     public void setPan(float x) {
-        float pan = map(x / width, 0, 1, -1, 1);
+        float pan = map(x, 0, 1, -1, 1);
         smoother.pan.set(pan);
     }
     
     // when the particle mode button is pushed then the gain modulator
     // is disconnected and the envelope is used instead
+    @Override
     public void startEnvelope() {
         mod.output.disconnect(smoother.gain);
         if (!envPlayer.output.isConnected()) {
@@ -150,6 +123,7 @@ public class ParticleAudio  extends Circuit implements UnitSource{
     
     // when the flow mode button is pushed then the gain envelope is
     // disconnected and the sine wave modulator is used instead
+    @Override
     public void stopEnvelope() {
         envPlayer.output.disconnect(smoother.gain);
         if (!mod.output.isConnected()) {
@@ -158,30 +132,37 @@ public class ParticleAudio  extends Circuit implements UnitSource{
     }
     
     // resetting the envelope
+    @Override
     public void resetEnvelope() {
         envPlayer.dataQueue.clear();
         envPlayer.dataQueue.queue(envelope);
     }
     
-    // resetting the envelope when a particle (when in particle mode) hit an edge
-    public void boing(String mode, float x, float y) {
-        if (mode.equals("particle")) {
-            if (x >= 1280 || x <= 0 || y >= 720 || y <= 0) {
-                resetEnvelope();
-            }
-        }
+    // the stereo input the voice is connected to when it is turned on
+    public void setDestination(UnitInputPort input) {
+        destination = input;
     }
     
-    // start the oscillator
+    // start the oscillator and connect the voice so that the synthesizer pulls it
+    @Override
     public void turnOn() {
         osc.start();
         osc.setEnabled(true);
+        if (destination != null) {
+            smoother.output.connect(0, destination, 0);
+            smoother.output.connect(1, destination, 1);
+        }
     }
     
-    // stop the oscillator and disable it to consume less cpu
+    // stop the oscillator and disconnect the voice so that it consumes no cpu
+    @Override
     public void turnOff() {
         osc.stop();
         osc.setEnabled(false);
+        if (destination != null) {
+            smoother.output.disconnect(0, destination, 0);
+            smoother.output.disconnect(1, destination, 1);
+        }
     }
     
     // returning the stereo output of the smoother
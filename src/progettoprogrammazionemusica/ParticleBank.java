@@ -0,0 +1,417 @@
+package progettoprogrammazionemusica;
+import com.jsyn.Synthesizer;
+import com.jsyn.ports.UnitOutputPort;
+import com.jsyn.unitgen.UnitGenerator;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+* ParticleBank renders the sound of many particles in a single unit
+* generator. Each slot of the bank is the equivalent of a ParticleAudio
+* circuit: a sine oscillator on a harmonic of the note, an amplitude, a pan,
+* and a gain that is either a slow sine modulator (flow mode) or a decaying
+* envelope (particle mode).
+*
+* All the state is kept in primitive arrays and every block is rendered by
+* one loop per active slot into a mono buffer. Slots that are turned off are
+* skipped and cost nothing.
+*
+* The output has one channel per speaker of the SpeakerLayout. The location
+* of a slot sets its row of the gain matrix, and the block of the slot is
+* added to each channel whose gain is not zero: the mix of the bank is one
+* sparse matrix product per block, with no mixer per voice and speaker. With
+* a ring layout only two gains per slot are not zero, so a slot costs the
+* same whatever the number of speakers.
+*
+* Every parameter of a slot (pitch, amplitude, location, envelope, on and
+* off) is set by the ParameterDispatcher of ParticleSystemAudio on the audio
+* thread, between two blocks, so the arrays have a single writer and are
+* only read by the thread that writes them. Amplitude and location are
+* reached with a linear ramp, sample by sample, lasting rampFrames samples
+* (the time between two animation frames), so there are neither glitches
+* nor steps at block boundaries. A slot turned off fades out in RELEASE_TIME
+* and stops being rendered only when it is silent.
+*/
+public class ParticleBank extends UnitGenerator {
+
+    private static final int TABLE_SIZE = 4096; // sine table with linear interpolation
+    private static final float[] SINE = new float[TABLE_SIZE + 1];
+    private static final double ATTACK_TIME = 0.02; // same envelope of ParticleAudio
+    private static final double DECAY_TIME = 0.5;
+    private static final double RELEASE_TIME = 0.01; // fade out of a slot turned off
+    private static final int IDLE = 0; // envelope stages
+    private static final int ATTACK = 1;
+    private static final int DECAY = 2;
+
+    static {
+        for (int i = 0; i <= TABLE_SIZE; i++) {
+            SINE[i] = (float) Math.sin(2 * Math.PI * i / TABLE_SIZE);
+        }
+    }
+
+    public final UnitOutputPort output; // one channel per speaker
+    private final int capacity; // number of slots
+    private final SpeakerLayout layout;
+    private final int channels;
+    private final float[] mono; // block of the slot being rendered
+    private final float[] rampPosition; // by frame of the block, samples of ramp before it
+    private final float[] mix; // block of each output channel, summed over the slots
+    private final Voice[] voices;
+    private final Random rand;
+    private final boolean[] on; // slot is sounding
+    private final boolean[] releasing; // slot turned off, fading out
+    private volatile int highestOn; // slots from highestOn on are all turned off
+    private final double[] frequency; // frequency of the oscillator
+    private final float[] oscAmplitude; // amplitude of the harmonic
+    private final double[] phase; // oscillator phase between 0 and 1
+    private final float[] amplitude; // target amplitude, set from the y coordinate
+    private final boolean[] changed; // amplitude or location changed, a new ramp must start
+    private final float[] currentAmplitude; // amplitude, harmonic amplitude included, reached so far
+    private final float[] amplitudeStep; // increment per sample of the current ramp
+    // gain matrix, the row of slot v starts at v * channels
+    private final float[] targetGains; // set from the location
+    private final float[] gains; // reached so far
+    private final float[] gainSteps; // increments per sample of the current ramp
+    private final int[] mixChannels; // by row, the channels with a gain, current or target, not zero
+    private final int[] mixCount; // number of those channels
+    private final int[] rampRemaining; // samples left in the current ramp
+    private volatile int rampFrames; // length of the ramps in samples
+    private final double[] lfoFrequency; // gain modulator in flow mode
+    private final double[] lfoPhase;
+    private final boolean[] envelopeMode; // true in particle mode
+    private final boolean[] envelopeTrigger; // envelope must restart at next block
+    private final int[] envelopeStage;
+    private final float[] envelope; // current envelope value
+    private final float[] envelopeStep; // envelope increment per sample in the current stage
+
+    public ParticleBank(int capacity) {
+        this(capacity, new Random());
+    }
+
+    public ParticleBank(int capacity, Random rand) {
+        this(capacity, rand, SpeakerLayout.stereo());
+    }
+
+    public ParticleBank(int capacity, Random rand, SpeakerLayout layout) {
+        this.capacity = capacity;
+        this.rand = rand;
+        this.layout = layout;
+        channels = layout.getChannels();
+        addPort(output = new UnitOutputPort(channels, PORT_NAME_OUTPUT));
+        mono = new float[Synthesizer.FRAMES_PER_BLOCK];
+        rampPosition = new float[Synthesizer.FRAMES_PER_BLOCK];
+        mix = new float[channels * Synthesizer.FRAMES_PER_BLOCK];
+        voices = new Voice[capacity];
+        on = new boolean[capacity];
+        releasing = new boolean[capacity];
+        frequency = new double[capacity];
+        oscAmplitude = new float[capacity];
+        phase = new double[capacity];
+        amplitude = new float[capacity];
+        changed = new boolean[capacity];
+        currentAmplitude = new float[capacity];
+        amplitudeStep = new float[capacity];
+        targetGains = new float[capacity * channels];
+        gains = new float[capacity * channels];
+        gainSteps = new float[capacity * channels];
+        mixChannels = new int[capacity * channels];
+        mixCount = new int[capacity];
+        rampRemaining = new int[capacity];
+        rampFrames = Synthesizer.FRAMES_PER_BLOCK;
+        lfoFrequency = new double[capacity];
+        lfoPhase = new double[capacity];
+        envelopeMode = new boolean[capacity];
+        envelopeTrigger = new boolean[capacity];
+        envelopeStage = new int[capacity];
+        envelope = new float[capacity];
+        envelopeStep = new float[capacity];
+        for (int v = 0; v < capacity; v++) {
+            voices[v] = new Voice(v);
+            layout.gains(0.5f, 0.5f, targetGains, v * channels);
+            lfoFrequency[v] = rand.nextDouble() * 2 + 0.01;
+            lfoPhase[v] = rand.nextDouble();
+            envelopeTrigger[v] = true; // like ParticleAudio, the envelope is queued on creation
+        }
+    }
+
+    // new random gain modulators, as a newly built bank would have
+    public void randomizeModulators() {
+        for (int v = 0; v < capacity; v++) {
+            lfoFrequency[v] = rand.nextDouble() * 2 + 0.01;
+            lfoPhase[v] = rand.nextDouble();
+        }
+    }
+
+    // amplitude of a harmonic of the note, lowering the higher ones as ParticleAudio does
+    public static float harmonicAmplitude(int harmonic) {
+        return 1 / (harmonic / 5 + 1);
+    }
+
+    // voice controlling slot v
+    public Voice getVoice(int v) {
+        return voices[v];
+    }
+
+    // length in samples of the ramps towards new amplitude and pan values
+    public void setRampFrames(int frames) {
+        rampFrames = Math.max(1, frames);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public SpeakerLayout getLayout() {
+        return layout;
+    }
+
+    @Override
+    public void generate(int start, int limit) {
+        int frames = limit - start;
+        Arrays.fill(mix, 0);
+        double period = getFramePeriod();
+        float attackStep = (float) (period / ATTACK_TIME);
+        float decayStep = (float) (period / DECAY_TIME);
+        int ramp = rampFrames;
+        int highest = highestOn;
+        for (int v = 0; v < highest; v++) {
+            if (!on[v]) {
+                continue;
+            }
+            int row = v * channels;
+            // reading the parameters once per block
+            double increment = frequency[v] * period;
+            double lfoIncrement = lfoFrequency[v] * period;
+            if (changed[v] && !releasing[v]) {
+                changed[v] = false;
+                amplitudeStep[v] = (amplitude[v] * oscAmplitude[v] - currentAmplitude[v]) / ramp;
+                for (int ch = 0; ch < channels; ch++) {
+                    gainSteps[row + ch] = (targetGains[row + ch] - gains[row + ch]) / ramp;
+                }
+                rampRemaining[v] = ramp;
+                updateMixChannels(v);
+            }
+            boolean useEnvelope = envelopeMode[v];
+            if (envelopeTrigger[v]) {
+                envelopeTrigger[v] = false;
+                envelopeStage[v] = ATTACK;
+                envelopeStep[v] = (1 - envelope[v]) * attackStep;
+            }
+            int stage = envelopeStage[v];
+            float env = envelope[v];
+            float step = envelopeStep[v];
+            double p = phase[v];
+            double lp = lfoPhase[v];
+            float amp = currentAmplitude[v];
+            int remaining = rampRemaining[v];
+            float ampStep = amplitudeStep[v];
+
+            for (int i = 0; i < frames; i++) {
+                float gain;
+                if (useEnvelope) {
+                    if (stage == ATTACK) {
+                        env += step;
+                        if (env >= 1) {
+                            env = 1;
+                            stage = DECAY;
+                            step = decayStep;
+                        }
+                    } else if (stage == DECAY) {
+                        env -= step;
+                        if (env <= 0) {
+                            env = 0;
+                            stage = IDLE;
+                        }
+                    }
+                    gain = env;
+                } else {
+                    gain = sine(lp);
+                }
+                mono[i] = sine(p) * amp * gain;
+                p += increment;
+                if (p >= 1) {
+                    p -= 1;
+                }
+                lp += lfoIncrement;
+                if (lp >= 1) {
+                    lp -= 1;
+                }
+                if (remaining > 0) {
+                    amp += ampStep;
+                    remaining--;
+                }
+            }
+
+            // row v of the gain matrix times the block, ramping the gains as the amplitude
+            int ramped = rampRemaining[v] - remaining;
+            for (int i = 0; i < Synthesizer.FRAMES_PER_BLOCK; i++) {
+                rampPosition[i] = Math.min(i, ramped);
+            }
+            for (int k = 0; k < mixCount[v]; k++) {
+                int ch = mixChannels[row + k];
+                int offset = ch * Synthesizer.FRAMES_PER_BLOCK;
+                float g = gains[row + ch];
+                float gStep = gainSteps[row + ch];
+                // whole blocks and no branch, so that the JIT can unroll and vectorize the loop
+                for (int i = 0; i < Synthesizer.FRAMES_PER_BLOCK; i++) {
+                    mix[offset + i] += mono[i] * (g + gStep * rampPosition[i]);
+                }
+                gains[row + ch] = remaining > 0 ? g + gStep * ramped : targetGains[row + ch];
+            }
+            if (remaining == 0 && ramped > 0) {
+                updateMixChannels(v); // the channels the slot left have a gain of zero now
+            }
+
+            phase[v] = p;
+            lfoPhase[v] = lp;
+            envelope[v] = env;
+            envelopeStage[v] = stage;
+            envelopeStep[v] = stage == DECAY ? decayStep : step;
+            currentAmplitude[v] = amp;
+            rampRemaining[v] = remaining;
+            if (releasing[v] && remaining == 0) {
+                release(v);
+            }
+        }
+
+        for (int ch = 0; ch < channels; ch++) {
+            double[] values = output.getValues(ch);
+            int offset = ch * Synthesizer.FRAMES_PER_BLOCK;
+            for (int i = 0; i < frames; i++) {
+                values[start + i] = mix[offset + i];
+            }
+        }
+    }
+
+    // the fade out of slot v is over, it is not rendered any more
+    private void release(int v) {
+        releasing[v] = false;
+        on[v] = false;
+        currentAmplitude[v] = 0;
+        int highest = highestOn;
+        while (highest > 0 && !on[highest - 1]) {
+            highest--;
+        }
+        highestOn = highest;
+    }
+
+    // channels slot v must be mixed into: those with the current or the target gain not zero
+    private void updateMixChannels(int v) {
+        int row = v * channels;
+        int count = 0;
+        for (int ch = 0; ch < channels; ch++) {
+            if (gains[row + ch] != 0 || targetGains[row + ch] != 0) {
+                mixChannels[row + count++] = ch;
+            }
+        }
+        mixCount[v] = count;
+    }
+
+    // sine of a phase between 0 and 1, interpolated from the table
+    private static float sine(double phase) {
+        float position = (float) (phase * TABLE_SIZE);
+        int index = (int) position;
+        float fraction = position - index;
+        index &= TABLE_SIZE - 1; // rounding can give a position equal to the table size
+        return SINE[index] + (SINE[index + 1] - SINE[index]) * fraction;
+    }
+
+    /*
+    * Handle to one slot of the bank, it is the ParticleVoice given to a
+    * particle by the voice pool
+    */
+    public class Voice implements ParticleVoice {
+
+        private final int v; // index of the slot
+        private float y = 0.5f; // normalized location, kept when only x changes
+
+        Voice(int v) {
+            this.v = v;
+        }
+
+        @Override
+        public void setPitch(float color, Shade shade, int scaleRoot, Tuning tuning) {
+            int indexHarmonic = rand.nextInt(Tuning.HARMONICS);
+            // osc frequency is define as a random harmonic of the note
+            setFrequency(tuning.frequency(shade, color, scaleRoot, indexHarmonic), harmonicAmplitude(indexHarmonic));
+        }
+
+        // the pitch drawn by whoever owns the randomness, see harmonicAmplitude
+        public void setFrequency(double oscFrequency, float harmonicAmplitude) {
+            frequency[v] = oscFrequency;
+            oscAmplitude[v] = harmonicAmplitude;
+            changed[v] = true;
+        }
+
+        @Override
+        public void setAmplitude(float y, int numParticles) {
+            float mix = Math.abs(0.7f + (0.2f - 0.7f) * y); // 0.7 on top, 0.2 at the bottom
+            amplitude[v] = mix / (numParticles * 0.7f);
+            changed[v] = true;
+        }
+
+        @Override
+        public void setPan(float x) {
+            setPosition(x, y);
+        }
+
+        // the row of the gain matrix of the slot, from the layout
+        @Override
+        public void setPosition(float x, float y) {
+            this.y = y;
+            layout.gains(x, y, targetGains, v * channels);
+            changed[v] = true;
+        }
+
+        @Override
+        public void startEnvelope() {
+            envelopeMode[v] = true;
+        }
+
+        @Override
+        public void stopEnvelope() {
+            envelopeMode[v] = false;
+        }
+
+        @Override
+        public void resetEnvelope() {
+            envelopeTrigger[v] = true;
+        }
+
+        @Override
+        public void turnOn() {
+            releasing[v] = false;
+            currentAmplitude[v] = 0; // fading in from silence during the first ramp
+            System.arraycopy(targetGains, v * channels, gains, v * channels, channels);
+            changed[v] = true;
+            on[v] = true;
+            if (v >= highestOn) {
+                highestOn = v + 1;
+            }
+        }
+
+        /*
+        * The amplitude ramps to zero in RELEASE_TIME, with the gains on the
+        * speakers held, and the slot is turned off at the end of the ramp
+        */
+        @Override
+        public void turnOff() {
+            if (!on[v] || releasing[v]) {
+                return;
+            }
+            int frames = Math.max(1, (int) (RELEASE_TIME / getFramePeriod()));
+            releasing[v] = true;
+            changed[v] = false;
+            amplitudeStep[v] = -currentAmplitude[v] / frames;
+            rampRemaining[v] = frames;
+            Arrays.fill(gainSteps, v * channels, (v + 1) * channels, 0);
+        }
+
+        // turned off but still fading out, turning it on again would cut the fade
+        public boolean isReleasing() {
+            return releasing[v];
+        }
+
+    }
+
+}
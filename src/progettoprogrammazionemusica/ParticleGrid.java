@@ -0,0 +1,287 @@
+package progettoprogrammazionemusica;
+import java.util.Arrays;
+
+/*
+* ParticleGrid is a uniform grid over the particles, built on the cells of
+* the finest level of the flow field, each split in subdivision x
+* subdivision cells so that a cell is about as large as the query radius.
+* It is rebuilt every step with a counting sort: particles are counted per
+* cell, the counts become the start of each cell in one array of particle
+* indices, and the indices (with the locations) are placed. Rebuilding and
+* querying cost O(n) and no object is created.
+*
+* As long as the query radius is not larger than a cell, the particles
+* close to a particle are all in its cell or in the eight around it, so the
+* queries clamp the radius to getMaxRadius(), the smaller side of a cell.
+*
+* updateProximity() finds the particles that came closer than a radius to
+* another particle since the previous step: they are the proximity events
+* that restart the envelopes of the voices, as boing does at the edges.
+* Only the particles with a voice need them: limited to the first count
+* particles, each of them is looked up in its cells instead of comparing
+* every pair, and the cost no longer grows with the square of the density.
+*/
+public class ParticleGrid {
+
+    private final int cols;
+    private final int rows;
+    private final float aspect; // width of the area where particles move, its height is 1
+    private final float toColumn; // from x to column
+    private final float toRow; // from y to row
+    private final int[] cellStart; // first index in sorted of each cell, cellStart[cells] is the number of particles
+    private int[] sorted; // indices of the particles, cell by cell
+    private float[] sortedX; // locations in the same order, so each cell is read from contiguous memory
+    private float[] sortedY;
+    private int[] hits; // close particles found so far, in the same order
+    private int[] cellOf; // cell of each particle
+    private int[] positionOf; // index of each particle in sorted
+    private boolean[] near; // particle closer than the radius to another one at this step
+    private boolean[] wasNear; // same at the previous step
+    private boolean[] touched; // particle became near at this step
+    private int size; // number of particles in the grid
+
+    // fieldCols and fieldRows are the size of the finest flow field
+    public ParticleGrid(int fieldCols, int fieldRows, int subdivision, float aspect) {
+        cols = fieldCols * Math.max(1, subdivision);
+        rows = fieldRows * Math.max(1, subdivision);
+        this.aspect = aspect;
+        toColumn = cols / aspect;
+        toRow = rows;
+        cellStart = new int[cols * rows + 1];
+        sorted = new int[0];
+        sortedX = new float[0];
+        sortedY = new float[0];
+        hits = new int[0];
+        cellOf = new int[0];
+        positionOf = new int[0];
+        near = new boolean[0];
+        wasNear = new boolean[0];
+        touched = new boolean[0];
+    }
+
+    // placing the first n particles in the cells
+    public void rebuild(ParticleStore particles, int n) {
+        ensureCapacity(n);
+        size = n;
+        Arrays.fill(cellStart, 0);
+        for (int i = 0; i < n; i++) {
+            int column = Math.min(cols - 1, Math.max(0, (int) (particles.getX(i) * toColumn)));
+            int row = Math.min(rows - 1, Math.max(0, (int) (particles.getY(i) * toRow)));
+            int cell = column + row * cols;
+            cellOf[i] = cell;
+            cellStart[cell + 1]++;
+        }
+        for (int cell = 0; cell < cols * rows; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        // cellStart[cell] is used as the next free position while placing, then restored
+        for (int i = 0; i < n; i++) {
+            int p = cellStart[cellOf[i]]++;
+            positionOf[i] = p;
+            sorted[p] = i;
+            sortedX[p] = particles.getX(i);
+            sortedY[p] = particles.getY(i);
+        }
+        for (int cell = cols * rows; cell > 0; cell--) {
+            cellStart[cell] = cellStart[cell - 1];
+        }
+        cellStart[0] = 0;
+    }
+
+    private void ensureCapacity(int n) {
+        if (sorted.length < n) {
+            int capacity = Math.max(n, sorted.length * 2);
+            sorted = new int[capacity];
+            sortedX = new float[capacity];
+            sortedY = new float[capacity];
+            hits = new int[capacity];
+            cellOf = new int[capacity];
+            positionOf = new int[capacity];
+            near = Arrays.copyOf(near, capacity);
+            wasNear = Arrays.copyOf(wasNear, capacity);
+            touched = new boolean[capacity];
+        }
+    }
+
+    // largest radius the queries can answer, the smaller side of a cell, larger ones are clamped to it
+    public float getMaxRadius() {
+        return Math.min(aspect / cols, 1f / rows);
+    }
+
+    private float clampRadius(float radius) {
+        return Math.min(radius, getMaxRadius());
+    }
+
+    /*
+    * Finding the particles closer than radius (in the units of ParticleStore,
+    * clamped to getMaxRadius()) to another particle. A particle is touched
+    * when it is near now and was not at the previous call. Returns the
+    * number of touched particles.
+    */
+    public int updateProximity(float radius) {
+        return updateProximity(radius, size);
+    }
+
+    /*
+    * The same for the first count particles only, the others are never near
+    * (they may still be the particle another one is near to). Below the
+    * number of particles in the grid each of them is looked up in the cells
+    * around it, otherwise all the pairs of close cells are compared
+    */
+    public int updateProximity(float radius, int count) {
+        float clamped = clampRadius(radius);
+        float radiusSquared = clamped * clamped;
+        boolean[] previous = wasNear;
+        wasNear = near;
+        near = previous;
+        if (count < size) {
+            for (int i = 0; i < size; i++) {
+                near[i] = i < count && hasNeighbour(i, radiusSquared);
+            }
+        } else {
+            compareAllCells(radiusSquared);
+        }
+        int touchedCount = 0;
+        for (int i = 0; i < size; i++) {
+            touched[i] = near[i] && !wasNear[i];
+            if (touched[i]) {
+                touchedCount++;
+            }
+        }
+        return touchedCount;
+    }
+
+    /*
+    * Marking near the particles of all the close pairs. Each pair of cells is
+    * visited once: a cell is compared with itself and with the four cells
+    * after it (right, and the three below), both particles of a close pair
+    * are marked
+    */
+    private void compareAllCells(float radiusSquared) {
+        Arrays.fill(hits, 0, size, 0);
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < cols; column++) {
+                int cell = column + row * cols;
+                if (cellStart[cell] == cellStart[cell + 1]) {
+                    continue;
+                }
+                compareCell(cell, cell, radiusSquared);
+                if (column + 1 < cols) {
+                    compareCell(cell, cell + 1, radiusSquared);
+                }
+                if (row + 1 < rows) {
+                    if (column > 0) {
+                        compareCell(cell, cell + cols - 1, radiusSquared);
+                    }
+                    compareCell(cell, cell + cols, radiusSquared);
+                    if (column + 1 < cols) {
+                        compareCell(cell, cell + cols + 1, radiusSquared);
+                    }
+                }
+            }
+        }
+        for (int p = 0; p < size; p++) {
+            near[sorted[p]] = hits[p] > 0;
+        }
+    }
+
+    // true if another particle is closer than the radius to particle i, looking in the cells around it
+    private boolean hasNeighbour(int i, float radiusSquared) {
+        int self = positionOf[i];
+        float x = sortedX[self];
+        float y = sortedY[self];
+        int column = cellOf[i] % cols;
+        int row = cellOf[i] / cols;
+        for (int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++) {
+            for (int c = Math.max(0, column - 1); c <= Math.min(cols - 1, column + 1); c++) {
+                int cell = c + r * cols;
+                for (int p = cellStart[cell]; p < cellStart[cell + 1]; p++) {
+                    float dx = sortedX[p] - x;
+                    float dy = sortedY[p] - y;
+                    if (p != self && dx * dx + dy * dy < radiusSquared) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+    * Counting the close pairs between the particles of cell a and cell b (a
+    * pair is counted once if a == b). Hits are added without branches, the
+    * outcome of each comparison is too random to be predicted.
+    */
+    private void compareCell(int a, int b, float radiusSquared) {
+        int endA = cellStart[a + 1];
+        int endB = cellStart[b + 1];
+        for (int p = cellStart[a]; p < endA; p++) {
+            float x = sortedX[p];
+            float y = sortedY[p];
+            int found = 0;
+            for (int q = a == b ? p + 1 : cellStart[b]; q < endB; q++) {
+                float dx = sortedX[q] - x;
+                float dy = sortedY[q] - y;
+                int close = dx * dx + dy * dy < radiusSquared ? 1 : 0;
+                hits[q] += close;
+                found += close;
+            }
+            hits[p] += found;
+        }
+    }
+
+    /*
+    * Writing in out the particles closer than radius (clamped to
+    * getMaxRadius()) to particle i, i excluded. Returns how many they are.
+    */
+    public int neighbours(ParticleStore particles, int i, float radius, int[] out) {
+        float clamped = clampRadius(radius);
+        float radiusSquared = clamped * clamped;
+        float x = particles.getX(i);
+        float y = particles.getY(i);
+        int column = cellOf[i] % cols;
+        int row = cellOf[i] / cols;
+        int count = 0;
+        for (int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++) {
+            for (int c = Math.max(0, column - 1); c <= Math.min(cols - 1, column + 1); c++) {
+                int cell = c + r * cols;
+                for (int p = cellStart[cell]; p < cellStart[cell + 1] && count < out.length; p++) {
+                    float dx = sortedX[p] - x;
+                    float dy = sortedY[p] - y;
+                    if (sorted[p] != i && dx * dx + dy * dy < radiusSquared) {
+                        out[count++] = sorted[p];
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /*
+    * Replaying recorded proximity events instead of finding them: the first
+    * n flags tell the particles touched at this step
+    */
+    public void setTouched(boolean[] flags, int n) {
+        ensureCapacity(n);
+        size = n;
+        System.arraycopy(flags, 0, touched, 0, n);
+    }
+
+    // true if particle i came close to another particle at the last updateProximity
+    public boolean isTouched(int i) {
+        return i < size && touched[i];
+    }
+
+    public boolean isNear(int i) {
+        return i < size && near[i];
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+}
@@ -0,0 +1,61 @@
+package progettoprogrammazionemusica;
+
+/*
+* ParticleKernel moves the particles of a ParticleStore in a single pass
+* over the arrays: each particle follows the flow vector of its cell,
+* integrates its speed, bounds it to the maximum speed, moves and wraps at
+* the edges, with exactly the arithmetic of the scalar loops of
+* ParticleStore.
+*
+* The SIMD kernel is built on the jdk.incubator.vector module, which is only
+* resolved when the JVM is started with --add-modules jdk.incubator.vector.
+* It is loaded by name, so without the module nothing refers to it and the
+* particles are moved by the scalar code.
+*
+* The kernel is opt-in: it is only faster than the scalar loops with wide
+* vectors (16 lanes measured 1.1-1.5x by ParticleBenchmark, 8 lanes
+* 0.8-0.95x, 4 lanes about 0.5x), so it is used only when the width is
+* chosen with the system property progettoprogrammazionemusica.vectorBits.
+* The default build leaves VectorParticleKernel out (excludes in
+* nbproject/project.properties), to build it javac needs --add-modules
+* jdk.incubator.vector as well.
+*/
+public interface ParticleKernel {
+
+    /*
+    * Moving the first particles of the arrays, up to n. Returns how many were
+    * moved: the kernel works by whole blocks of lanes, the remaining
+    * particles are left to the caller.
+    */
+    int move(float[] x, float[] y, float[] previousX, float[] previousY,
+             float[] speedX, float[] speedY, float[] accelerationX, float[] accelerationY,
+             int n, FlowField flowField, float aspect, float force, float maxspeed);
+
+    // particles moved at once
+    int getLanes();
+
+    // true if the JVM resolved the Vector API module
+    static boolean isVectorAvailable() {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    /*
+    * SIMD kernel with the width of the system property
+    * progettoprogrammazionemusica.vectorBits (64, 128, 256 or 512 bits, 0
+    * for the width preferred by the CPU). null when the property is not set,
+    * the Vector API is not available, the kernel was not built or the width
+    * is not supported
+    */
+    static ParticleKernel vector() {
+        if (System.getProperty("progettoprogrammazionemusica.vectorBits") == null || !isVectorAvailable()) {
+            return null;
+        }
+        try {
+            return (ParticleKernel) Class.forName("progettoprogrammazionemusica.VectorParticleKernel")
+                                         .getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,322 @@
+package progettoprogrammazionemusica;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+* ParticleStore keeps the state of every particle in flat primitive arrays
+* (structure of arrays) instead of one object with four PVectors per particle.
+* Particle i is the i-th element of each array, so the physics is a sequence
+* of tight loops over indices that touch contiguous memory.
+*
+* The capacity grows on demand (doubling), new slots are initialized with a
+* random location, hue and transparency exactly as a freshly created particle.
+*
+* A step of the physics can be done by move(), that uses the SIMD
+* ParticleKernel when it is enabled (see ParticleKernel.vector()) and the
+* scalar loops otherwise, with the same results.
+*
+* Locations are resolution independent: the unit of both axes is the height
+* of the sketch, so x goes from 0 to the aspect ratio and y from 0 to 1.
+* Speeds are the ones of a 720 pixels high sketch scaled to this unit, so the
+* motion looks the same at any resolution.
+*/
+public class ParticleStore {
+
+    private static final int DEFAULT_CAPACITY = 128;
+    private static final float REFERENCE_HEIGHT = 720; // height in pixels for which speeds are defined
+
+    private final float maxspeed; // maximum particle speed
+    private final float force; // magnitude of the acceleration imprinted by a flow vector
+    private final float transparencyIncrement;
+    private final Random rand;
+    private final float aspect; // width of the area where particles move, its height is 1
+    private int capacity; // number of allocated slots
+    private int size; // number of initialized particles (size <= capacity)
+    private float[] x; // particle location
+    private float[] y;
+    private float[] previousX; // particle location at previous frame
+    private float[] previousY;
+    private float[] speedX; // particle speed
+    private float[] speedY;
+    private float[] accelerationX; // acceleration imprinted by flow field vectors
+    private float[] accelerationY;
+    private float[] hue; // particle color hue between 0 and 1
+    private float[] color; // particle color hue between 0 and 360
+    private float[] transparency; // particle alpha / transparency
+    private ParticleKernel kernel; // moves blocks of particles in SIMD lanes, null to use the scalar loops
+
+    public ParticleStore(float aspect) {
+        this(aspect, DEFAULT_CAPACITY, new Random());
+    }
+
+    public ParticleStore(float aspect, int initialCapacity, Random rand) {
+        this.aspect = aspect;
+        this.rand = rand;
+        maxspeed = 4 / REFERENCE_HEIGHT;
+        force = 1 / REFERENCE_HEIGHT;
+        transparencyIncrement = 0.01f;
+        capacity = Math.max(1, initialCapacity);
+        x = new float[capacity];
+        y = new float[capacity];
+        previousX = new float[capacity];
+        previousY = new float[capacity];
+        speedX = new float[capacity];
+        speedY = new float[capacity];
+        accelerationX = new float[capacity];
+        accelerationY = new float[capacity];
+        hue = new float[capacity];
+        color = new float[capacity];
+        transparency = new float[capacity];
+        size = 0;
+        kernel = ParticleKernel.vector();
+    }
+
+    /*
+    * Making sure that at least n particles exist. Arrays are reallocated only
+    * when n exceeds the capacity, then all the new particles are initialized
+    * with a random location, hue and transparency.
+    */
+    public void ensureSize(int n, Shade shade) {
+        if (n <= size) {
+            return;
+        }
+        if (n > capacity) {
+            int newCapacity = capacity;
+            while (newCapacity < n) {
+                newCapacity *= 2;
+            }
+            x = Arrays.copyOf(x, newCapacity);
+            y = Arrays.copyOf(y, newCapacity);
+            previousX = Arrays.copyOf(previousX, newCapacity);
+            previousY = Arrays.copyOf(previousY, newCapacity);
+            speedX = Arrays.copyOf(speedX, newCapacity);
+            speedY = Arrays.copyOf(speedY, newCapacity);
+            accelerationX = Arrays.copyOf(accelerationX, newCapacity);
+            accelerationY = Arrays.copyOf(accelerationY, newCapacity);
+            hue = Arrays.copyOf(hue, newCapacity);
+            color = Arrays.copyOf(color, newCapacity);
+            transparency = Arrays.copyOf(transparency, newCapacity);
+            capacity = newCapacity;
+        }
+        for (int i = size; i < n; i++) {
+            randomize(i, shade);
+        }
+        size = n;
+    }
+
+    /*
+    * Forgetting all the particles without releasing the arrays: the next
+    * ensureSize gives new random values to the slots it needs
+    */
+    public void clear() {
+        size = 0;
+    }
+
+    // giving particle i a random location, hue and transparency and no speed
+    private void randomize(int i, Shade shade) {
+        x[i] = rand.nextFloat() * aspect; // random initial location
+        y[i] = rand.nextFloat();
+        previousX[i] = x[i]; // previous location initialized with the location
+        previousY[i] = y[i];
+        speedX[i] = 0;
+        speedY[i] = 0;
+        accelerationX[i] = 0;
+        accelerationY[i] = 0;
+        hue[i] = rand.nextFloat(); // initial random hue
+        transparency[i] = rand.nextFloat(); // intial random alpha
+        setColor(i, shade);
+    }
+
+    /*
+    * followFlowField associates each of the first n particles to the flow
+    * vector of the cell it falls into and adds it to the particle acceleration
+    */
+    public void followFlowField(FlowField flowField, int n) {
+        followFlowField(flowField, 0, n);
+    }
+
+    private void followFlowField(FlowField flowField, int from, int to) {
+        int cols = flowField.getCols();
+        int rows = flowField.getRows();
+        float[] cos = flowField.getCos();
+        float[] sin = flowField.getSin();
+        float toColumn = (cols - 1) / aspect; // mapping coordinates to the cell (row, column)
+        float toRow = rows - 1;
+        for (int i = from; i < to; i++) {
+            int column = (int) (x[i] * toColumn);
+            int row = (int) (y[i] * toRow);
+            int index = column + row * cols;
+            accelerationX[i] += cos[index] * force;
+            accelerationY[i] += sin[index] * force;
+        }
+    }
+
+    /*
+    * updating the speed of the first n particles using their acceleration,
+    * bounding it to the maximum speed and moving the particles
+    */
+    public void update(int n) {
+        update(0, n);
+    }
+
+    private void update(int from, int to) {
+        float maxSquared = maxspeed * maxspeed;
+        for (int i = from; i < to; i++) {
+            float sx = speedX[i] + accelerationX[i];
+            float sy = speedY[i] + accelerationY[i];
+            float magSquared = sx * sx + sy * sy;
+            if (magSquared > maxSquared) {
+                float scale = maxspeed / (float) Math.sqrt(magSquared);
+                sx *= scale;
+                sy *= scale;
+            }
+            speedX[i] = sx;
+            speedY[i] = sy;
+            x[i] += sx;
+            y[i] += sy;
+            accelerationX[i] = 0;
+            accelerationY[i] = 0;
+        }
+    }
+
+    /*
+    * When a particle crosses an edge of the sketch it reappears on the other
+    * side, and its previous location is moved with it so that no line is
+    * drawn across the whole sketch in flow mode.
+    */
+    public void edgesCollision(int n) {
+        edgesCollision(0, n);
+    }
+
+    private void edgesCollision(int from, int to) {
+        for (int i = from; i < to; i++) {
+            boolean wrapped = false;
+            if (x[i] > aspect) {
+                x[i] = 0;
+                wrapped = true;
+            }
+            if (x[i] < 0) {
+                x[i] = aspect;
+                wrapped = true;
+            }
+            if (y[i] > 1) {
+                y[i] = 0;
+                wrapped = true;
+            }
+            if (y[i] < 0) {
+                y[i] = 1;
+                wrapped = true;
+            }
+            if (wrapped) {
+                previousX[i] = x[i];
+                previousY[i] = y[i];
+            }
+        }
+    }
+
+    /*
+    * One step of the first n particles: followFlowField, update and
+    * edgesCollision. The kernel, if any, moves them by blocks of lanes and
+    * the scalar loops move the last ones
+    */
+    public void move(FlowField flowField, int n) {
+        int moved = 0;
+        if (kernel != null) {
+            moved = kernel.move(x, y, previousX, previousY, speedX, speedY, accelerationX, accelerationY,
+                                n, flowField, aspect, force, maxspeed);
+        }
+        followFlowField(flowField, moved, n);
+        update(moved, n);
+        edgesCollision(moved, n);
+    }
+
+    // null moves the particles with the scalar loops only
+    public void setKernel(ParticleKernel kernel) {
+        this.kernel = kernel;
+    }
+
+    public ParticleKernel getKernel() {
+        return kernel;
+    }
+
+    // updating previous location and transparency of particle i once it has been drawn
+    public void advance(int i) {
+        previousX[i] = x[i];
+        previousY[i] = y[i];
+        transparency[i] += transparencyIncrement;
+    }
+
+    // advance for the first n particles
+    public void advanceAll(int n) {
+        System.arraycopy(x, 0, previousX, 0, n);
+        System.arraycopy(y, 0, previousY, 0, n);
+        for (int i = 0; i < n; i++) {
+            transparency[i] += transparencyIncrement;
+        }
+    }
+
+    /*
+    * Writing particle i as a recorded session holds it: a replay moves the
+    * particles without the physics. The hue is left as it is, color is the
+    * one already mapped by the shade
+    */
+    public void set(int i, float x, float y, float previousX, float previousY, float color, float transparency) {
+        this.x[i] = x;
+        this.y[i] = y;
+        this.previousX[i] = previousX;
+        this.previousY[i] = previousY;
+        this.color[i] = color;
+        this.transparency[i] = transparency;
+    }
+
+    // Map the hue of particle i from (0, 1) to a range of colors defined by the shade parameter
+    public final void setColor(int i, Shade shade) {
+        color[i] = shade.color(hue[i]);
+    }
+
+    public float getX(int i) {
+        return x[i];
+    }
+
+    public float getY(int i) {
+        return y[i];
+    }
+
+    // x between 0 and 1 whatever the aspect ratio
+    public float getNormalizedX(int i) {
+        return x[i] / aspect;
+    }
+
+    public float getPreviousX(int i) {
+        return previousX[i];
+    }
+
+    public float getPreviousY(int i) {
+        return previousY[i];
+    }
+
+    public float getColor(int i) {
+        return color[i];
+    }
+
+    public float getHue(int i) {
+        return hue[i];
+    }
+
+    public float getTransparency(int i) {
+        return transparency[i];
+    }
+
+    public float getAspect() {
+        return aspect;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+}
@@ -1,55 +1,704 @@
 package progettoprogrammazionemusica;
 import com.jsyn.JSyn;
 import com.jsyn.Synthesizer;
-import com.jsyn.unitgen.LineOut;
+import com.jsyn.devices.AudioDeviceManager;
+import com.jsyn.ports.UnitInputPort;
+import com.jsyn.ports.UnitOutputPort;
+import com.jsyn.unitgen.ChannelOut;
+import com.jsyn.unitgen.UnitGenerator;
+import java.util.Arrays;
 import java.util.Random;
 
 public class ParticleSystemAudio {
-    
+
     private final Synthesizer synth;
-    private final LineOut lineOut;
-    private final PingPongDelay ppd;
+    private final SpeakerLayout layout; // one output channel per speaker
+    private final ChannelOut[] channelOuts; // sending each channel to the audio device
+    private int frameRate; // sample rate the synthesizer is started at
+    private double outputLatency; // seconds of audio in the device buffer
+    private int framesPerBuffer; // frames of the device buffer, when set it replaces outputLatency
+    private final AudioHealth health; // block times, jitter and dropouts measured on the audio thread
+    private final BlockProbe probe; // run after all the other units of each block
+    private volatile long firstSoundAt; // System.nanoTime of the first block not silent, 0 before
+    private final FusedPingPongDelay ppd;
     private final int[] roots = {36, 37, 38, 39, 40, 41, 42, 43, 44, 45, 46, 47};
-    private final int root;
-    Random rand = new Random();
-    Chorus chorus;
-    
+    private int root;
+    private volatile Tuning tuning; // frequencies of the notes of each shade, read when a voice changes pitch
+    private final Random rand; // root, effects and voices, one seed gives the same sounds to the same calls
+    FusedChorus chorus;
+
+    /*
+    * Voice pool: a voice is either a ParticleAudio circuit or a slot of the
+    * additive bank. Only voices assigned to a particle are turned on, the
+    * others are not rendered and so consume no DSP. Voices are built on
+    * demand up to poolSize and reused when particles release them.
+    * Each voice is identified by its slot, the index in voices.
+    */
+    private final ParticleBank bank; // renders all the voices in one unit, null when voices are circuits
+    private final int poolSize; // maximum number of voices
+    private final ParticleVoice[] voices; // built voices, by slot
+    private final int[] slotOf; // slot of the voice assigned to each particle, -1 if none
+    private final long[] acquiredAt; // when each particle got its voice, to steal the oldest one
+    private final int[] freeSlots; // stack of built voices not assigned to any particle
+    private int numFree; // size of the freeSlots stack
+    private int builtVoices; // number of voices built so far
+    private int activeVoices; // number of voices assigned to a particle
+    private int allowedVoices; // maximum number of active voices given the CPU budget
+    private int voiceLimit; // maximum number of active voices given by the quality level
+    private double cpuBudget; // maximum synthesizer usage, between 0 and 1
+    private boolean adaptiveVoices; // the allowed voices follow the usage, otherwise they are the voice limit or setAllowedVoices
+    private long acquisitions; // counter used as time of acquisition
+
+    /*
+    * Amplitude and pan of the voices are not written by the animation thread:
+    * it publishes one snapshot per frame on the channel and the dispatcher,
+    * run by the synthesizer at the start of each block, applies it. The
+    * slots of the bank are not written by this side at all: turning them on
+    * and off, their pitch and their envelope are changes of the voice state
+    * of the channel, which reach the audio thread with the next frame. The
+    * methods changing the voices publish it themselves, acquireVoice and
+    * releaseVoice alone leave it to the next of them or to updateVoices.
+    */
+    private final ParameterChannel parameters;
+    private final ParameterDispatcher dispatcher;
+
+    // voices are ParticleAudio circuits
     public ParticleSystemAudio(int n) {
-        
+        this(n, false);
+    }
+
+    /*
+    * n is the size of the voice pool. With additiveBank all the voices are
+    * rendered by a single ParticleBank instead of one circuit each.
+    */
+    public ParticleSystemAudio(int n, boolean additiveBank) {
+        this(n, additiveBank, SpeakerLayout.stereo());
+    }
+
+    /*
+    * The output has one channel per speaker of layout, the location of each
+    * particle sets the gains of its voice on the speakers. Only the additive
+    * bank renders more than two channels.
+    */
+    public ParticleSystemAudio(int n, boolean additiveBank, SpeakerLayout layout) {
+        this(n, additiveBank, layout, new Random());
+    }
+
+    /*
+    * Everything random in the audio (the root, the delay times, the chorus
+    * phases, the modulators and the harmonics of the voices) is drawn from
+    * rand: with a Random of the same seed, the same sequence of calls gives
+    * the same sounds, as a replay of a recorded session needs
+    */
+    public ParticleSystemAudio(int n, boolean additiveBank, SpeakerLayout layout, Random rand) {
+        this.rand = rand;
+        int channels = layout.getChannels();
+        if (channels != 2 && !additiveBank) {
+            throw new IllegalArgumentException("the " + layout + " layout needs the additive bank");
+        }
+        this.layout = layout;
+
         root = roots[rand.nextInt(12)];
-        
+        tuning = Tuning.STANDARD;
+
         synth = JSyn.createSynthesizer();
-        synth.add(lineOut = new LineOut());
-        synth.add(ppd = new PingPongDelay());
-        synth.add(chorus = new Chorus());
-
-        ppd.output.connect(0, chorus.input, 0);
-        ppd.output.connect(1, chorus.input, 1);
-            
-        chorus.output.connect(0, lineOut.input, 0);
-        chorus.output.connect(1, lineOut.input, 1);
-        
-        //ppdelay output...
-    }
-    
-    public void addParticleAudio(ParticleAudio particle) {
-        synth.add(particle);
-          particle.getOutput().connect(0, ppd.input, 0);
-          particle.getOutput().connect(1, ppd.input, 1);
-    }
-    
+        // the effects are single units, each one loop over ring buffers
+        synth.add(ppd = new FusedPingPongDelay(channels, rand));
+        synth.add(chorus = new FusedChorus(channels, rand));
+        channelOuts = new ChannelOut[channels];
+        for (int ch = 0; ch < channels; ch++) {
+            synth.add(channelOuts[ch] = new ChannelOut());
+            channelOuts[ch].setChannelIndex(ch);
+            ppd.output.connect(ch, chorus.input, ch);
+            chorus.output.connect(ch, channelOuts[ch].input, 0);
+        }
+
+        if (additiveBank) {
+            synth.add(bank = new ParticleBank(n, rand, layout));
+            for (int ch = 0; ch < channels; ch++) {
+                bank.output.connect(ch, ppd.input, ch);
+            }
+        } else {
+            bank = null;
+        }
+
+        poolSize = n;
+        voices = new ParticleVoice[n];
+        slotOf = new int[n];
+        Arrays.fill(slotOf, -1);
+        acquiredAt = new long[n];
+        freeSlots = new int[n];
+        allowedVoices = n;
+        voiceLimit = n;
+        cpuBudget = 0.7;
+        adaptiveVoices = true;
+
+        parameters = new ParameterChannel(n);
+        synth.add(dispatcher = new ParameterDispatcher());
+
+        frameRate = 44100;
+        outputLatency = 0.04; // the default of JSyn on JavaSound
+        health = new AudioHealth(synth);
+        synth.add(probe = new BlockProbe(channels));
+        for (int ch = 0; ch < channels; ch++) {
+            chorus.output.connect(ch, probe.input, ch);
+        }
+    }
+
+    /*
+    * Giving a voice to particle i (i < poolSize). A released voice is reused
+    * if available, otherwise a new one is built. When the pool is exhausted or
+    * the CPU budget does not allow more voices, the oldest voice is stolen
+    * from its particle. null when no voice is allowed at all, so that there
+    * is none to steal.
+    */
+    public ParticleVoice acquireVoice(int i, float color, Shade shade, float x, float y, Mode mode) {
+        if (slotOf[i] >= 0) {
+            return voices[slotOf[i]];
+        }
+        if (activeVoices >= allowedVoices || (numFree == 0 && builtVoices == poolSize)) {
+            int oldest = oldestParticle();
+            if (oldest < 0) {
+                return null;
+            }
+            releaseVoice(oldest);
+        }
+        int slot;
+        ParticleVoice voice;
+        if (numFree > 0) {
+            slot = freeSlots[--numFree];
+            voice = voices[slot];
+        } else {
+            slot = builtVoices++;
+            voice = null;
+        }
+        if (bank != null) {
+            if (voice == null) {
+                voice = voices[slot] = bank.getVoice(slot);
+            }
+            int harmonic = rand.nextInt(Tuning.HARMONICS);
+            parameters.current().turnOn(slot, tuning.frequency(shade, color, root, harmonic),
+                                        ParticleBank.harmonicAmplitude(harmonic), mode == Mode.PARTICLE, x, y);
+        } else {
+            if (voice == null) {
+                ParticleAudio circuit = new ParticleAudio(color, shade, x, y, poolSize, root, tuning, mode, rand);
+                synth.add(circuit);
+                circuit.setDestination(ppd.input);
+                voice = voices[slot] = circuit;
+            } else {
+                // JSyn ports can be set from any thread, connections are made by the synthesizer
+                voice.setPitch(color, shade, root, tuning);
+                voice.setAmplitude(y, poolSize);
+                voice.setPosition(x, y);
+                applyMode(voice, mode);
+            }
+            voice.turnOn(); // connecting the voice
+        }
+        slotOf[i] = slot;
+        acquiredAt[i] = acquisitions++;
+        activeVoices++;
+        return voice;
+    }
+
+    // giving back the voice of particle i to the pool, it is turned off and stops consuming DSP
+    public void releaseVoice(int i) {
+        int slot = slotOf[i];
+        if (slot < 0) {
+            return;
+        }
+        if (bank != null) {
+            parameters.current().turnOff(slot);
+        } else {
+            voices[slot].turnOff();
+        }
+        slotOf[i] = -1;
+        freeSlots[numFree++] = slot;
+        activeVoices--;
+    }
+
+    // particle that holds its voice since the longest time
+    private int oldestParticle() {
+        int oldest = -1;
+        for (int i = 0; i < poolSize; i++) {
+            if (slotOf[i] >= 0 && (oldest < 0 || acquiredAt[i] < acquiredAt[oldest])) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+
+    /*
+    * Called once per frame: when the synthesizer usage exceeds the budget
+    * the number of allowed voices is lowered and the oldest voice is stolen,
+    * when the usage is well below the budget one more voice is allowed.
+    * Disabled with setAdaptiveVoices(false) when another controller, such
+    * as a QualityGovernor, moves the voice limit on the same usage.
+    */
+    public void updateVoiceBudget() {
+        if (!synth.isRealTime() || !adaptiveVoices) {
+            return; // rendering offline there is no deadline to meet
+        }
+        double usage = synth.getUsage();
+        if (usage > cpuBudget && activeVoices > 1) {
+            allowVoices(activeVoices - 1);
+        } else if (usage < cpuBudget * 0.8 && allowedVoices < voiceLimit) {
+            allowVoices(allowedVoices + 1);
+        }
+    }
+
+    /*
+    * Number of voices the CPU budget allows, lowering it below the active
+    * voices steals the oldest ones. Set by updateVoiceBudget, or by a replay
+    * to the recorded value since offline there is no budget
+    */
+    public void setAllowedVoices(int allowed) {
+        allowVoices(allowed);
+        publishVoices();
+    }
+
+    private void allowVoices(int allowed) {
+        allowedVoices = Math.max(0, allowed);
+        while (activeVoices > allowedVoices) {
+            releaseVoice(oldestParticle());
+        }
+    }
+
+    /*
+    * false leaves the allowed voices to setVoiceLimit and setAllowedVoices,
+    * e.g. to a QualityGovernor or to the values of a recorded session
+    */
+    public void setAdaptiveVoices(boolean adaptive) {
+        adaptiveVoices = adaptive;
+    }
+
+    public int getAllowedVoices() {
+        return allowedVoices;
+    }
+
+    /*
+    * Lowering or raising the number of voices that can sound, between 1 and
+    * poolSize. The oldest voices beyond the limit are stolen at once. Not
+    * adaptive, the allowed voices are the limit
+    */
+    public void setVoiceLimit(int limit) {
+        voiceLimit = Math.max(1, Math.min(poolSize, limit));
+        allowedVoices = adaptiveVoices ? Math.min(allowedVoices, voiceLimit) : voiceLimit;
+        while (activeVoices > voiceLimit) {
+            releaseVoice(oldestParticle());
+        }
+        publishVoices();
+    }
+
+    public int getVoiceLimit() {
+        return voiceLimit;
+    }
+
+    // fraction of the block period the synthesizer spends rendering, 0 when not in real time
+    public double getUsage() {
+        return synth.isRealTime() && synth.isRunning() ? synth.getUsage() : 0;
+    }
+
+    // true if a voice can be given to a particle without stealing another one
+    public boolean canAcquire() {
+        return activeVoices < allowedVoices && (numFree > 0 || builtVoices < poolSize);
+    }
+
+    // voice of particle i, null if it has none
+    public ParticleVoice getVoice(int i) {
+        return slotOf[i] >= 0 ? voices[slotOf[i]] : null;
+    }
+
+    // slot of the voice of particle i, -1 if it has none
+    public int getSlot(int i) {
+        return slotOf[i];
+    }
+
+    // switching the envelope of all the built voices, assigned or not
+    public void setMode(Mode mode) {
+        for (int slot = 0; slot < builtVoices; slot++) {
+            if (bank != null) {
+                parameters.current().setEnvelope(slot, mode == Mode.PARTICLE);
+            } else {
+                applyMode(voices[slot], mode);
+            }
+        }
+        publishVoices();
+    }
+
+    /*
+    * Giving a voice to the first n particles (at most poolSize) and returning
+    * to the pool the voices of the following ones
+    */
+    public void setSoundingParticles(ParticleStore particles, int n, Shade shade, Mode mode) {
+        int numSounding = Math.min(n, poolSize);
+        for (int i = numSounding; i < poolSize; i++) {
+            releaseVoice(i);
+        }
+        for (int i = 0; i < numSounding && canAcquire(); i++) {
+            acquireVoice(i, particles.getColor(i), shade, particles.getNormalizedX(i), particles.getY(i), mode);
+        }
+        publishVoices();
+    }
+
+    public void updateVoices(ParticleStore particles, int n, Shade shade, Mode mode) {
+        updateVoices(particles, null, n, shade, mode);
+    }
+
+    /*
+    * Called once per frame after the particles moved: the voice budget is
+    * updated, particles whose voice was stolen get it back when possible,
+    * and the locations of the sounding particles are published to the
+    * audio thread together with their proximity events (grid can be null).
+    */
+    public void updateVoices(ParticleStore particles, ParticleGrid grid, int n, Shade shade, Mode mode) {
+        updateVoiceBudget();
+        ParameterChannel.Frame frame = beginParameters(mode);
+        int numSounding = Math.min(n, poolSize);
+        for (int i = 0; i < numSounding; i++) {
+            float x = particles.getNormalizedX(i);
+            float y = particles.getY(i);
+            if (slotOf[i] < 0 && canAcquire()) {
+                acquireVoice(i, particles.getColor(i), shade, x, y, mode);
+            }
+            if (slotOf[i] >= 0) {
+                frame.add(slotOf[i], x, y, grid != null && grid.isTouched(i));
+            }
+        }
+        publishParameters(); // the audio thread applies the whole frame at once
+    }
+
+    // changing the pitch of the sounding particles after their color changed
+    public void updatePitches(ParticleStore particles, Shade shade) {
+        for (int i = 0; i < poolSize; i++) {
+            int slot = slotOf[i];
+            if (slot < 0) {
+                continue;
+            }
+            if (bank != null) {
+                int harmonic = rand.nextInt(Tuning.HARMONICS);
+                parameters.current().setPitch(slot, tuning.frequency(shade, particles.getColor(i), root, harmonic),
+                                              ParticleBank.harmonicAmplitude(harmonic));
+            } else {
+                voices[slot].setPitch(particles.getColor(i), shade, root, tuning);
+            }
+        }
+        publishVoices();
+    }
+
+    /*
+    * Animation thread: the frame in which amplitude and pan of the sounding
+    * voices are written, by slot. It is sent with publishParameters().
+    */
+    public ParameterChannel.Frame beginParameters(Mode mode) {
+        ParameterChannel.Frame frame = parameters.begin();
+        frame.setMode(mode);
+        return frame;
+    }
+
+    public void publishParameters() {
+        parameters.publish();
+    }
+
+    // a frame with only the state of the voices, the locations are left as they are
+    private void publishVoices() {
+        if (bank != null) {
+            parameters.begin();
+            parameters.publish();
+        }
+    }
+
+    private void applyMode(ParticleVoice voice, Mode mode) {
+        if (mode == Mode.PARTICLE) {
+            voice.startEnvelope();
+        } else if (mode == Mode.FLOW) {
+            voice.stopEnvelope();
+        }
+    }
+
+    // maximum synthesizer usage (between 0 and 1) before voices are stolen
+    public void setCpuBudget(double budget) {
+        cpuBudget = budget;
+    }
+
+    public int getActiveVoices() {
+        return activeVoices;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /*
+    * Starting again with the objects already built: every voice goes back
+    * to the pool, a new root and new delay times are drawn, and the bank
+    * gets new gain modulators. The synthesizer keeps running, so the
+    * delay tails fade out while the new particles start.
+    */
+    public void reset() {
+        for (int i = 0; i < poolSize; i++) {
+            releaseVoice(i);
+        }
+        allowedVoices = voiceLimit;
+        root = roots[rand.nextInt(12)];
+        ppd.randomizeDelayTimes();
+        if (bank != null) {
+            bank.randomizeModulators();
+        }
+        publishVoices();
+    }
+
+    public boolean isRunning() {
+        return synth.isRunning();
+    }
+
+    /*
+    * Starting the synthesizer on the default device, with as many output
+    * channels as the speakers, at frameRate and with the device buffer given
+    * by setFramesPerBuffer or setOutputLatency. JSyn itself always renders
+    * 64 frames per write to the device, the device buffer sets the latency
+    * and how late a write can be before a dropout.
+    */
     public void startAudioSystem() {
-        synth.start();
-        lineOut.start();
+        synth.getAudioDeviceManager().setSuggestedOutputLatency(getOutputLatency());
+        ppd.prepare(frameRate);
+        chorus.prepare(frameRate);
+        synth.start(frameRate, AudioDeviceManager.USE_DEFAULT_DEVICE, 0,
+                    AudioDeviceManager.USE_DEFAULT_DEVICE, layout.getChannels());
+        health.reset((int) Math.round(getOutputLatency() * frameRate));
+        dispatcher.start(); // started before the channel outputs so it runs first in each block
+        for (ChannelOut channelOut : channelOuts) {
+            channelOut.start();
+        }
+        probe.start(); // started last so it runs after the whole graph
     }
-    
+
+    /*
+    * Starting the synthesizer without audio device and not in real time:
+    * blocks are rendered only when the caller advances the synthesizer time
+    * with sleepUntil, as fast as the CPU allows. Whoever reads getOutput()
+    * must be started to pull the audio.
+    */
+    public void startOfflineAudioSystem(int frameRate) {
+        synth.setRealTime(false);
+        ppd.prepare(frameRate);
+        chorus.prepare(frameRate);
+        synth.start(frameRate, -1, 0, -1, 0);
+        health.reset(0); // no device, no dropouts
+        dispatcher.start();
+        probe.start(); // it pulls the graph, whoever reads getOutput() gets the same block
+    }
+
     public void stopAudioSystem() {
         synth.stop();
-        lineOut.stop();
+        for (ChannelOut channelOut : channelOuts) {
+            channelOut.stop();
+        }
+        dispatcher.stop();
+        probe.stop();
+    }
+
+    // sample rate used by the next startAudioSystem()
+    public void setFrameRate(int rate) {
+        frameRate = rate;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    // seconds of audio the device buffer holds from the next startAudioSystem()
+    public void setOutputLatency(double seconds) {
+        outputLatency = Math.max(Synthesizer.FRAMES_PER_BLOCK / (double) frameRate, seconds);
+        framesPerBuffer = 0;
+    }
+
+    // frames the device buffer holds from the next startAudioSystem(), the same as a latency of frames / frameRate
+    public void setFramesPerBuffer(int frames) {
+        framesPerBuffer = Math.max(0, frames);
+    }
+
+    // latency asked to the device in seconds
+    public double getOutputLatency() {
+        return framesPerBuffer > 0 ? (double) framesPerBuffer / frameRate : outputLatency;
+    }
+
+    public AudioHealth getHealth() {
+        return health;
     }
-    
+
+    // System.nanoTime when the first block with sound was rendered, 0 if none yet
+    public long getFirstSoundNanos() {
+        return firstSoundAt;
+    }
+
+    // output of the effects chain, one channel per speaker, the same signal sent to the audio device
+    public UnitOutputPort getOutput() {
+        return chorus.output;
+    }
+
+    public SpeakerLayout getLayout() {
+        return layout;
+    }
+
+    public Synthesizer getSynthesizer() {
+        return synth;
+    }
+
+    /*
+    * Changing the scales the colors are mapped onto. Voices already sounding
+    * keep their pitch until updatePitches is called
+    */
+    public void setTuning(Tuning tuning) {
+        this.tuning = tuning;
+    }
+
+    public Tuning getTuning() {
+        return tuning;
+    }
+
     public int getRoot() {
         return root;
     }
-    
+
+    /*
+    * Unit run by the synthesizer at the start of each block on the audio
+    * thread. It takes the last snapshot published by the animation thread and
+    * applies it to the voices. For the additive bank the new values are
+    * reached with a per-sample ramp lasting the time between two snapshots,
+    * and the voice state of the snapshot turns the slots on and off. A slot
+    * given to another particle starts its new note only when the old one has
+    * faded out: meanwhile the frame is kept and checked again at each block.
+    */
+    private class ParameterDispatcher extends UnitGenerator {
+
+        private long lastFrameCount; // synthesizer frame count of the previous snapshot
+        private final boolean[] playing = new boolean[poolSize]; // slots of the bank turned on
+        private final int[] notes = new int[poolSize]; // note each slot is playing
+        private ParameterChannel.Frame voiceFrame; // last frame read, owned by this side until the next one
+        private int waiting; // slots whose new note waits for the old one to fade out
+
+        @Override
+        public void generate(int start, int limit) {
+            health.blockStarted();
+            ParameterChannel.Frame frame = parameters.consume();
+            if (frame == null) {
+                if (waiting > 0) {
+                    startVoices(voiceFrame);
+                }
+                return;
+            }
+            if (frame.size() > 0) {
+                // the ramps last until the next frame of locations, frames of voice state only are not counted
+                long now = synth.getFrameCount();
+                if (bank != null && lastFrameCount > 0) {
+                    bank.setRampFrames((int) Math.min(now - lastFrameCount, getFrameRate() / 10));
+                }
+                lastFrameCount = now;
+            }
+            if (bank != null) {
+                voiceFrame = frame;
+                applyVoices(frame);
+            }
+            Mode mode = frame.getMode();
+            for (int k = 0; k < frame.size(); k++) {
+                if (bank != null && !playing[frame.getSlot(k)]) {
+                    continue; // not started yet
+                }
+                ParticleVoice voice = voices[frame.getSlot(k)];
+                float x = frame.getX(k);
+                float y = frame.getY(k);
+                voice.setAmplitude(y, poolSize);
+                voice.setPosition(x, y);
+                voice.boing(mode, x, y);
+                if (frame.isTouched(k)) {
+                    voice.touch(mode);
+                }
+            }
+        }
+
+        // a slot whose note changed is turned off and on again, from the location its particle had then
+        private void applyVoices(ParameterChannel.Frame frame) {
+            for (int slot = 0; slot < poolSize; slot++) {
+                if (!playing[slot]) {
+                    continue;
+                }
+                ParticleBank.Voice voice = bank.getVoice(slot);
+                if (!frame.isSounding(slot) || frame.getNote(slot) != notes[slot]) {
+                    voice.turnOff();
+                    playing[slot] = false;
+                    continue;
+                }
+                voice.setFrequency(frame.getFrequency(slot), frame.getHarmonicAmplitude(slot));
+                applyEnvelope(voice, frame.hasEnvelope(slot));
+            }
+            startVoices(frame);
+        }
+
+        // turning on the slots sounding in frame that are silent, the others wait
+        private void startVoices(ParameterChannel.Frame frame) {
+            waiting = 0;
+            for (int slot = 0; slot < poolSize; slot++) {
+                if (playing[slot] || !frame.isSounding(slot)) {
+                    continue;
+                }
+                ParticleBank.Voice voice = bank.getVoice(slot);
+                if (voice.isReleasing()) {
+                    waiting++;
+                    continue;
+                }
+                voice.setFrequency(frame.getFrequency(slot), frame.getHarmonicAmplitude(slot));
+                applyEnvelope(voice, frame.hasEnvelope(slot));
+                voice.setAmplitude(frame.getStartY(slot), poolSize);
+                voice.setPosition(frame.getStartX(slot), frame.getStartY(slot));
+                voice.turnOn();
+                playing[slot] = true;
+                notes[slot] = frame.getNote(slot);
+            }
+        }
+
+        private void applyEnvelope(ParticleVoice voice, boolean envelope) {
+            if (envelope) {
+                voice.startEnvelope();
+            } else {
+                voice.stopEnvelope();
+            }
+        }
+
+    }
+
+    /*
+    * Unit started after all the others: its input is the output of the
+    * effects chain, so when it runs the whole block has been rendered
+    */
+    private class BlockProbe extends UnitGenerator {
+
+        private final UnitInputPort input;
+
+        BlockProbe(int channels) {
+            addPort(input = new UnitInputPort(channels, PORT_NAME_INPUT));
+        }
+
+        @Override
+        public void generate(int start, int limit) {
+            health.blockEnded();
+            if (firstSoundAt == 0 && isSounding(start, limit)) {
+                firstSoundAt = System.nanoTime();
+            }
+        }
+
+        // only checked until the first sound
+        private boolean isSounding(int start, int limit) {
+            for (int ch = 0; ch < input.getNumParts(); ch++) {
+                double[] values = input.getValues(ch);
+                for (int i = start; i < limit; i++) {
+                    if (values[i] != 0) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+    }
+
 }
@@ -0,0 +1,55 @@
+package progettoprogrammazionemusica;
+
+/*
+* The sound of one particle. It is implemented either by a ParticleAudio
+* circuit or by a slot of a ParticleBank, the voice pool of
+* ParticleSystemAudio hands out voices through this interface.
+*/
+public interface ParticleVoice {
+
+    // frequency from the particle color, the shade and the root of the scale, looked up in tuning
+    void setPitch(float color, Shade shade, int scaleRoot, Tuning tuning);
+
+    // amplitude from the normalized y coordinate, scaled by the number of particles
+    void setAmplitude(float y, int numParticles);
+
+    // pan from the normalized x coordinate
+    void setPan(float x);
+
+    // location on the speakers from the normalized coordinates, stereo voices only pan on x
+    default void setPosition(float x, float y) {
+        setPan(x);
+    }
+
+    // particle mode: the gain follows the envelope
+    void startEnvelope();
+
+    // flow mode: the gain is modulated by a sine wave
+    void stopEnvelope();
+
+    // restarting the envelope
+    void resetEnvelope();
+
+    // the voice starts consuming DSP and sounding
+    void turnOn();
+
+    // the voice stops sounding and consuming DSP
+    void turnOff();
+
+    // resetting the envelope when a particle (when in particle mode) came close to another one
+    default void touch(Mode mode) {
+        if (mode == Mode.PARTICLE) {
+            resetEnvelope();
+        }
+    }
+
+    // resetting the envelope when a particle (when in particle mode) hit an edge
+    default void boing(Mode mode, float x, float y) {
+        if (mode == Mode.PARTICLE) {
+            if (x >= 1 || x <= 0 || y >= 1 || y <= 0) {
+                resetEnvelope();
+            }
+        }
+    }
+
+}
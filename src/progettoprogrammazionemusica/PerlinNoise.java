@@ -0,0 +1,113 @@
+package progettoprogrammazionemusica;
+import java.util.Random;
+
+/*
+* PerlinNoise is the same value noise implemented by PApplet.noise, but all
+* its tables are built once in the constructor from the seed and never
+* modified afterwards. PApplet.noise keeps its table in the sketch and
+* rebuilds it lazily after every noiseSeed, so it cannot be used from more
+* than one thread; an instance of this class can.
+*
+* For the same seed, octaves and falloff the values are bit-identical to
+* the ones returned by PApplet.noise.
+*/
+public class PerlinNoise implements NoiseSource {
+
+    private static final int PERLIN_YWRAPB = 4;
+    private static final int PERLIN_YWRAP = 1 << PERLIN_YWRAPB;
+    private static final int PERLIN_ZWRAPB = 8;
+    private static final int PERLIN_ZWRAP = 1 << PERLIN_ZWRAPB;
+    private static final int PERLIN_SIZE = 4095;
+    private static final int SINCOS_LENGTH = 720; // same cosine table of PGraphics
+    private static final float SINCOS_PRECISION = 0.5f;
+    private static final float DEG_TO_RAD = 0.017453292f;
+    private static final int PERLIN_PI = SINCOS_LENGTH >> 1;
+    private static final float[] COS_TABLE = new float[SINCOS_LENGTH];
+
+    static {
+        for (int i = 0; i < SINCOS_LENGTH; i++) {
+            COS_TABLE[i] = (float) Math.cos(i * DEG_TO_RAD * SINCOS_PRECISION);
+        }
+    }
+
+    private final long seed;
+    private final int octaves; // number of layers of noise summed together
+    private final float falloff; // amplitude reduction of each octave
+    private final float[] perlin; // random values on the lattice
+
+    // Processing defaults: 4 octaves, each one with half the amplitude of the previous
+    public PerlinNoise(long seed) {
+        this(seed, 4, 0.5f);
+    }
+
+    public PerlinNoise(long seed, int octaves, float falloff) {
+        this.seed = seed;
+        this.octaves = octaves;
+        this.falloff = falloff;
+        perlin = new float[PERLIN_SIZE + 1];
+        Random rand = new Random(seed);
+        for (int i = 0; i < PERLIN_SIZE + 1; i++) {
+            perlin[i] = rand.nextFloat();
+        }
+    }
+
+    @Override
+    public float noise(float x, float y, float z) {
+        if (x < 0) x = -x;
+        if (y < 0) y = -y;
+        if (z < 0) z = -z;
+
+        int xi = (int) x, yi = (int) y, zi = (int) z;
+        float xf = x - xi;
+        float yf = y - yi;
+        float zf = z - zi;
+        float rxf, ryf;
+        float r = 0;
+        float ampl = 0.5f;
+        float n1, n2, n3;
+
+        for (int i = 0; i < octaves; i++) {
+            int of = xi + (yi << PERLIN_YWRAPB) + (zi << PERLIN_ZWRAPB);
+
+            rxf = fade(xf);
+            ryf = fade(yf);
+
+            n1 = perlin[of & PERLIN_SIZE];
+            n1 += rxf * (perlin[(of + 1) & PERLIN_SIZE] - n1);
+            n2 = perlin[(of + PERLIN_YWRAP) & PERLIN_SIZE];
+            n2 += rxf * (perlin[(of + PERLIN_YWRAP + 1) & PERLIN_SIZE] - n2);
+            n1 += ryf * (n2 - n1);
+
+            of += PERLIN_ZWRAP;
+            n2 = perlin[of & PERLIN_SIZE];
+            n2 += rxf * (perlin[(of + 1) & PERLIN_SIZE] - n2);
+            n3 = perlin[(of + PERLIN_YWRAP) & PERLIN_SIZE];
+            n3 += rxf * (perlin[(of + PERLIN_YWRAP + 1) & PERLIN_SIZE] - n3);
+            n2 += ryf * (n3 - n2);
+
+            n1 += fade(zf) * (n2 - n1);
+
+            r += n1 * ampl;
+            ampl *= falloff;
+            xi <<= 1; xf *= 2;
+            yi <<= 1; yf *= 2;
+            zi <<= 1; zf *= 2;
+
+            if (xf >= 1.0f) { xi++; xf--; }
+            if (yf >= 1.0f) { yi++; yf--; }
+            if (zf >= 1.0f) { zi++; zf--; }
+        }
+        return r;
+    }
+
+    // cosine interpolation curve, looked up in the cosine table
+    private static float fade(float i) {
+        return 0.5f * (1.0f - COS_TABLE[(int) (i * PERLIN_PI) % SINCOS_LENGTH]);
+    }
+
+    @Override
+    public long getSeed() {
+        return seed;
+    }
+
+}
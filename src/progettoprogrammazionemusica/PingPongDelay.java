@@ -7,6 +7,7 @@ import com.jsyn.unitgen.InterpolatingDelay;
 import com.jsyn.unitgen.Add;
 import com.jsyn.unitgen.Multiply;
 import com.jsyn.unitgen.MultiPassThrough;
+import java.util.Random;
 
 public class PingPongDelay extends Circuit {
     
@@ -24,12 +25,19 @@ public class PingPongDelay extends Circuit {
     float timeL; // channel independent delay times
     float timeR;
     int numSamples = 88200;
-    UnitOutputPort output;
-    UnitInputPort input;
+    public UnitOutputPort output;
+    public UnitInputPort input;
     MultiPassThrough inputPass; // 2 channel input
     MultiPassThrough outputPass; // 2 channel ouput
+    private final Random rand; // delay times
     
     public PingPongDelay() {
+        this(new Random());
+    }
+    
+    // the same seed gives the same delay times
+    public PingPongDelay(Random rand) {
+        this.rand = rand;
         
         // adding units to the circuit
         add(delayLineL = new InterpolatingDelay());
@@ -47,10 +55,6 @@ public class PingPongDelay extends Circuit {
         add(outputPass = new MultiPassThrough(2)); // 2 channel output
         addPort(output = outputPass.output);
         
-        // setting random delay times
-        timeL = 0.4f + (float)Math.random() * (0.8f - 0.2f);
-        timeR = 0.4f + (float)Math.random() * (0.8f - 0.2f);
-        
         // manage inputs
         inputPass.output.connect(0, feedbackL.inputC, 0);
         inputPass.output.connect(0, dryL.inputA, 0);
@@ -77,8 +81,7 @@ public class PingPongDelay extends Circuit {
         
         // setting default values
         input.setup(0.0, 0.0, 1.0);
-        delayLineL.delay.set(timeL);
-        delayLineR.delay.set(timeR);
+        randomizeDelayTimes();
         delayLineL.allocate(numSamples);
         delayLineR.allocate(numSamples);
         delayLineL.delay.setMaximum(numSamples / 44100);
@@ -88,6 +91,14 @@ public class PingPongDelay extends Circuit {
         setMix(0.5f);  
     }
     
+    // setting random delay times, also used to change them without building a new delay
+    public final void randomizeDelayTimes() {
+        timeL = 0.4f + rand.nextFloat() * (0.8f - 0.2f);
+        timeR = 0.4f + rand.nextFloat() * (0.8f - 0.2f);
+        delayLineL.delay.set(timeL);
+        delayLineR.delay.set(timeR);
+    }
+    
     public final void setMix(float mix) {
         float wet = (float)Math.sqrt(mix);
         float dry = (float)Math.sqrt(1f - mix);
@@ -1,73 +1,183 @@
 package progettoprogrammazionemusica;
 import processing.core.*;
+import processing.awt.PGraphicsJava2D;
 import controlP5.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import javax.management.JMException;
 
 public class ProcessingGraphics extends PApplet{
     
     private final int sketchWidth; // width of Processing sketch window
     private final int sketchHeight; // height of proceesing sketch window
-    private final int cols; // columns in which the sketch is devided
-    private final int rows; // rows in which the sketch is devided
-    private final int scl; // dimension of each cell in which the sketch is devided (in pixels, scl x scl)
-    private final PVector[] flowField; // array of vectors, each vectors is assign to a cell in which the sketch is devided
-    private PVector flowVector;
-    private int index; // index of the flow vector
-    private float angle; // angle the flow vector
-    private final float noiseIncrement; // speed of "exploration" of the x and y axis in the Perlin noise space
-    private final float zIncrement; // speed of "exploration" of the z axis in the Perlin noise space
-    private float xOffset; // x coordinate to sample a point in the Perlin noise space
-    private float yOffset; // y coordinate to sample a point in the Perlin noise space
-    private float zOffset; // z coordinate to sample a point in the Perlin noise space
-    private final int maxNumParticles; // maximum number of particles
+    private final int cols; // columns of the finest level of the flow field
+    private final int rows; // rows of the finest level of the flow field
+    private final int scl; // dimension of the cells of the finest level of the flow field (in pixels, scl x scl)
+    private final float noiseIncrement; // speed of "exploration" of the x and y axis in the Perlin noise space, per cell of a 1280 x 720 sketch
+    private final float zIncrement; // speed of "exploration" of the z axis in the Perlin noise space, per row of a 1280 x 720 sketch
+    private final FlowSimulation simulation; // flow field and particles, owned by the simulation thread
+    private final SimulationLoop simulationLoop; // advances the simulation at a fixed tick rate
+    private final int maxNumParticles; // maximum number of sounding particles, size of the voice pool
     private int numParticles; // numeber of particles to display
-    private ParticleGraphics[] particlesLook; // array containing all the particles graphic instances
-    private ParticleAudio[] particlesSound; // array containing all the particles audio instances
-    private String mode; // either particle or flow mode, change the way of drawing of the particles (lines or points)
-    private String shade; // either "red", "green", "blue", determines the colors that the particles have
+    private volatile Mode mode; // either particle or flow mode, change the way of drawing of the particles (lines or points)
+    private Shade shade; // either red, green or blue, determines the colors that the particles have
     private int seed; // Perline noise seed
-    private ParticleSystemAudio audioSystem;
+    private volatile ParticleSystemAudio audioSystem;
     private ControlP5 p5; // ControlP5 object to manage graphical elements for User Interaction (slider to change numParticles, etc.)
     private boolean draw;
+    private final FrameProfiler profiler; // time spent in each phase of draw()
+    private final FrameProfiler tickProfiler; // time spent in each phase of a simulation tick
+    private float[] drawnX; // last drawn location of each particle in flow mode, NaN if none
+    private float[] drawnY;
+    private boolean timingOverlay; // drawing the timings of the last report on the sketch
+    private final GlowRenderer glowRenderer; // draws all the particles of particle mode as one image
+    private boolean batchedGlow; // false draws particle mode with five strokes per particle
+    private final QualityGovernor governor; // lowers the quality when frames or audio blocks take too long
+    private int targetFrameRate; // frames per second set with frameRate()
+    private int glowLayers; // large contours drawn around each particle, from 0 to 3
+    private int fieldCellBudget; // cells of the flow field at full quality
+    private final ConcurrentLinkedQueue<Runnable> commands; // changes from other threads, run before the next frame
+    private boolean controls; // false builds no ControlP5 slider and buttons
+    private boolean fullScreen; // covering the whole screen, without window decorations
+    private boolean offscreen; // drawing into an image, without window and without display
+    private SpeakerLayout layout; // speakers the voices are panned onto
+    private int audioFrameRate; // sample rate of the synthesizer
+    private double outputLatency; // seconds of the device buffer, 0 for the default of ParticleSystemAudio
+    private Tuning tuning; // scales of the shades, given to the audio system when it is ready
+    private final StartupTimer startup; // when the first frame and the first sound came
+    private long audioSeed; // seed of the Random of the audio system, recorded with a session
+    private boolean audioStarting; // the audio system is being built on its thread
+    private File recordingFile; // where the session is recorded, null for no recording
+    private SessionRecorder recorder; // owned by the simulation thread
+    private SessionPlayer replay; // session drawn and played instead of the simulation, null for none
+    private String frameOutput; // file names of the frames saved while replaying, null for none
+    
+    // the finest level of the flow field has cells of 20 x 20 pixels
+    public ProcessingGraphics(int w, int h) {
+        this(w, h, 20);
+    }
     
     /*
     * ProcessingGraphics constructor:
     * takes two integers that are the width and height of the JPanel and set
     * width and height of the Processing sketch.
     * The sketch cover the entire JPanel
+    * cellSize is the size in pixels of the cells of the finest level of the
+    * flow field, the level computed each frame depends on fieldCellBudget
     *
     * Here are initialized parameters relative to the overall app and sketch
     * but not the graphical elements such as the ControlP5 object and the particles
     * that can be redraw and so eventually re-initialized
     */
-    public ProcessingGraphics(int w, int h) {
+    public ProcessingGraphics(int w, int h, int cellSize) {
+        startup = new StartupTimer();
         sketchWidth = w;
         sketchHeight = h;
         maxNumParticles = 100;
         numParticles = 20; // defualt number of particles on start
-        mode = "particle"; // default drawing mode on start
+        mode = Mode.PARTICLE; // default drawing mode on start
         /*
         * Default shade on start is red.
         * - red: particles color hue is between 216 and 360
         * - green: particles color hue is between 30 and 215
         * - blue: particles color hue is between 150 and 270
         */
-        shade = "red";
+        shade = Shade.RED;
         
-        scl = 20; // the sketch is devide in cells of 20 x 20 pixels
-        cols = floor(sketchWidth / scl); // number of columns
-        rows = floor(sketchHeight / scl); // number of rows
-        flowField = new PVector[cols * rows];
+        scl = cellSize; // the sketch is devide in cells of scl x scl pixels
+        cols = max(1, floor(sketchWidth / scl)); // number of columns
+        rows = max(1, floor(sketchHeight / scl)); // number of rows
         
         noiseIncrement = 0.1f;
-        zOffset = 0;
         zIncrement = 0.0003f;
+        /*
+        * The flow field covers the same region of the noise space at any
+        * resolution: the one covered by the 36 rows of a 720 pixels high
+        * sketch with cells of 20 pixels
+        */
+        simulation = new FlowSimulation(cols, rows, (float) sketchWidth / sketchHeight,
+                                        noiseIncrement, zIncrement, new Random());
+        simulation.setShade(shade);
+        simulation.setProximityParticles(maxNumParticles); // only the particles with a voice use them
+        
+        profiler = new FrameProfiler(60); // a report every 60 frames
+        tickProfiler = new FrameProfiler(60);
+        try {
+            profiler.registerMBean("progettoprogrammazionemusica:type=FrameProfiler,name=draw");
+            tickProfiler.registerMBean("progettoprogrammazionemusica:type=FrameProfiler,name=simulation");
+        } catch (JMException e) {
+            System.err.println("Frame timings not available over JMX: " + e); // they are still recorded
+        }
         
+        /*
+        * The simulation moves 30 times per second, the speed it had at the
+        * default frame rate, whatever the frame rate is. After each tick the
+        * sounding particles are mapped to the voices on the simulation thread
+        */
+        simulationLoop = new SimulationLoop(simulation, 30, tickProfiler);
+        simulationLoop.setListener(sim -> {
+            if (replay != null) {
+                followReplayMode(); // the voices are played by the replay
+                return;
+            }
+            ParticleSystemAudio audio = audioSystem; // null until the audio is ready
+            Mode currentMode = mode;
+            if (audio != null) {
+                audio.updateVoices(sim.getParticles(), sim.getGrid(), sim.getNumParticles(), sim.getShade(), currentMode);
+            }
+            if (recorder != null) {
+                recorder.recordTick(sim, currentMode, simulationLoop.getTickNanos(), audio);
+            }
+        });
+        drawnX = new float[0];
+        drawnY = new float[0];
+        timingOverlay = false;
+        glowRenderer = new GlowRenderer(sketchWidth, sketchHeight, 4, ForkJoinPool.commonPool());
+        batchedGlow = true;
+        /*
+        * A frame must take at most 80% of the frame period (and a tick of the
+        * tick period), the synthesizer at most 70% of the block period. The
+        * governor is the only controller of the voices on the usage of the
+        * synthesizer, the audio system does not adapt them on its own
+        */
+        governor = new QualityGovernor(0.8, 0.7);
+        targetFrameRate = 30;
+        glowLayers = 3;
+        fieldCellBudget = 64 * 36; // the cells of a 1280 x 720 sketch, as FlowSimulation
+        commands = new ConcurrentLinkedQueue<>();
+        controls = true;
+        layout = SpeakerLayout.stereo();
+        audioFrameRate = 44100;
+        tuning = Tuning.STANDARD;
+        audioSeed = new Random().nextLong();
+        startup.mark(StartupTimer.SKETCH);
     }
     
     // Override Processing settings function. Needed to set the size of the sketch
     @Override
     public void settings() {
-        size(sketchWidth,sketchHeight);
+        if (fullScreen) {
+            fullScreen();
+        } else {
+            size(sketchWidth,sketchHeight);
+        }
+    }
+    
+    /*
+    * Offscreen the sketch draws with Java2D into an image of the size of the
+    * sketch, animated by a thread of its own without any window: it runs on
+    * machines without display (java.awt.headless=true)
+    */
+    @Override
+    protected PGraphics createPrimaryGraphics() {
+        if (offscreen) {
+            return makeGraphics(sketchWidth, sketchHeight, OffscreenGraphics.class.getName(), null, true);
+        }
+        return super.createPrimaryGraphics();
     }
     
     /*
@@ -76,6 +186,7 @@ public class ProcessingGraphics extends PApplet{
     */
     @Override
     public void setup() {
+        startup.mark(StartupTimer.SETUP);
         /*
         * HSB color mode:
         * Hue takes values from 0 to 360;
@@ -84,34 +195,156 @@ public class ProcessingGraphics extends PApplet{
         * Alpha / transparency takes values from 0 to 255.
         */
         colorMode(HSB, 360, 100, 100, 255);
-        frameRate(30);
+        frameRate(targetFrameRate);
         init(); // initialize the audio manager of the wall application and the particles        
-        addParticleSlider();
-        addModeButtons();
-        addColorButtons();
-        addOptionButtons();
+        if (controls) {
+            addParticleSlider();
+            addModeButtons();
+            addColorButtons();
+            addOptionButtons();
+        } else {
+            noCursor(); // nothing to click on an installation
+        }
         
     }
     
     /*
-    * If the user choose to restart the particles by pressing restart then their
-    * graphial an audio component need to be reinitialized (shade, mode and
-    * the number of particles displayed are note reinitialized to their default
-    * values). As the setup function cannot be recalled, the particles are
-    * instantiated in the init so that it can be called when the restart button
-    * is pressed. Also the audioSystem that contains the JSsyn synthesizer and the
-    * LineOut object to which each particle is connect is reinstantiated
+    * Building the particles, the ControlP5 object and, on another thread,
+    * the audio manager. Called once from setup, the restart button uses
+    * restart() that reuses all of them
     */
     private void init() {            
         background(0, 0, 3);
         draw = true;
-        audioSystem = new ParticleSystemAudio(numParticles); // Instantiating the class that manage the audio output
-        particlesLook = new ParticleGraphics[maxNumParticles];
-        particlesSound = new ParticleAudio[maxNumParticles];
-        addParticles();
-        audioSystem.startAudioSystem(); // starting the audio
-        p5 = new ControlP5(this);
+        simulation.setNumParticles(numParticles);
+        simulation.restart();
+        if (controls) {
+            p5 = new ControlP5(this);
+        }
+        if (replay != null) {
+            startReplay();
+        } else if (recordingFile != null) {
+            try {
+                recorder = new SessionRecorder(recordingFile, simulation, audioSeed, maxNumParticles,
+                                               layout.getChannels(), simulationLoop.getTickRate());
+            } catch (IOException e) {
+                System.err.println("Session not recorded: " + e); // the sketch runs anyway
+            }
+        }
         startNumParticles();
+        if (replay == null) {
+            simulationLoop.start(); // a replay is stepped by draw()
+        }
+        startAudio();
+    }
+    
+    /*
+    * Replaying a recorded session: the simulation reads the recorded ticks,
+    * one per frame at the recorded tick rate, and the audio system is built
+    * with the recorded seed so that the replay makes the same sounds
+    */
+    private void startReplay() {
+        simulation.setReplay(replay);
+        audioSeed = replay.getAudioSeed();
+        if (replay.getChannels() != layout.getChannels()) {
+            System.err.println("The session was recorded on " + replay.getChannels() + " channels, it sounds different on "
+                               + layout.getChannels());
+        }
+        setTargetFrameRate(round(replay.getTickRate()));
+    }
+    
+    /*
+    * Building the synthesizer and opening the audio device are the slowest
+    * part of the start (JSyn looks for the audio devices of the machine), so
+    * they run on a thread of their own while the first frames are drawn.
+    * When the audio is ready it is handed to the animation thread and the
+    * particles get their voices
+    */
+    private void startAudio() {
+        SpeakerLayout audioLayout = layout;
+        int rate = audioFrameRate;
+        double latency = outputLatency;
+        long seed = audioSeed;
+        audioStarting = true;
+        Thread starter = new Thread(() -> {
+            ParticleSystemAudio audio;
+            try {
+                audio = new ParticleSystemAudio(maxNumParticles, true, audioLayout, new Random(seed)); // Instantiating the class that manage the audio output and the voice pool, voices are rendered by an additive bank
+                audio.setFrameRate(rate);
+                if (latency > 0) {
+                    audio.setOutputLatency(latency);
+                }
+                audio.startAudioSystem(); // starting the audio
+            } catch (RuntimeException e) {
+                System.err.println("Audio not started: " + e); // the particles are still drawn
+                submit(() -> audioStarting = false);
+                return;
+            }
+            startup.mark(StartupTimer.AUDIO);
+            try {
+                audio.getHealth().registerMBean("progettoprogrammazionemusica:type=AudioHealth");
+            } catch (JMException e) {
+                System.err.println("Audio health not available over JMX: " + e);
+            }
+            submit(() -> installAudio(audio));
+        }, "audio start");
+        starter.setDaemon(true);
+        starter.start();
+    }
+    
+    // animation thread: the settings changed while the audio was starting are applied to it
+    private void installAudio(ParticleSystemAudio audio) {
+        audioStarting = false;
+        audio.setTuning(tuning);
+        if (replay != null) {
+            // the voices only get the recorded calls
+            replay.setAudioSystem(audio);
+            audioSystem = audio;
+            if (!draw) {
+                audio.stopAudioSystem();
+            }
+            return;
+        }
+        audio.setMode(mode);
+        audio.setAdaptiveVoices(false); // the voice limit of the governor
+        audioSystem = audio; // from here the simulation thread gives voices to the particles
+        if (!draw) {
+            audio.stopAudioSystem(); // stopped meanwhile
+        }
+        applyQuality();
+        startNumParticles();
+    }
+    
+    /*
+    * If the user choose to restart the particles by pressing restart then
+    * their graphical and audio components are re-randomized in place (shade,
+    * mode and the number of particles displayed are not reinitialized to
+    * their default values): particles get new locations and colors, the audio
+    * system a new root and new delay times, while the synthesizer, the voices
+    * and the ControlP5 object are kept
+    */
+    public void restart() {
+        if (replay != null) {
+            return; // a replay goes on as recorded
+        }
+        simulationLoop.stop(); // the simulation can be changed here
+        background(0, 0, 3);
+        ParticleSystemAudio audio = audioSystem;
+        if (audio != null) {
+            if (recorder != null) {
+                recorder.recordReset();
+            }
+            audio.reset();
+        }
+        simulation.restart();
+        Arrays.fill(drawnX, Float.NaN);
+        Arrays.fill(drawnY, Float.NaN);
+        if (audio != null && !audio.isRunning()) {
+            audio.startAudioSystem(); // restarting after "stopping"
+        }
+        startNumParticles();
+        simulationLoop.start();
+        draw = true;
     }
     
     /*
@@ -120,66 +353,274 @@ public class ProcessingGraphics extends PApplet{
     */
     @Override
     public void draw() { 
+        runCommands(); // also while stopped, "continue" may be one of them
         if (draw){
+        if (replay != null && !stepReplay()) {
+            return; // waiting for the audio, or the session is over
+        }
+        long frameStart = System.nanoTime();
+        profiler.begin(FrameProfiler.FRAME);
         
-        noiseSeed(seed);  
-        
-        if (mode.equals("particle")) {
-            background(0, 0, 3);
-        }   
-        
-        // Defining the flow field
-        yOffset = 0;
-        for (int y = 0; y < rows; y++) {
-            xOffset = 0;
-            for (int x = 0; x < cols; x++) {
-                index = x + y * cols;
-                // sampling Perlin noise space to have flow vectotors with a coherent direction one another
-                angle = noise(xOffset, yOffset, zOffset) * TWO_PI * 4;
-                flowVector = PVector.fromAngle(angle);
-                flowVector.setMag(1); // normalizing the magnitude of the floe vector
-                flowField[index] = flowVector; // updating the flow field
-                xOffset += noiseIncrement; // moving through Perlin noise space over the x axis
+        // the last tick of the simulation, its particles are drawn where they are at this instant
+        SimulationSnapshot snapshot = simulationLoop.latest();
+        if (snapshot != null) {
+            // a replay draws each tick where it was, so the frames are the same at every replay
+            float t = replay != null ? 1 : snapshot.interpolation(System.nanoTime());
+            
+            if (mode == Mode.PARTICLE && !batchedGlow) {
+                background(0, 0, 3); // the batched glow image covers the background itself
+            }   
+            
+            profiler.begin(FrameProfiler.RENDER);
+            boolean batched = batchedGlow && mode == Mode.PARTICLE;
+            if (batched) {
+                glowRenderer.begin(color(0, 0, 3));
+            }
+            ensureDrawn(snapshot.size());
+            for (int i = 0; i < snapshot.size(); i++) {
+                showParticle(snapshot, i, t, batched);
+            }
+            if (batched) {
+                image(glowRenderer.render(), 0, 0); // the image covers the background too
+            }
+            profiler.end(FrameProfiler.RENDER);
+            startup.mark(StartupTimer.FIRST_FRAME); // only the first one counts
+            if (replay != null && frameOutput != null) {
+                saveFrame(frameOutput);
             }
-            yOffset += noiseIncrement;
-            // with zOffset each vector cahnge direction sligthly frame by frame making the flow field dynamic
-            zOffset += zIncrement;
         }
         
-        /*
-        * Updating particles look and audio.
-        * Despite all the particles are created and stored by addParticles(),
-        * only the first "numParticles" are displayed and sounding
-        */
-        for (int i = 0; i < numParticles; i++) {
-            particlesLook[i].followFlowField(flowField);
-            particlesLook[i].update();
-            particlesLook[i].edgesCollision();
-            particlesLook[i].show(mode);
-            particlesSound[i].setAmplitude(particlesLook[i].getY(), maxNumParticles);
-            particlesSound[i].setPan(particlesLook[i].getX());
-            particlesSound[i].boing(mode, particlesLook[i].getX(), particlesLook[i].getY());
-        }  
+        profiler.end(FrameProfiler.FRAME);
+        profiler.endFrame();
+        if (timingOverlay) {
+            drawTimings();
+        }
+        updateQuality(System.nanoTime() - frameStart);
+        updateStartup();
         } // end draw
     }
     
-    // Instantiating the graphical and audio component for all the 100 particles
-    public void addParticles(){
-        for (int i = 0; i < maxNumParticles; i++) {
-            particlesLook[i] = new ParticleGraphics();
-            particlesLook[i].setColor(shade, particlesLook[i].getHue());
-            particlesSound[i] = new ParticleAudio(
-                    particlesLook[i].color,
-                    shade,
-                    particlesLook[i].getX(),
-                    particlesLook[i].getY(),
-                    numParticles,
-                    audioSystem.getRoot(),
-                    mode);
-            audioSystem.addParticleAudio(particlesSound[i]);
+    /*
+    * Replay: one recorded tick per frame, on the animation thread, once the
+    * audio system that replays the voices is ready. False when there is no
+    * new tick to draw
+    */
+    private boolean stepReplay() {
+        if (audioStarting) {
+            return false;
+        }
+        simulationLoop.step();
+        if (replay.isFinished()) {
+            System.out.println("Replay finished after " + replay.getTicks() + " ticks");
+            if (offscreen) {
+                exit(); // nobody is watching
+            } else {
+                stopSketch();
+            }
+            return false;
+        }
+        return true;
+    }
+    
+    // replay: drawing with the mode the sketch had at the replayed tick
+    private void followReplayMode() {
+        Mode recorded = replay.getMode();
+        if (recorded != mode) {
+            mode = recorded;
+            submit(() -> background(0, 0, 3));
+        }
+    }
+    
+    // the first sound is detected on the audio thread, it is looked for until found
+    private void updateStartup() {
+        ParticleSystemAudio audio = audioSystem;
+        if (audio != null && audio.getFirstSoundNanos() != 0) {
+            startup.mark(StartupTimer.FIRST_SOUND, audio.getFirstSoundNanos());
+        }
+    }
+    
+    public StartupTimer getStartupTimer() {
+        return startup;
+    }
+    
+    /*
+    * Feeding the governor with the loads of this frame: the visual load is
+    * the longest between this frame over the frame period and the last tick
+    * over the tick period, the audio load the usage of the synthesizer.
+    * When the governor changes a level the settings are applied again
+    */
+    private void updateQuality(long frameNanos) {
+        if (replay != null && frameOutput != null) {
+            return; // saved frames are all drawn at the same quality, whatever time they take
+        }
+        double visualLoad = Math.max(frameNanos * targetFrameRate / 1e9, simulationLoop.getLoad());
+        ParticleSystemAudio audio = audioSystem;
+        if (governor.update(visualLoad, audio != null ? audio.getUsage() : 0)) {
+            applyQuality();
         }
     }
     
+    // glow layers, cells of the flow field and voices of the current quality levels
+    private void applyQuality() {
+        glowLayers = governor.getGlowLayers();
+        glowRenderer.setGlowLayers(glowLayers);
+        int cells = governor.getFieldCells(fieldCellBudget);
+        int voices = governor.getVoiceLimit(maxNumParticles);
+        ParticleSystemAudio audio = audioSystem;
+        simulate(() -> {
+            simulation.setFieldCellBudget(cells);
+            if (audio != null) {
+                if (recorder != null) {
+                    recorder.recordVoiceLimit(voices);
+                }
+                audio.setVoiceLimit(voices);
+            }
+        });
+    }
+    
+    /*
+    * Enabling or disabling the quality governor, disabled the sketch goes
+    * back to the full quality whatever the load
+    */
+    public void setQualityGovernor(boolean enabled) {
+        governor.setEnabled(enabled);
+        applyQuality();
+    }
+    
+    public QualityGovernor getQualityGovernor() {
+        return governor;
+    }
+    
+    /*
+    * Timings overlay: median and 99th percentile in milliseconds of each
+    * phase of a simulation tick and of draw(), updated at each report of the
+    * profilers, then the quality levels and the health of the audio engine
+    */
+    private void drawTimings() {
+        int[] tickPhases = {FrameProfiler.FIELD, FrameProfiler.PARTICLES, FrameProfiler.AUDIO, FrameProfiler.FRAME};
+        int[] drawPhases = {FrameProfiler.RENDER, FrameProfiler.FRAME};
+        noStroke();
+        fill(0, 0, 3);
+        rect(10, 10, 210, 88 + 16 * (tickPhases.length + drawPhases.length));
+        fill(0, 0, 100);
+        textSize(12);
+        text("tick", 20, 28);
+        text("p50 ms", 110, 28);
+        text("p99 ms", 165, 28);
+        drawTimings(tickProfiler, tickPhases, 44);
+        float y = 44 + 16 * tickPhases.length + 8;
+        text("draw", 20, y);
+        drawTimings(profiler, drawPhases, y + 16);
+        text("quality level: visual " + governor.getVisualLevel() + ", audio " + governor.getAudioLevel(),
+             20, y + 16 * (drawPhases.length + 1) + 8);
+        ParticleSystemAudio audio = audioSystem;
+        String health = "audio starting";
+        if (audio != null) {
+            health = "audio p99 " + nf((float) audio.getHealth().getBlockP99Micros() / 1000, 1, 2)
+                     + " ms, dropouts " + audio.getHealth().getDropouts();
+        }
+        text(health, 20, y + 16 * (drawPhases.length + 2) + 8);
+    }
+    
+    private void drawTimings(FrameProfiler source, int[] phases, float top) {
+        for (int k = 0; k < phases.length; k++) {
+            float y = top + 16 * k;
+            text(FrameProfiler.getPhaseName(phases[k]), 20, y);
+            text(nf((float) source.getMedianMillis(phases[k]), 1, 2), 110, y);
+            text(nf((float) source.getP99Millis(phases[k]), 1, 2), 165, y);
+        }
+    }
+    
+    // showing or hiding the timings overlay, also toggled with the "t" key
+    public void setTimingOverlay(boolean show) {
+        timingOverlay = show;
+        if (!show) {
+            background(0, 0, 3);
+        }
+    }
+    
+    @Override
+    public void keyPressed() {
+        if (key == 't') {
+            setTimingOverlay(!timingOverlay);
+        }
+    }
+    
+    /*
+    * Choosing how particle mode is drawn: batched (the default) blends
+    * pre-baked glow sprites of all the particles into one image, otherwise
+    * each particle is drawn with five stroke passes
+    */
+    public void setBatchedGlow(boolean batched) {
+        batchedGlow = batched;
+    }
+    
+    public FrameProfiler getProfiler() {
+        return profiler;
+    }
+    
+    public FrameProfiler getTickProfiler() {
+        return tickProfiler;
+    }
+    
+    /*
+    * Appending the reports of the profilers to name-draw.csv and
+    * name-simulation.csv, each renamed to .1 beyond maxBytes (see
+    * FrameProfiler.setCsvOutput)
+    */
+    public void setTimingsCsv(String name, long maxBytes) throws IOException {
+        profiler.setCsvOutput(new File(name + "-draw.csv"), maxBytes);
+        tickProfiler.setCsvOutput(new File(name + "-simulation.csv"), maxBytes);
+    }
+    
+    private void closeTimingsCsv() {
+        try {
+            profiler.closeCsv();
+            tickProfiler.closeCsv();
+        } catch (IOException e) {
+            System.err.println("Timings CSV not closed: " + e);
+        }
+    }
+    
+    // changing how many times per second the simulation moves, independently of the frame rate
+    public void setTickRate(double rate) {
+        simulationLoop.setTickRate(rate);
+    }
+    
+    /*
+    * Changing the maximum number of cells of the flow field computed each
+    * frame, the finest level of the pyramid within the budget is used
+    */
+    public void setFieldCellBudget(int cells) {
+        fieldCellBudget = cells;
+        int levelCells = governor.getFieldCells(cells); // fewer when the governor lowered the quality
+        simulate(() -> simulation.setFieldCellBudget(levelCells));
+    }
+    
+    // changing the number of frames between keyframes of the flow field, 1 disables keyframes
+    public void setKeyframeInterval(int interval) {
+        simulate(() -> simulation.setKeyframeInterval(interval));
+    }
+    
+    // changing the noise, either "perlin" or "simplex", that drives the flow field and the particles transparency
+    public void setNoiseType(String type) {
+        simulate(() -> {
+            simulation.setNoiseType(type);
+            if (recorder != null) {
+                recorder.recordNoiseType(type);
+            }
+        });
+    }
+    
+    /*
+    * Changing the number of displayed particles. Particles beyond the first
+    * "maxNumParticles" are only drawn, the store grows to hold them.
+    */
+    public void setNumParticles(int n) {
+        numParticles = max(1, n);
+        startNumParticles(); // run when the simulation starts if it is not running
+    }
+    
     /*
     * Retrieving the object holding the Processing sketch in order to use it
     * as Swing component and displaying it in the JPanel
@@ -285,55 +726,40 @@ public class ProcessingGraphics extends PApplet{
     public void controlEvent(ControlEvent theEvent) {        
         switch (theEvent.getController().getName()) {
             case "particleMode":
-                mode = "particle";
-                background(0, 0, 3);
-                manageParticleEnvelope("particle");
+                setMode(Mode.PARTICLE);
                 break;
             case "flowMode":
-                mode = "flow";
-                background(0, 0, 3);
-                manageParticleEnvelope("flow");
+                setMode(Mode.FLOW);
                 break;
             case "redColor":
-                shade = "red";
-                changeParticleColor(shade);
-                background(0, 0, 3);
+                setShade(Shade.RED);
                 break;
             case "greenColor":
-                shade = "green";
-                changeParticleColor(shade);
-                background(0, 0, 3);
+                setShade(Shade.GREEN);
                 break;
             case "blueColor":
-                shade = "blue";
-                changeParticleColor(shade);
-                background(0, 0, 3);
+                setShade(Shade.BLUE);
                 break;
             case "newSeed":
-                seed++;
+                setSeed(seed + 1);
                 break;
             case "numParticles":
                 startNumParticles();
                 break;
             case "start":
-                audioSystem.stopAudioSystem();
-                noLoop();
-                init();
-                loop();
+                restart();
                 break;
             case "stopping":
-                draw = false;
-                audioSystem.stopAudioSystem();
+                stopSketch();
                 break;
             case "continue":
-                audioSystem.startAudioSystem();
-                draw = true;
+                continueSketch();
                 break;
             case "fps30":
-                frameRate(30);
+                setTargetFrameRate(30);
                 break;
             case "fps60":
-                frameRate(60);
+                setTargetFrameRate(60);
                 break;
             default:
                 break;
@@ -341,21 +767,221 @@ public class ProcessingGraphics extends PApplet{
     }
     
     /*
-    * addParticles() function instantiated all the 100 particles but only
-    * "numParticles" are active.
-    * startNumParticles turn on the audio for the first numParticles and turn of
-    * the audio for the remaining.
+    * The changes below, as the ControlP5 event handler, run on the animation
+    * thread: other threads (e.g. the control channel of an installation)
+    * pass them to submit
+    */
+    
+    public void setMode(Mode mode) {
+        this.mode = mode;
+        background(0, 0, 3);
+        manageParticleEnvelope(mode);
+    }
+    
+    public void setShade(Shade shade) {
+        this.shade = shade;
+        changeParticleColor(shade);
+        background(0, 0, 3);
+    }
+    
+    // changing the seed of the Perlin noise, the flow field changes at once
+    public void setSeed(int seed) {
+        this.seed = seed;
+        simulate(() -> {
+            simulation.setSeed(seed);
+            if (recorder != null) {
+                recorder.recordSeed(seed);
+            }
+        });
+    }
+    
+    public void setTargetFrameRate(int fps) {
+        targetFrameRate = max(1, fps);
+        frameRate(targetFrameRate);
+    }
+    
+    // stopping particles display and audio, continueSketch() takes them back where they were
+    public void stopSketch() {
+        draw = false;
+        simulationLoop.stop();
+        if (audioSystem != null) {
+            audioSystem.stopAudioSystem();
+        }
+    }
+    
+    public void continueSketch() {
+        if (!draw) {
+            if (audioSystem != null) {
+                audioSystem.startAudioSystem();
+            }
+            if (replay == null) {
+                simulationLoop.start(); // a replay is stepped by draw()
+            }
+            draw = true;
+        }
+    }
+    
+    /*
+    * Running a change on the simulation thread, before the next tick. While
+    * a session is replayed the simulation and the voices follow the log
+    * only, the changes are dropped
+    */
+    private void simulate(Runnable command) {
+        if (replay == null) {
+            simulationLoop.submit(command);
+        }
+    }
+    
+    // running a change on the animation thread, before the next frame
+    public void submit(Runnable command) {
+        commands.add(command);
+    }
+    
+    private void runCommands() {
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            command.run();
+        }
+    }
+    
+    public Mode getMode() {
+        return mode;
+    }
+    
+    public Shade getShade() {
+        return shade;
+    }
+    
+    public int getSeed() {
+        return seed;
+    }
+    
+    public int getNumParticles() {
+        return numParticles;
+    }
+    
+    public int getTargetFrameRate() {
+        return targetFrameRate;
+    }
+    
+    // null until the audio is ready
+    public ParticleSystemAudio getAudioSystem() {
+        return audioSystem;
+    }
+    
+    /*
+    * Settings read when the sketch starts, they must be given before it
+    * starts: the window, the ControlP5 controls and the audio output
+    */
+    
+    // false builds no ControlP5 slider and buttons, the sketch is only changed through its methods
+    public void setControls(boolean controls) {
+        this.controls = controls;
+    }
+    
+    public void setFullScreen(boolean fullScreen) {
+        this.fullScreen = fullScreen;
+    }
+    
+    // drawing into an image without window, the surface is given by getPSurface
+    public void setOffscreen(boolean offscreen) {
+        this.offscreen = offscreen;
+    }
+    
+    public void setSpeakerLayout(SpeakerLayout layout) {
+        this.layout = layout;
+    }
+    
+    public void setAudioFrameRate(int rate) {
+        audioFrameRate = rate;
+    }
+    
+    public void setOutputLatency(double seconds) {
+        outputLatency = seconds;
+    }
+    
+    // seed of the randomness of the audio (root, effects, harmonics), random by default
+    public void setAudioSeed(long seed) {
+        audioSeed = seed;
+    }
+    
+    // recording the session to file, SessionPlayer replays it
+    public void setRecording(File file) {
+        recordingFile = file;
+    }
+    
+    /*
+    * Drawing and playing a recorded session instead of the simulation, the
+    * changes made while it is replayed do not reach the particles and the
+    * voices
+    */
+    public void setReplay(SessionPlayer player) {
+        replay = player;
+    }
+    
+    /*
+    * Saving each replayed frame, e.g. "frames/####.png" (see saveFrame), to
+    * make a video of the session
+    */
+    public void setFrameOutput(String pattern) {
+        frameOutput = pattern;
+    }
+    
+    /*
+    * Ending the recording, the log is complete and can be replayed. Also
+    * done when the sketch is closed
+    */
+    public void stopRecording() {
+        if (recorder == null) {
+            return;
+        }
+        boolean running = simulationLoop.isRunning();
+        simulationLoop.stop(); // the recorder is owned by the simulation thread
+        closeRecorder();
+        if (running) {
+            simulationLoop.start();
+        }
+    }
+    
+    private void closeRecorder() {
+        if (recorder != null) {
+            recorder.close();
+            System.out.println("Session recorded: " + recorder.getTicks() + " ticks, " + recorder.getLength() + " bytes");
+            recorder = null;
+        }
+    }
+    
+    @Override
+    public void dispose() {
+        simulationLoop.stop();
+        closeRecorder();
+        closeTimingsCsv();
+        super.dispose();
+    }
+    
+    /*
+    * Only the first "numParticles" particles are displayed and only they can
+    * sound. startNumParticles gives a voice of the pool to the first
+    * numParticles (up to maxNumParticles) and returns to the pool the voices
+    * of the remaining ones, so the audio cost follows the visible particles.
     * startNumParticles is called in the init() function (to start the defualt
     * 20 particles) and each time "numParticles" is changed with the ControlP5
-    * slider
+    * slider. Like the other changes it runs on the simulation thread
     */
     public void startNumParticles() {
-        for (int i = 0; i < numParticles; i++) {
-            particlesSound[i].turnOn();
-        }
-        for (int i = numParticles; i < maxNumParticles; i++) {
-            particlesSound[i].turnOff();
-        }
+        int n = numParticles;
+        Shade currentShade = shade;
+        Mode currentMode = mode;
+        ParticleSystemAudio audio = audioSystem;
+        simulate(() -> {
+            simulation.setNumParticles(n);
+            if (audio != null) {
+                if (recorder != null) {
+                    recorder.recordSounding(simulation, currentShade, currentMode);
+                }
+                audio.setSoundingParticles(simulation.getParticles(), n, currentShade, currentMode);
+            }
+        });
     }
     
     /*
@@ -364,222 +990,170 @@ public class ProcessingGraphics extends PApplet{
     * - flow: particles amplitude if continuosly modulated by a sine wave but
     *   it has no envelope controlling the overall amplitude
     */
-    public void manageParticleEnvelope(String mode) {
-        if (mode.equals("particle")) {
-            for (ParticleAudio particle : particlesSound) {
-                particle.startEnvelope();
-            }
-        } else if (mode.equals("flow")) {
-            for (ParticleAudio particle : particlesSound) {
-                particle.stopEnvelope();
-            }
+    public void manageParticleEnvelope(Mode mode) {
+        ParticleSystemAudio audio = audioSystem;
+        if (audio != null) {
+            simulate(() -> {
+                if (recorder != null) {
+                    recorder.recordAudioMode(mode);
+                }
+                audio.setMode(mode);
+            });
         }
     }
     
     // change particle color and pitch when varialbe "shade" is changed
     // with the ControlP5 buttons
-    public void changeParticleColor(String shade) {
-        for (int i = 0; i < maxNumParticles; i++) {
-            particlesLook[i].setColor(shade, particlesLook[i].getHue());
-            particlesSound[i].setPitch(particlesLook[i].getColor(), shade, audioSystem.getRoot());
-        }
+    public void changeParticleColor(Shade shade) {
+        ParticleSystemAudio audio = audioSystem;
+        simulate(() -> {
+            simulation.setShade(shade);
+            if (audio != null) {
+                if (recorder != null) {
+                    recorder.recordPitches(simulation, shade, mode);
+                }
+                audio.updatePitches(simulation.getParticles(), shade);
+            }
+        });
     }
     
-    //=========================================================================================================
-    //=========================================================================================================
-    //=========================================================================================================
-    
     /*
-    * The ParticleGraphics inner class makes the graphical part of each particle
-    * moving in between the flow field in the Processing sketch
+    * Changing the scales the shades are mapped onto, for example with a
+    * microtonal scale read by Scale.load. The sounding particles change
+    * pitch at once
     */
-    public class ParticleGraphics {
-        
-        private final PVector location; // particle location on the processing sketch
-        private final PVector previousLocation; // particle location at previous frame
-        private final PVector speed; // speed of the particle
-        private final PVector acceleration; // acceleration imprinted by flow field vectors
-        private final int maxspeed; // maximum particle speed
-        private final float hue; // particle color hue between 0 and 1
-        private float color; // particle color hue between 0 and 360
-        private float transparency; // particolor alpha / transparency
-        private final float transparencyIncrement;
-        
-        public ParticleGraphics() {
-            location = new PVector(random(width), random(height)); // random initial location
-            previousLocation = location.copy(); // previous location initialized with the location
-            speed = new PVector(0, 0);
-            acceleration = new PVector(0, 0);
-            maxspeed = 4;
-            hue = random(1); // initial random hue
-            transparency = random(1); // intial random alpha
-            transparencyIncrement = 0.01f;
-        }
-        
-
-        private void update() {
-            /*
-            * updating the speed of the particle using the acceleration that is
-            * the vector corresponding to the cell where the particle is
-            */
-            speed.add(acceleration);
-            speed.limit(maxspeed); // bounding the speed to the maximum speed
-            location.add(speed); // updating location
-            acceleration.mult(0);
-        }
-        
-        // updating acceleration
-        private void applyForce(PVector force) {
-            acceleration.add(force); // updating acceleration
+    public void setTuning(Tuning tuning) {
+        this.tuning = tuning;
+        ParticleSystemAudio audio = audioSystem;
+        if (audio != null) {
+            simulate(() -> {
+                audio.setTuning(tuning);
+                if (recorder != null) {
+                    recorder.recordPitches(simulation, simulation.getShade(), mode);
+                }
+                audio.updatePitches(simulation.getParticles(), simulation.getShade());
+            });
         }
-        
-        // updating the previous locaiton of the particle when it moves
-        private void updatePreviousLocation() {
-            previousLocation.x = location.x;
-            previousLocation.y = location.y;
-        }
-        
-        private void updateTransparency() {
-            transparency += transparencyIncrement;
+    }
+    
+    // growing the last drawn locations to n particles, new ones have none
+    private void ensureDrawn(int n) {
+        if (drawnX.length < n) {
+            int old = drawnX.length;
+            drawnX = Arrays.copyOf(drawnX, max(n, old * 2));
+            drawnY = Arrays.copyOf(drawnY, drawnX.length);
+            Arrays.fill(drawnX, old, drawnX.length, Float.NaN);
+            Arrays.fill(drawnY, old, drawnY.length, Float.NaN);
         }
-        
-        /*
-        * drawing the particle
-        * Mode:
-        * - flow: the particle is drawn as a line the connect the current location
-        *   to the previous creating a path for each particle
-        * - particle: eahc particle is drawn as a point
-        *
-        * additionally to each particle a countor made of several layers with 
-        * lower alpha is drawn for more visual candy
-        */
-        private void show(String mode) {
-            if (mode.equals("flow")) {
-                // particle body
-                stroke(color, 100, 100, noise(transparency) * 255);
-                strokeWeight(1);
-                line(location.x, location.y, previousLocation.x, previousLocation.y);
+    }
+    
+    /*
+    * drawing particle i of the snapshot at fraction t of its tick
+    * Mode:
+    * - flow: the particle is drawn as a line the connect the current location
+    *   to the one drawn in the previous frame creating a path for each
+    *   particle, no line is drawn when it jumps to the other side
+    * - particle: eahc particle is drawn as a point
+    *
+    * additionally to each particle a countor made of several layers with 
+    * lower alpha is drawn for more visual candy. When batched the particle
+    * is only added to the glow renderer, that draws it with the others
+    */
+    private void showParticle(SimulationSnapshot snapshot, int i, float t, boolean batched) {
+        float color = snapshot.getColor(i);
+        float alpha = snapshot.getAlpha(i);
+        float x = snapshot.getX(i, t) * sketchHeight; // from the unit of the particles to pixels
+        float y = snapshot.getY(i, t) * sketchHeight;
+        float px = drawnX[i];
+        float py = drawnY[i];
+        drawnX[i] = x;
+        drawnY[i] = y;
+        if (batched) {
+            glowRenderer.add(x, y, color, alpha);
+        } else if (mode == Mode.FLOW) {
+            if (Float.isNaN(px) || abs(x - px) + abs(y - py) > sketchHeight / 20f) {
+                return; // first frame of the particle or wrapped around an edge
+            }
+            // particle body
+            stroke(color, 100, 100, alpha * 255);
+            strokeWeight(1);
+            line(x, y, px, py);
 
-                // particle first contour
-                stroke(color, 100, 100, noise(transparency) * 75);
-                strokeWeight(2);
-                line(location.x, location.y, previousLocation.x, previousLocation.y);
+            // particle first contour
+            stroke(color, 100, 100, alpha * 75);
+            strokeWeight(2);
+            line(x, y, px, py);
 
+            // the large contours the quality level allows
+            if (glowLayers >= 1) {
                 // particle second contour
-                stroke(color, 100, 100, noise(transparency) * 50);
+                stroke(color, 100, 100, alpha * 50);
                 strokeWeight(3);
-                line(location.x, location.y, previousLocation.x, previousLocation.y);
+                line(x, y, px, py);
+            }
 
+            if (glowLayers >= 2) {
                 // particle third contour
-                stroke(color, 100, 100, noise(transparency) * 20);
+                stroke(color, 100, 100, alpha * 20);
                 strokeWeight(4);
-                line(location.x, location.y, previousLocation.x, previousLocation.y);
+                line(x, y, px, py);
+            }
 
+            if (glowLayers >= 3) {
                 // particle fourth contour
-                stroke(color, 100, 100, noise(transparency) * 10);
+                stroke(color, 100, 100, alpha * 10);
                 strokeWeight(5);
-                line(location.x, location.y, previousLocation.x, previousLocation.y);
-            } else if (mode.equals("particle")) {
-                // particle body
-                stroke(color, 100, 100, noise(transparency) * 255);
-                strokeWeight(7);
-                point(location.x, location.y);
+                line(x, y, px, py);
+            }
+        } else if (mode == Mode.PARTICLE) {
+            // particle body
+            stroke(color, 100, 100, alpha * 255);
+            strokeWeight(7);
+            point(x, y);
 
-                // particle first contour
-                stroke(color, 100, 100, noise(transparency) * 75);
-                strokeWeight(14);
-                point(location.x, location.y);
+            // particle first contour
+            stroke(color, 100, 100, alpha * 75);
+            strokeWeight(14);
+            point(x, y);
 
+            // the large contours the quality level allows
+            if (glowLayers >= 1) {
                 // particle second contour
-                stroke(color, 100, 100, noise(transparency) * 50);
+                stroke(color, 100, 100, alpha * 50);
                 strokeWeight(28);
-                point(location.x, location.y);
+                point(x, y);
+            }
 
+            if (glowLayers >= 2) {
                 // particle third contour
-                stroke(color, 100, 100, noise(transparency) * 20);
+                stroke(color, 100, 100, alpha * 20);
                 strokeWeight(56);
-                point(location.x, location.y);
+                point(x, y);
+            }
 
+            if (glowLayers >= 3) {
                 // particle fourth contour
-                stroke(color, 100, 100, noise(transparency) * 10);
+                stroke(color, 100, 100, alpha * 10);
                 strokeWeight(112);
-                point(location.x, location.y);
+                point(x, y);
             }
-            
-            updatePreviousLocation();
-            updateTransparency();
-        }
-        
-        /*
-        * Defining the behaviour of the particle when it collides on an edge
-        * of the sketch. When the particle find an edge the it reappears on the
-        * other hand of the sketch. Additionally each time the particle cross
-        * an edge, its previous location is updated.
-        */
-        private void edgesCollision() {
-            if (location.x > width) {
-                location.x = 0;
-                updatePreviousLocation();
-            }
-            if (location.x < 0) {
-                location.x = width;
-                updatePreviousLocation();
-            }
-            if (location.y > height) {
-                location.y = 0;
-                updatePreviousLocation();
-            }
-            if (location.y < 0) {
-                location.y = height;
-                updatePreviousLocation();
-            }
-        }
-        
-        /*
-        * followFlowField takes in input the array of vectors of the flow field
-        * then, given the coordinates of the particle, associates the
-        * particle to the flow vector of the cell it falls into ad update the
-        * acceleration vector of the particle with the values of the flow vector.
-        */
-        private void followFlowField(PVector[] flowVectors) {
-            // mapping pixel coordinates to the cell (row, column) the particle fall into
-            int x  = (int)( 0 + ( (location.x - 0) * (cols - 1 - 0) ) / (1280 - 0) );
-            int y  = (int)( 0 + ( (location.y - 0) * (rows - 1 - 0) ) / (720 - 0) );
-            int index = x + y * cols;
-            PVector flowVector = flowVectors[index];
-            applyForce(flowVector);
-        }
-        
-        // Return particle x coordinate
-        public float getX() {
-            return location.x;
-        }
-        
-        // Return particle y coordinate
-        public float getY() {
-            return location.y;
-        }
-        
-        // Return particle color
-        public float getColor() {
-            return color;
         }
+    }
+    
+    /*
+    * Java2D renderer without window: its surface only runs the animation
+    * thread. Public since Processing builds it by name
+    */
+    public static class OffscreenGraphics extends PGraphicsJava2D {
         
-        // return particle hue
-        public float getHue() {
-            return hue;
+        @Override
+        public boolean displayable() {
+            return false;
         }
         
-        // Map the hue from (0, 1) to a range of colors defined by the shade parameter
-        public void setColor(String shade, float hue) {
-            // mapping hue to color ranges
-            if (shade.equals("red")) {
-                color =  map(hue, 0, 1, 216, 360);
-            } else if (shade.equals("blue")) {
-                color = map(hue, 0, 1, 150, 270);
-            } else if (shade.equals("green")) {
-                color = map(hue, 0, 1, 30, 215);
-            }
+        @Override
+        public PSurface createSurface() {
+            return surface = new PSurfaceNone(this);
         }
         
     }
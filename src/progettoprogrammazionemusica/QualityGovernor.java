@@ -0,0 +1,186 @@
+package progettoprogrammazionemusica;
+import java.util.Arrays;
+
+/*
+* QualityGovernor keeps the sketch within its time budgets by trading
+* quality for time. It is fed once per frame with two loads, the fraction of
+* their deadline the last frame and the synthesizer took:
+*
+* - the visual load, the longest between draw() over the frame period and a
+*   simulation tick over the tick period, is traded against the glow layers
+*   of particle mode and the cells of the flow field;
+* - the audio load, the usage of the synthesizer, is traded against the
+*   number of voices that can sound. The audio system must not adapt its
+*   voices to the same usage (ParticleSystemAudio.setAdaptiveVoices(false)),
+*   two controllers on one signal would fight around the budget.
+*
+* Each one moves along its own ladder of levels, 0 being the full quality.
+* A level is left for a lower one as soon as the 90th percentile of the load
+* over the last WINDOW frames exceeds the budget, and for a higher one only
+* after the load has stayed below UP_MARGIN of the budget for upFrames
+* frames. When a step up is followed by a step down within upFrames frames
+* the level did not fit, so upFrames doubles (up to MAX_UP_FRAMES) and the
+* governor does not keep oscillating between two levels.
+*
+* It is not thread safe, update and the getters are called by the
+* animation thread.
+*/
+public class QualityGovernor {
+
+    private static final int WINDOW = 30; // frames the load percentile is computed on
+    private static final double PERCENTILE = 0.9;
+    private static final double UP_MARGIN = 0.75; // fraction of the budget below which quality is raised
+    private static final int UP_FRAMES = 120; // frames of low load before a step up
+    private static final int MAX_UP_FRAMES = 16 * UP_FRAMES;
+
+    // visual ladder: glow layers of particle mode and divisor of the cells of the flow field
+    private static final int[] GLOW_LAYERS = {3, 2, 2, 1, 1, 0};
+    private static final int[] FIELD_DIVISORS = {1, 1, 4, 4, 16, 16};
+    // audio ladder: fraction of the voice pool that can sound
+    private static final float[] VOICE_FRACTIONS = {1f, 0.75f, 0.5f, 0.35f, 0.25f};
+
+    private final Controller visual;
+    private final Controller audio;
+    private boolean enabled;
+
+    // budgets are the loads (between 0 and 1) not to be exceeded
+    public QualityGovernor(double visualBudget, double audioBudget) {
+        visual = new Controller(GLOW_LAYERS.length, visualBudget);
+        audio = new Controller(VOICE_FRACTIONS.length, audioBudget);
+        enabled = true;
+    }
+
+    /*
+    * Recording the loads of the last frame, true when a level changed and
+    * the settings must be applied again
+    */
+    public boolean update(double visualLoad, double audioLoad) {
+        if (!enabled) {
+            return false;
+        }
+        boolean visualChanged = visual.record(visualLoad);
+        boolean audioChanged = audio.record(audioLoad);
+        return visualChanged || audioChanged;
+    }
+
+    // disabled the governor goes back to the full quality
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            visual.reset();
+            audio.reset();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setVisualBudget(double budget) {
+        visual.budget = budget;
+    }
+
+    public void setAudioBudget(double budget) {
+        audio.budget = budget;
+    }
+
+    public int getVisualLevel() {
+        return visual.level;
+    }
+
+    public int getAudioLevel() {
+        return audio.level;
+    }
+
+    // large contours of the glow of particle mode, from 3 down to 0
+    public int getGlowLayers() {
+        return GLOW_LAYERS[visual.level];
+    }
+
+    // cells of the flow field at this level, given the cells at full quality
+    public int getFieldCells(int fullCells) {
+        return Math.max(1, fullCells / FIELD_DIVISORS[visual.level]);
+    }
+
+    // voices that can sound at this level, given the size of the voice pool
+    public int getVoiceLimit(int poolSize) {
+        return Math.max(1, Math.round(poolSize * VOICE_FRACTIONS[audio.level]));
+    }
+
+    /*
+    * One ladder of levels with its hysteresis. Loads are kept in a ring of
+    * the last WINDOW frames, the window restarts at each change of level so
+    * that the new level is judged on its own frames.
+    */
+    private static class Controller {
+
+        private final int levels;
+        private double budget;
+        private int level;
+        private final double[] loads; // ring of the last loads
+        private final double[] sorted; // copy of the ring to take the percentile
+        private int count; // loads in the ring
+        private int next; // where the next load is written
+        private int framesBelow; // consecutive frames with the load below the step up margin
+        private int upFrames; // frames of low load needed to step up
+        private long frame; // frames recorded so far
+        private long steppedUpAt; // frame of the last step up, -1 if none
+
+        Controller(int levels, double budget) {
+            this.levels = levels;
+            this.budget = budget;
+            loads = new double[WINDOW];
+            sorted = new double[WINDOW];
+            upFrames = UP_FRAMES;
+            steppedUpAt = -1;
+        }
+
+        boolean record(double load) {
+            frame++;
+            loads[next] = load;
+            next = (next + 1) % WINDOW;
+            count = Math.min(WINDOW, count + 1);
+            if (count < WINDOW) {
+                return false;
+            }
+            double percentile = percentile();
+            if (percentile > budget && level < levels - 1) {
+                if (steppedUpAt >= 0 && frame - steppedUpAt < upFrames) {
+                    upFrames = Math.min(MAX_UP_FRAMES, upFrames * 2); // the higher level did not fit
+                }
+                level++;
+                restart();
+                return true;
+            }
+            framesBelow = percentile < budget * UP_MARGIN ? framesBelow + 1 : 0;
+            if (framesBelow >= upFrames && level > 0) {
+                level--;
+                steppedUpAt = frame;
+                restart();
+                return true;
+            }
+            return false;
+        }
+
+        private double percentile() {
+            System.arraycopy(loads, 0, sorted, 0, WINDOW);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(PERCENTILE * WINDOW) - 1];
+        }
+
+        private void restart() {
+            count = 0;
+            next = 0;
+            framesBelow = 0;
+        }
+
+        void reset() {
+            level = 0;
+            upFrames = UP_FRAMES;
+            steppedUpAt = -1;
+            restart();
+        }
+
+    }
+
+}
@@ -0,0 +1,149 @@
+package progettoprogrammazionemusica;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+* Scale is a set of degrees, in cents above the root, repeated every period
+* (1200 cents for the scales of the octave). Degrees do not need to be
+* multiples of 100, so microtonal and non octave scales are described the
+* same way as the diatonic one.
+*
+* Scales are immutable, a Tuning assigns them to the shades.
+*/
+public final class Scale {
+
+    public static final Scale DIATONIC = ofSemitones("diatonic", 0, 2, 4, 5, 7, 9, 11);
+    public static final Scale PENTATONIC = ofSemitones("pentatonic", 0, 2, 4, 7, 9);
+    public static final Scale WHOLE_TONE = ofSemitones("whole tone", 0, 2, 4, 6, 8, 10);
+
+    private final String name;
+    private final double[] cents; // degrees above the root, the first one is the root
+    private final double period; // cents after which the degrees repeat
+
+    private Scale(String name, double[] cents, double period) {
+        if (cents.length == 0) {
+            throw new IllegalArgumentException("a scale needs at least one degree");
+        }
+        this.name = name;
+        this.cents = cents.clone();
+        this.period = period;
+    }
+
+    // degrees in cents above the root, repeated every period cents
+    public static Scale ofCents(String name, double period, double... cents) {
+        return new Scale(name, cents, period);
+    }
+
+    // degrees in equal tempered semitones, repeated every octave
+    public static Scale ofSemitones(String name, int... semitones) {
+        double[] cents = new double[semitones.length];
+        for (int d = 0; d < semitones.length; d++) {
+            cents[d] = semitones[d] * 100;
+        }
+        return new Scale(name, cents, 1200);
+    }
+
+    // degrees as frequency ratios to the root (just intonation), repeated every octave
+    public static Scale ofRatios(String name, double... ratios) {
+        double[] cents = new double[ratios.length];
+        for (int d = 0; d < ratios.length; d++) {
+            cents[d] = ratioToCents(ratios[d]);
+        }
+        return new Scale(name, cents, 1200);
+    }
+
+    // all the steps of the division of period cents in equal parts, e.g. 24 steps of 1200 for quarter tones
+    public static Scale equalDivisions(String name, int steps, double period) {
+        double[] cents = new double[steps];
+        for (int d = 0; d < steps; d++) {
+            cents[d] = period * d / steps;
+        }
+        return new Scale(name, cents, period);
+    }
+
+    /*
+    * Reading a scale in the Scala format (.scl): lines starting with ! are
+    * comments, the first line is the description, the second the number of
+    * pitches, then one pitch per line, in cents when it contains a dot or as
+    * a ratio (3/2 or 2) otherwise. The root is implicit and the last pitch
+    * is the period.
+    */
+    public static Scale load(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.startsWith("!")) {
+                lines.add(line.trim());
+            }
+        }
+        if (lines.size() < 2) {
+            throw new IOException(file + ": missing description or number of pitches");
+        }
+        String description = lines.get(0);
+        int count;
+        try {
+            count = Integer.parseInt(lines.get(1).split("\\s+")[0]);
+        } catch (NumberFormatException e) {
+            throw new IOException(file + ": invalid number of pitches " + lines.get(1));
+        }
+        if (count < 1 || lines.size() < count + 2) {
+            throw new IOException(file + ": expected " + count + " pitches");
+        }
+        double[] cents = new double[count];
+        for (int p = 0; p < count; p++) {
+            String pitch = lines.get(p + 2).split("\\s+")[0];
+            try {
+                cents[p] = parsePitch(pitch);
+            } catch (NumberFormatException e) {
+                throw new IOException(file + ": invalid pitch " + pitch);
+            }
+        }
+        // the root comes first, the period closes the list
+        double[] degrees = new double[count];
+        System.arraycopy(cents, 0, degrees, 1, count - 1);
+        return new Scale(description.isEmpty() ? file.getName() : description, degrees, cents[count - 1]);
+    }
+
+    private static double parsePitch(String pitch) {
+        if (pitch.contains(".")) {
+            return Double.parseDouble(pitch);
+        }
+        int slash = pitch.indexOf('/');
+        if (slash < 0) {
+            return ratioToCents(Long.parseLong(pitch));
+        }
+        return ratioToCents((double) Long.parseLong(pitch.substring(0, slash))
+                            / Long.parseLong(pitch.substring(slash + 1)));
+    }
+
+    private static double ratioToCents(double ratio) {
+        return 1200 * Math.log(ratio) / Math.log(2);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return cents.length;
+    }
+
+    // cents above the root of degree d, degrees beyond size() are in the following periods
+    public double getCents(int d) {
+        int octave = Math.floorDiv(d, cents.length);
+        return cents[Math.floorMod(d, cents.length)] + octave * period;
+    }
+
+    public double getPeriod() {
+        return period;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,300 @@
+package progettoprogrammazionemusica;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+* SessionPlayer replays a session written by SessionRecorder. It is given
+* to a FlowSimulation with setReplay: each step of the simulation reads the
+* next tick of the log into the particles instead of computing the flow
+* field and the physics, so whatever draws or plays the simulation replays
+* the session.
+*
+* The audio system given with setAudioSystem gets the calls the sketch made
+* on its voices, at the same ticks and on the same particles. Built with a
+* Random of getAudioSeed() and rendered offline, it gives the same sound at
+* every replay.
+*
+* The log is read through a memory-mapped window of the file, as it was
+* written: reading a tick creates no object. A log cut short (e.g. by a
+* crash of the recording machine) replays up to its last whole tick.
+*/
+public class SessionPlayer {
+
+    private static final int CHUNK = 16 << 20; // bytes mapped at a time
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long length;
+    private MappedByteBuffer window; // part of the file being read
+    private long windowStart; // position of the window in the file
+    private final float aspect;
+    private final long audioSeed;
+    private final int poolSize;
+    private final int channels;
+    private final int seed;
+    private final String noiseType;
+    private final float tickRate;
+    private ParticleSystemAudio audio; // replays the calls on the voices, null to replay the particles only
+    private boolean[] touched; // proximity events of the tick being read
+    private int lastSize; // particles of the last record, the following ones are new
+    private Mode mode; // mode of the last tick
+    private Mode stateMode; // mode and shade of the last state
+    private Shade stateShade;
+    private long tickNanos; // duration of the last tick
+    private long ticks;
+    private boolean started;
+    private boolean finished;
+
+    public SessionPlayer(File source) throws IOException {
+        file = new RandomAccessFile(source, "r");
+        channel = file.getChannel();
+        length = channel.size();
+        window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(CHUNK, length));
+        try {
+            if (window.getInt() != SessionRecorder.MAGIC || window.getInt() != SessionRecorder.VERSION) {
+                throw new IOException("not a recorded session: " + source);
+            }
+            aspect = window.getFloat();
+            audioSeed = window.getLong();
+            poolSize = window.getInt();
+            channels = window.getInt();
+            seed = window.getInt();
+            noiseType = window.get() == 1 ? "simplex" : "perlin";
+            tickRate = window.getFloat();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("not a recorded session: " + source);
+        }
+        touched = new boolean[0];
+        mode = Mode.PARTICLE;
+        tickNanos = (long) (1e9 / tickRate);
+    }
+
+    // the audio system the recorded calls are made on, its voices are allowed as they were
+    public void setAudioSystem(ParticleSystemAudio audio) {
+        this.audio = audio;
+        if (audio != null) {
+            audio.setAdaptiveVoices(false);
+        }
+    }
+
+    /*
+    * Called by FlowSimulation for each step: the events recorded before the
+    * next tick are applied, then the tick is read into the simulation. At
+    * the end of the log the simulation stays as it is
+    */
+    void readTick(FlowSimulation simulation) {
+        if (finished) {
+            return;
+        }
+        if (!started) {
+            // the noise only gives the transparency of the particles
+            simulation.setNoiseType(noiseType);
+            simulation.setSeed(seed);
+            started = true;
+        }
+        try {
+            while (ensure(SessionRecorder.EVENT_BYTES)) {
+                byte type = window.get();
+                switch (type) {
+                    case SessionRecorder.TICK:
+                        readTickRecord(simulation);
+                        return;
+                    case SessionRecorder.STATE:
+                        readState(simulation);
+                        break;
+                    case SessionRecorder.SEED:
+                        simulation.setSeed(window.getInt());
+                        break;
+                    case SessionRecorder.NOISE:
+                        simulation.setNoiseType(window.getInt() == 1 ? "simplex" : "perlin");
+                        break;
+                    default:
+                        if (!readAudioEvent(type, simulation)) {
+                            finished = true; // END
+                            return;
+                        }
+                        break;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            // the last record was not written whole
+        }
+        finished = true;
+    }
+
+    private boolean readAudioEvent(byte type, FlowSimulation simulation) {
+        int value;
+        switch (type) {
+            case SessionRecorder.SOUNDING:
+            case SessionRecorder.PITCHES:
+            case SessionRecorder.AUDIO_MODE:
+            case SessionRecorder.VOICE_LIMIT:
+            case SessionRecorder.RESET:
+                value = window.getInt();
+                break;
+            default:
+                return false;
+        }
+        if (audio == null) {
+            return true;
+        }
+        ParticleStore particles = simulation.getParticles();
+        switch (type) {
+            case SessionRecorder.SOUNDING:
+                audio.setSoundingParticles(particles, simulation.getNumParticles(), stateShade, stateMode);
+                break;
+            case SessionRecorder.PITCHES:
+                audio.updatePitches(particles, stateShade);
+                break;
+            case SessionRecorder.AUDIO_MODE:
+                audio.setMode(Mode.values()[value]);
+                break;
+            case SessionRecorder.VOICE_LIMIT:
+                audio.setVoiceLimit(value);
+                break;
+            default:
+                audio.reset();
+                break;
+        }
+        return true;
+    }
+
+    private void readTickRecord(FlowSimulation simulation) {
+        ensure(SessionRecorder.TICK_BYTES - 1);
+        Mode tickMode = Mode.values()[window.get()];
+        Shade shade = Shade.values()[window.get()];
+        int flags = window.get();
+        int n = window.getInt();
+        float zOffset = window.getFloat();
+        long nanos = window.getInt();
+        int allowedVoices = window.getInt();
+        simulation.setReplayState(n, shade);
+        if (touched.length < n) {
+            touched = new boolean[Math.max(n, touched.length * 2)];
+        }
+        readParticles(simulation.getParticles(), n, true);
+        simulation.setReplayTick(zOffset, touched);
+        if (audio != null && (flags & SessionRecorder.AUDIO) != 0) {
+            if (audio.getAllowedVoices() != allowedVoices) {
+                audio.setAllowedVoices(allowedVoices);
+            }
+            audio.updateVoices(simulation.getParticles(), simulation.getGrid(), n, shade, tickMode);
+        }
+        mode = tickMode;
+        tickNanos = nanos;
+        ticks++;
+    }
+
+    private void readState(FlowSimulation simulation) {
+        ensure(SessionRecorder.STATE_BYTES - 1);
+        stateMode = Mode.values()[window.get()];
+        stateShade = Shade.values()[window.get()];
+        int n = window.getInt();
+        simulation.setReplayState(n, stateShade);
+        readParticles(simulation.getParticles(), n, false);
+    }
+
+    /*
+    * The first n particles, as SessionRecorder wrote them: after a tick the
+    * particles known from the last record move by a step (advance), what
+    * is not written is what that step gives
+    */
+    private void readParticles(ParticleStore particles, int n, boolean tick) {
+        ensure(n * SessionRecorder.MAX_PARTICLE_BYTES);
+        for (int i = 0; i < n; i++) {
+            if (tick && i < lastSize) {
+                particles.advance(i);
+            }
+            int flags = window.get();
+            float x = window.getFloat();
+            float y = window.getFloat();
+            float previousX = particles.getPreviousX(i);
+            float previousY = particles.getPreviousY(i);
+            float transparency = particles.getTransparency(i);
+            float color = particles.getColor(i);
+            if ((flags & SessionRecorder.MOVED) != 0) {
+                previousX = window.getFloat();
+                previousY = window.getFloat();
+            }
+            if ((flags & SessionRecorder.FADED) != 0) {
+                transparency = window.getFloat();
+            }
+            if ((flags & SessionRecorder.COLORED) != 0) {
+                color = window.getFloat();
+            }
+            if (tick) {
+                touched[i] = (flags & SessionRecorder.TOUCHED) != 0;
+            }
+            particles.set(i, x, y, previousX, previousY, color, transparency);
+        }
+        lastSize = n;
+    }
+
+    /*
+    * Moving the window forward when less than bytes are left in it, up to
+    * the end of the file. False when the file is over
+    */
+    private boolean ensure(int bytes) {
+        if (window.remaining() < bytes && windowStart + window.limit() < length) {
+            long start = windowStart + window.position();
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(Math.max(CHUNK, bytes), length - start));
+                windowStart = start;
+            } catch (IOException e) {
+                System.err.println("Session replay stopped: " + e);
+                return false;
+            }
+        }
+        return window.hasRemaining();
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    // ticks replayed so far
+    public long getTicks() {
+        return ticks;
+    }
+
+    // mode the sketch had at the last tick
+    public Mode getMode() {
+        return mode;
+    }
+
+    // duration of the last tick
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    public float getAspect() {
+        return aspect;
+    }
+
+    // seed of the Random the audio system must be built with
+    public long getAudioSeed() {
+        return audioSeed;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    // ticks per second when the recording started
+    public float getTickRate() {
+        return tickRate;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+}
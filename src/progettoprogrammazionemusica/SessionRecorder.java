@@ -0,0 +1,264 @@
+package progettoprogrammazionemusica;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/*
+* SessionRecorder writes a live session to a compact binary log that
+* SessionPlayer replays later without the flow field and without the
+* physics: the particles of every tick, the settings, and every call the
+* sketch made on the voices, in the order the simulation thread made them.
+* With the seed of the audio in the header, the replay makes the same calls
+* on a synthesizer built with the same randomness.
+*
+* The log is written through a memory-mapped window of the file, moved
+* forward CHUNK bytes at a time: recording a tick is a sequence of puts into
+* the window, no object is created and no system call is made.
+*
+* The location of a particle is always written. Its previous location,
+* transparency and color are written only when they differ from what the
+* player derives from the previous record (the last location, the last
+* transparency plus its increment, the last color): when the particle
+* wraps around an edge, is new, restarts or changes shade. Most ticks cost
+* 9 bytes per particle.
+*
+* Format, big endian:
+*   header    magic, version, aspect, audio seed, voice pool, channels,
+*             noise seed, noise type (0 perlin, 1 simplex), tick rate
+*   records   a type byte, 0 or the end of the file ends the log
+*   TICK      mode, shade, flags (AUDIO), n, zOffset, tick nanos, allowed
+*             voices, n particles
+*   STATE     mode, shade, n, n particles: what a call on the voices saw
+*   events    an int: SEED, NOISE, AUDIO_MODE, VOICE_LIMIT, unused by
+*             SOUNDING, PITCHES and RESET
+*   particle  flags, x, y, previous x and y if MOVED, transparency if
+*             FADED, color if COLORED
+*
+* The recorder must only be used by the thread that owns the simulation.
+*/
+public class SessionRecorder {
+
+    static final int MAGIC = 0x50504d53; // "PPMS"
+    static final int VERSION = 1;
+
+    // records
+    static final byte END = 0;
+    static final byte TICK = 1;
+    static final byte STATE = 2;
+    static final byte SEED = 3; // new seed of the noise
+    static final byte NOISE = 4; // new noise type
+    static final byte SOUNDING = 5; // setSoundingParticles on the last state
+    static final byte PITCHES = 6; // updatePitches on the last state
+    static final byte AUDIO_MODE = 7; // setMode of the voices
+    static final byte VOICE_LIMIT = 8;
+    static final byte RESET = 9; // reset of the audio system
+
+    // flags of a tick
+    static final int AUDIO = 1; // the voices were updated with this tick
+
+    // flags of a particle
+    static final int TOUCHED = 1; // came close to another particle at this tick
+    static final int MOVED = 2;
+    static final int FADED = 4;
+    static final int COLORED = 8;
+
+    static final int TICK_BYTES = 20;
+    static final int STATE_BYTES = 7;
+    static final int EVENT_BYTES = 5;
+    static final int MAX_PARTICLE_BYTES = 25;
+    private static final int CHUNK = 16 << 20; // bytes mapped at a time
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer window; // part of the file being written
+    private long windowStart; // position of the window in the file
+    private final ParticleStore last; // the particles as the player has them after the last record
+    private int lastSize; // particles of the last record, the following ones are new to the player
+    private long ticks;
+    private boolean closed;
+
+    /*
+    * Starting a log of the simulation. audioSeed is the seed of the Random
+    * of the ParticleSystemAudio the sketch builds, poolSize and channels
+    * its size, tickRate the ticks per second at the start
+    */
+    public SessionRecorder(File target, FlowSimulation simulation, long audioSeed, int poolSize, int channels,
+                           double tickRate) throws IOException {
+        file = new RandomAccessFile(target, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        window = channel.map(FileChannel.MapMode.READ_WRITE, 0, CHUNK);
+        last = new ParticleStore(simulation.getAspect(), 128, new Random(0));
+        window.putInt(MAGIC).putInt(VERSION).putFloat(simulation.getAspect()).putLong(audioSeed)
+              .putInt(poolSize).putInt(channels).putInt(simulation.getSeed())
+              .put((byte) (simulation.getNoiseType().equals("simplex") ? 1 : 0)).putFloat((float) tickRate);
+    }
+
+    /*
+    * The tick just computed. audio is the audio system whose voices were
+    * updated with it, null if none
+    */
+    public void recordTick(FlowSimulation simulation, Mode mode, long tickNanos, ParticleSystemAudio audio) {
+        int n = simulation.getNumParticles();
+        if (!ensure(TICK_BYTES + n * MAX_PARTICLE_BYTES)) {
+            return;
+        }
+        window.put(TICK).put((byte) mode.ordinal()).put((byte) simulation.getShade().ordinal())
+              .put((byte) (audio != null ? AUDIO : 0)).putInt(n).putFloat(simulation.getZOffset())
+              .putInt((int) tickNanos).putInt(audio != null ? audio.getAllowedVoices() : 0);
+        putParticles(simulation, n, true);
+        ticks++;
+    }
+
+    // setSoundingParticles is about to be called with shade and mode on the particles of the simulation
+    public void recordSounding(FlowSimulation simulation, Shade shade, Mode mode) {
+        if (putState(simulation, shade, mode)) {
+            putEvent(SOUNDING, 0);
+        }
+    }
+
+    // updatePitches is about to be called with shade
+    public void recordPitches(FlowSimulation simulation, Shade shade, Mode mode) {
+        if (putState(simulation, shade, mode)) {
+            putEvent(PITCHES, 0);
+        }
+    }
+
+    public void recordSeed(int seed) {
+        putEvent(SEED, seed);
+    }
+
+    public void recordNoiseType(String type) {
+        putEvent(NOISE, type.equals("simplex") ? 1 : 0);
+    }
+
+    public void recordAudioMode(Mode mode) {
+        putEvent(AUDIO_MODE, mode.ordinal());
+    }
+
+    public void recordVoiceLimit(int limit) {
+        putEvent(VOICE_LIMIT, limit);
+    }
+
+    public void recordReset() {
+        putEvent(RESET, 0);
+    }
+
+    private void putEvent(byte type, int value) {
+        if (ensure(EVENT_BYTES)) {
+            window.put(type).putInt(value);
+        }
+    }
+
+    private boolean putState(FlowSimulation simulation, Shade shade, Mode mode) {
+        int n = simulation.getNumParticles();
+        if (!ensure(STATE_BYTES + n * MAX_PARTICLE_BYTES)) {
+            return false;
+        }
+        window.put(STATE).put((byte) mode.ordinal()).put((byte) shade.ordinal()).putInt(n);
+        putParticles(simulation, n, false);
+        return true;
+    }
+
+    /*
+    * The first n particles. After a tick the player moves its particles by
+    * a step (advance) before reading them, the recorder does the same on
+    * its copy to know what the player expects
+    */
+    private void putParticles(FlowSimulation simulation, int n, boolean tick) {
+        ParticleStore particles = simulation.getParticles();
+        ParticleGrid grid = simulation.getGrid();
+        last.ensureSize(n, simulation.getShade());
+        for (int i = 0; i < n; i++) {
+            float x = particles.getX(i);
+            float y = particles.getY(i);
+            float previousX = particles.getPreviousX(i);
+            float previousY = particles.getPreviousY(i);
+            float transparency = particles.getTransparency(i);
+            float color = particles.getColor(i);
+            int flags = MOVED | FADED | COLORED;
+            if (i < lastSize) {
+                if (tick) {
+                    last.advance(i);
+                }
+                flags = 0;
+                if (previousX != last.getPreviousX(i) || previousY != last.getPreviousY(i)) {
+                    flags |= MOVED;
+                }
+                if (transparency != last.getTransparency(i)) {
+                    flags |= FADED;
+                }
+                if (color != last.getColor(i)) {
+                    flags |= COLORED;
+                }
+            }
+            if (tick && grid != null && grid.isTouched(i)) {
+                flags |= TOUCHED;
+            }
+            window.put((byte) flags).putFloat(x).putFloat(y);
+            if ((flags & MOVED) != 0) {
+                window.putFloat(previousX).putFloat(previousY);
+            }
+            if ((flags & FADED) != 0) {
+                window.putFloat(transparency);
+            }
+            if ((flags & COLORED) != 0) {
+                window.putFloat(color);
+            }
+            last.set(i, x, y, previousX, previousY, color, transparency);
+        }
+        lastSize = n;
+    }
+
+    // moving the window forward when less than bytes are left, false if the log cannot grow
+    private boolean ensure(int bytes) {
+        if (closed) {
+            return false;
+        }
+        if (window.remaining() < bytes) {
+            long start = windowStart + window.position();
+            try {
+                window = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.max(CHUNK, bytes));
+                windowStart = start;
+            } catch (IOException e) {
+                System.err.println("Session recording stopped: " + e);
+                close(); // the log ends with the last whole record
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getTicks() {
+        return ticks;
+    }
+
+    // bytes written so far
+    public long getLength() {
+        return windowStart + window.position();
+    }
+
+    // cutting the file at the end of the log, the log can be replayed from here
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        long length = getLength();
+        window.force();
+        try {
+            channel.truncate(length);
+        } catch (IOException e) {
+            // e.g. where a mapped file cannot shrink: the zeros after the log end it as well
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.err.println("Session log not closed: " + e);
+        }
+    }
+
+}
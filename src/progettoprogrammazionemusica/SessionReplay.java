@@ -0,0 +1,79 @@
+package progettoprogrammazionemusica;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/*
+* SessionReplay renders the sound of a session recorded by SessionRecorder
+* to a WAV file, without window and without sound card. The recorded
+* particles drive an audio system built with the recorded seed, which gets
+* the calls the sketch made on its voices at the same ticks; the
+* synthesizer is not in real time and is advanced by the duration of each
+* recorded tick. The flow field and the physics are not computed and every
+* run gives the same file.
+*
+* Usage: SessionReplay session file [shade scale]
+*
+* scale is a Scala (.scl) file replacing the scale of shade, as the live
+* sketch had it: the tuning is not recorded
+*/
+public class SessionReplay {
+
+    private static final int FRAME_RATE = 44100; // audio sample rate
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: SessionReplay session file [shade scale]");
+            System.exit(1);
+        }
+        Tuning tuning = Tuning.STANDARD;
+        if (args.length > 3) {
+            tuning = tuning.withScale(Shade.fromName(args[2]), Scale.load(new File(args[3])));
+        }
+        render(new File(args[0]), new File(args[1]), tuning);
+    }
+
+    public static void render(File session, File file, Tuning tuning) throws IOException {
+        SessionPlayer player = new SessionPlayer(session);
+        if (player.getChannels() != 2) {
+            throw new IllegalArgumentException("WAV files are stereo, the session has " + player.getChannels() + " channels");
+        }
+        // the size of the field does not matter, it is not computed
+        FlowSimulation simulation = new FlowSimulation(64, 36, player.getAspect(), 0.1f, 0.0003f, new Random());
+        simulation.setReplay(player);
+
+        ParticleSystemAudio audioSystem = new ParticleSystemAudio(player.getPoolSize(), true, SpeakerLayout.stereo(),
+                                                                  new Random(player.getAudioSeed()));
+        audioSystem.setTuning(tuning);
+        WaveFileSink sink = new WaveFileSink(file, FRAME_RATE);
+        audioSystem.getSynthesizer().add(sink);
+        audioSystem.getOutput().connect(0, sink.input, 0);
+        audioSystem.getOutput().connect(1, sink.input, 1);
+        audioSystem.startOfflineAudioSystem(FRAME_RATE);
+        sink.start();
+        player.setAudioSystem(audioSystem);
+
+        long startTime = System.nanoTime();
+        double time = 0;
+        try {
+            while (true) {
+                simulation.step();
+                if (player.isFinished()) {
+                    break;
+                }
+                time += player.getTickNanos() / 1e9;
+                audioSystem.getSynthesizer().sleepUntil(time);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            audioSystem.stopAudioSystem();
+            sink.close();
+            player.close();
+        }
+        double elapsed = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("%s: %d ticks, %.1f s of audio in %.1f s (%.1fx realtime)%n",
+                          file, player.getTicks(), sink.getDuration(), elapsed, sink.getDuration() / elapsed);
+    }
+
+}
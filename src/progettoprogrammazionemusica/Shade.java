@@ -0,0 +1,45 @@
+package progettoprogrammazionemusica;
+
+/*
+* Shade of the particles: the range of hues their colors are taken from.
+* The tuning maps each shade onto its own scale, the hue of a particle
+* chooses the degree.
+*/
+public enum Shade {
+
+    RED(216, 360),
+    GREEN(30, 215),
+    BLUE(150, 270);
+
+    private final float minHue;
+    private final float maxHue;
+
+    Shade(float minHue, float maxHue) {
+        this.minHue = minHue;
+        this.maxHue = maxHue;
+    }
+
+    // color (between 0 and 360) of a hue between 0 and 1
+    public float color(float hue) {
+        return minHue + hue * (maxHue - minHue);
+    }
+
+    public float getMinHue() {
+        return minHue;
+    }
+
+    public float getMaxHue() {
+        return maxHue;
+    }
+
+    // "red", "green" or "blue", as written by the user
+    public static Shade fromName(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+
+}
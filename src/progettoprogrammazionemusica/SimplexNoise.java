@@ -0,0 +1,194 @@
+package progettoprogrammazionemusica;
+import java.util.Random;
+
+/*
+* SimplexNoise is a 3D gradient noise on a simplex grid. The permutation
+* table is shuffled from the seed and, like the gradient table, is built once
+* in the constructor, so an instance is reentrant.
+*
+* Several octaves can be summed, each one with double frequency and the
+* amplitude of the previous multiplied by falloff. The result is normalized
+* to (0, 1) like the Processing noise so the two can be swapped.
+*
+* noiseRow and noiseGrid are plain loops over the samples, they only save
+* the call through the NoiseSource interface for each sample.
+*/
+public final class SimplexNoise implements NoiseSource {
+
+    private static final float F3 = 1f / 3f; // skewing and unskewing factors for 3D
+    private static final float G3 = 1f / 6f;
+    // the 12 gradients point to the edges of a cube
+    private static final float[] GRAD_X = {1, -1, 1, -1, 1, -1, 1, -1, 0, 0, 0, 0};
+    private static final float[] GRAD_Y = {1, 1, -1, -1, 0, 0, 0, 0, 1, -1, 1, -1};
+    private static final float[] GRAD_Z = {0, 0, 0, 0, 1, 1, -1, -1, 1, 1, -1, -1};
+
+    private final long seed;
+    private final int octaves; // number of layers of noise summed together
+    private final float falloff; // amplitude reduction of each octave
+    private final float normalization; // inverse of the sum of the octave amplitudes
+    private final int[] perm; // permutation of 0..255 repeated twice to avoid wrapping indices
+    private final int[] permMod12; // perm modulo 12, index of the gradient
+
+    public SimplexNoise(long seed) {
+        this(seed, 1, 0.5f);
+    }
+
+    public SimplexNoise(long seed, int octaves, float falloff) {
+        this.seed = seed;
+        this.octaves = Math.max(1, octaves);
+        this.falloff = falloff;
+        float sum = 0;
+        float ampl = 1;
+        for (int i = 0; i < this.octaves; i++) {
+            sum += ampl;
+            ampl *= falloff;
+        }
+        normalization = 1 / sum;
+
+        int[] p = new int[256];
+        for (int i = 0; i < 256; i++) {
+            p[i] = i;
+        }
+        Random rand = new Random(seed);
+        for (int i = 255; i > 0; i--) { // Fisher-Yates shuffle
+            int j = rand.nextInt(i + 1);
+            int tmp = p[i];
+            p[i] = p[j];
+            p[j] = tmp;
+        }
+        perm = new int[512];
+        permMod12 = new int[512];
+        for (int i = 0; i < 512; i++) {
+            perm[i] = p[i & 255];
+            permMod12[i] = perm[i] % 12;
+        }
+    }
+
+    @Override
+    public float noise(float x, float y, float z) {
+        return fractal(x, y, z);
+    }
+
+    @Override
+    public void noiseRow(float x, float xStep, float y, float z, float[] out, int offset, int n) {
+        for (int i = 0; i < n; i++) {
+            out[offset + i] = fractal(x, y, z);
+            x += xStep;
+        }
+    }
+
+    /*
+    * Evaluating a grid of cols x rows samples: row r starts at
+    * (x, y + r * yStep, z + r * zStep) and moves by xStep along x.
+    * This is the same sampling pattern of FlowField.
+    */
+    public void noiseGrid(float x, float xStep, float y, float yStep, float z, float zStep,
+                          int cols, int rows, float[] out) {
+        for (int r = 0; r < rows; r++) {
+            noiseRow(x, xStep, y + r * yStep, z + r * zStep, out, r * cols, cols);
+        }
+    }
+
+    // sum of the octaves mapped to (0, 1)
+    private float fractal(float x, float y, float z) {
+        if (octaves == 1) {
+            return 0.5f + 0.5f * simplex(x, y, z);
+        }
+        float r = 0;
+        float ampl = 1;
+        for (int i = 0; i < octaves; i++) {
+            r += ampl * simplex(x, y, z);
+            ampl *= falloff;
+            x *= 2;
+            y *= 2;
+            z *= 2;
+        }
+        return 0.5f + 0.5f * r * normalization;
+    }
+
+    // single octave of simplex noise, between -1 and 1
+    private float simplex(float xin, float yin, float zin) {
+        // skewing the input space to find the simplex cell
+        float s = (xin + yin + zin) * F3;
+        int i = fastFloor(xin + s);
+        int j = fastFloor(yin + s);
+        int k = fastFloor(zin + s);
+        float t = (i + j + k) * G3;
+        float x0 = xin - (i - t); // distances from the cell origin
+        float y0 = yin - (j - t);
+        float z0 = zin - (k - t);
+
+        // finding in which of the six tetrahedra the point is
+        int i1, j1, k1, i2, j2, k2;
+        if (x0 >= y0) {
+            if (y0 >= z0) {
+                i1 = 1; j1 = 0; k1 = 0; i2 = 1; j2 = 1; k2 = 0;
+            } else if (x0 >= z0) {
+                i1 = 1; j1 = 0; k1 = 0; i2 = 1; j2 = 0; k2 = 1;
+            } else {
+                i1 = 0; j1 = 0; k1 = 1; i2 = 1; j2 = 0; k2 = 1;
+            }
+        } else {
+            if (y0 < z0) {
+                i1 = 0; j1 = 0; k1 = 1; i2 = 0; j2 = 1; k2 = 1;
+            } else if (x0 < z0) {
+                i1 = 0; j1 = 1; k1 = 0; i2 = 0; j2 = 1; k2 = 1;
+            } else {
+                i1 = 0; j1 = 1; k1 = 0; i2 = 1; j2 = 1; k2 = 0;
+            }
+        }
+
+        float x1 = x0 - i1 + G3; // offsets of the other three corners
+        float y1 = y0 - j1 + G3;
+        float z1 = z0 - k1 + G3;
+        float x2 = x0 - i2 + 2 * G3;
+        float y2 = y0 - j2 + 2 * G3;
+        float z2 = z0 - k2 + 2 * G3;
+        float x3 = x0 - 1 + 3 * G3;
+        float y3 = y0 - 1 + 3 * G3;
+        float z3 = z0 - 1 + 3 * G3;
+
+        int ii = i & 255;
+        int jj = j & 255;
+        int kk = k & 255;
+
+        // contribution of each corner
+        float n = 0;
+        float t0 = 0.6f - x0 * x0 - y0 * y0 - z0 * z0;
+        if (t0 > 0) {
+            int g = permMod12[ii + perm[jj + perm[kk]]];
+            t0 *= t0;
+            n += t0 * t0 * (GRAD_X[g] * x0 + GRAD_Y[g] * y0 + GRAD_Z[g] * z0);
+        }
+        float t1 = 0.6f - x1 * x1 - y1 * y1 - z1 * z1;
+        if (t1 > 0) {
+            int g = permMod12[ii + i1 + perm[jj + j1 + perm[kk + k1]]];
+            t1 *= t1;
+            n += t1 * t1 * (GRAD_X[g] * x1 + GRAD_Y[g] * y1 + GRAD_Z[g] * z1);
+        }
+        float t2 = 0.6f - x2 * x2 - y2 * y2 - z2 * z2;
+        if (t2 > 0) {
+            int g = permMod12[ii + i2 + perm[jj + j2 + perm[kk + k2]]];
+            t2 *= t2;
+            n += t2 * t2 * (GRAD_X[g] * x2 + GRAD_Y[g] * y2 + GRAD_Z[g] * z2);
+        }
+        float t3 = 0.6f - x3 * x3 - y3 * y3 - z3 * z3;
+        if (t3 > 0) {
+            int g = permMod12[ii + 1 + perm[jj + 1 + perm[kk + 1]]];
+            t3 *= t3;
+            n += t3 * t3 * (GRAD_X[g] * x3 + GRAD_Y[g] * y3 + GRAD_Z[g] * z3);
+        }
+        return 32 * n; // scaling the result to stay between -1 and 1
+    }
+
+    private static int fastFloor(float x) {
+        int xi = (int) x;
+        return x < xi ? xi - 1 : xi;
+    }
+
+    @Override
+    public long getSeed() {
+        return seed;
+    }
+
+}
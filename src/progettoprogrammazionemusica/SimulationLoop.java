@@ -0,0 +1,189 @@
+package progettoprogrammazionemusica;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+* SimulationLoop advances a FlowSimulation on its own thread at a fixed tick
+* rate, independent of the frame rate of the sketch: particles move at the
+* same speed at 30 or 60 frames per second and a slow frame does not slow
+* the simulation or the sound.
+*
+* After each tick the listener is called on the simulation thread (the
+* sketch maps the particles to the voices there) and a snapshot is
+* published. Snapshots are passed to the animation thread with a triple
+* buffer, as ParameterChannel does for the voices: publishing and reading
+* never wait for each other and the reader always gets a whole tick.
+*
+* The simulation must only be touched by the simulation thread while the
+* loop runs: changes are submitted as commands, run before the next tick.
+*/
+public class SimulationLoop implements Runnable {
+
+    private static final int DIRTY = 4; // flag of the shared index: a snapshot has been published and not read yet
+    private static final int MAX_LATE_TICKS = 5; // beyond this delay the loop stops catching up
+
+    // called on the simulation thread after each tick
+    public interface Listener {
+        void afterTick(FlowSimulation simulation);
+    }
+
+    private final FlowSimulation simulation;
+    private final ConcurrentLinkedQueue<Runnable> commands;
+    private final SimulationSnapshot[] snapshots;
+    private final AtomicInteger shared; // index of the shared snapshot, plus DIRTY
+    private int writing; // index of the snapshot filled by the simulation thread
+    private int reading; // index of the snapshot held by the animation thread
+    private boolean read; // the reader holds a published snapshot
+    private final FrameProfiler profiler; // time spent in each phase of a tick
+    private volatile double tickRate; // ticks per second
+    private volatile boolean running;
+    private Listener listener;
+    private Thread thread;
+    private long ticks;
+    private volatile double load; // duration of the last tick over the tick period
+
+    public SimulationLoop(FlowSimulation simulation, double tickRate, FrameProfiler profiler) {
+        this.simulation = simulation;
+        this.profiler = profiler;
+        setTickRate(tickRate);
+        commands = new ConcurrentLinkedQueue<>();
+        snapshots = new SimulationSnapshot[] {new SimulationSnapshot(), new SimulationSnapshot(), new SimulationSnapshot()};
+        writing = 0;
+        shared = new AtomicInteger(1);
+        reading = 2;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // starting the simulation thread, commands submitted while stopped run first
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // stopping the simulation thread and waiting for the tick in progress to end
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    // running a change of the simulation on the simulation thread, before the next tick
+    public void submit(Runnable command) {
+        commands.add(command);
+    }
+
+    /*
+    * Running the submitted commands and one tick on the calling thread, for
+    * a caller that paces the simulation itself (e.g. a replay drawn tick by
+    * tick). The loop must not be running
+    */
+    public void step() {
+        runCommands();
+        tick(getTickNanos());
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime();
+        while (running) {
+            long tickNanos = getTickNanos();
+            runCommands();
+            tick(tickNanos);
+            next += tickNanos;
+            long now = System.nanoTime();
+            if (now - next > MAX_LATE_TICKS * tickNanos) {
+                next = now; // too late to catch up, the simulation slows down instead
+            }
+            while (running && next - now > 0) {
+                LockSupport.parkNanos(next - now);
+                now = System.nanoTime();
+            }
+        }
+        runCommands();
+    }
+
+    private void runCommands() {
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            command.run();
+        }
+    }
+
+    private void tick(long tickNanos) {
+        long started = System.nanoTime();
+        profiler.begin(FrameProfiler.FRAME);
+        profiler.begin(FrameProfiler.FIELD);
+        simulation.stepField();
+        profiler.end(FrameProfiler.FIELD);
+        profiler.begin(FrameProfiler.PARTICLES);
+        simulation.stepParticles();
+        profiler.end(FrameProfiler.PARTICLES);
+        profiler.begin(FrameProfiler.AUDIO);
+        if (listener != null) {
+            listener.afterTick(simulation);
+        }
+        profiler.end(FrameProfiler.AUDIO);
+        snapshots[writing].capture(simulation.getParticles(), simulation.getNumParticles(),
+                                   simulation.getNoiseSource(), ticks++, tickNanos);
+        writing = shared.getAndSet(writing | DIRTY) & ~DIRTY;
+        profiler.end(FrameProfiler.FRAME);
+        profiler.endFrame();
+        load = (double) (System.nanoTime() - started) / tickNanos;
+    }
+
+    /*
+    * Animation thread: the last published snapshot, or the one returned by
+    * the previous call if nothing new has been published since. Null until
+    * the first tick.
+    */
+    public SimulationSnapshot latest() {
+        if ((shared.get() & DIRTY) != 0) {
+            reading = shared.getAndSet(reading) & ~DIRTY;
+            read = true;
+        }
+        return read ? snapshots[reading] : null;
+    }
+
+    // at least one tick per second, NaN and infinity leave the rate as it is
+    public void setTickRate(double rate) {
+        if (Double.isFinite(rate)) {
+            tickRate = Math.max(1, rate);
+        }
+    }
+
+    public double getTickRate() {
+        return tickRate;
+    }
+
+    // duration of a tick at the current tick rate
+    public long getTickNanos() {
+        return (long) (1e9 / tickRate);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // fraction of the tick period the last tick took, above 1 the simulation falls behind
+    public double getLoad() {
+        return load;
+    }
+
+}
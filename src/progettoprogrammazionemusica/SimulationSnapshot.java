@@ -0,0 +1,95 @@
+package progettoprogrammazionemusica;
+import java.util.Arrays;
+
+/*
+* SimulationSnapshot is what the renderer needs of one tick of the
+* simulation: for each particle its location at the previous and at the
+* current tick, its color and its transparency.
+*
+* Snapshots are filled by the simulation thread and handed to the animation
+* thread by SimulationLoop; once published a snapshot is not written until
+* the reader gives it back, so for the reader it is immutable.
+*/
+public class SimulationSnapshot {
+
+    private float[] previousX; // location at the previous tick, in the units of ParticleStore
+    private float[] previousY;
+    private float[] x; // location at this tick
+    private float[] y;
+    private float[] color; // hue between 0 and 360
+    private float[] alpha; // transparency between 0 and 1
+    private int size;
+    private long tick; // index of the tick
+    private long time; // System.nanoTime() when the tick was published
+    private long tickNanos; // duration of a tick
+
+    SimulationSnapshot() {
+        previousX = new float[0];
+        previousY = new float[0];
+        x = new float[0];
+        y = new float[0];
+        color = new float[0];
+        alpha = new float[0];
+    }
+
+    // copying the first n particles, their transparency is the noise value of their noise coordinate
+    void capture(ParticleStore particles, int n, NoiseSource noise, long tick, long tickNanos) {
+        if (x.length < n) {
+            int capacity = Math.max(n, x.length * 2);
+            previousX = Arrays.copyOf(previousX, capacity);
+            previousY = Arrays.copyOf(previousY, capacity);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            color = Arrays.copyOf(color, capacity);
+            alpha = Arrays.copyOf(alpha, capacity);
+        }
+        for (int i = 0; i < n; i++) {
+            previousX[i] = particles.getPreviousX(i);
+            previousY[i] = particles.getPreviousY(i);
+            x[i] = particles.getX(i);
+            y[i] = particles.getY(i);
+            color[i] = particles.getColor(i);
+            alpha[i] = noise.noise(particles.getTransparency(i));
+        }
+        size = n;
+        this.tick = tick;
+        this.tickNanos = tickNanos;
+        time = System.nanoTime();
+    }
+
+    /*
+    * Fraction of the tick elapsed at time now (System.nanoTime()), between 0
+    * and 1: rendering previous + (current - previous) * fraction lags one
+    * tick behind the simulation but moves smoothly at any frame rate
+    */
+    public float interpolation(long now) {
+        float t = (float) (now - time) / tickNanos;
+        return Math.max(0, Math.min(1, t));
+    }
+
+    // location of particle i at fraction t of the tick
+    public float getX(int i, float t) {
+        return previousX[i] + (x[i] - previousX[i]) * t;
+    }
+
+    public float getY(int i, float t) {
+        return previousY[i] + (y[i] - previousY[i]) * t;
+    }
+
+    public float getColor(int i) {
+        return color[i];
+    }
+
+    public float getAlpha(int i) {
+        return alpha[i];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+}
@@ -0,0 +1,208 @@
+package progettoprogrammazionemusica;
+
+/*
+* SpeakerLayout maps the location of a particle, x and y normalized between
+* 0 and 1 as on the screen, onto the gains of the output channels, one per
+* speaker. Speakers are placed in the same normalized plane.
+*
+* - stereo: the equal power pan law of the sketch, only x counts;
+* - ring: speakers on a circle around the centre of the screen, each
+*   particle sounds from the pair of speakers around its direction (2D
+*   vector base amplitude panning). Only two gains are not zero;
+* - distance based: speakers anywhere, e.g. a grid on the ceiling, each
+*   speaker is louder the closer the particle is (distance based amplitude
+*   panning). All the gains are usually not zero.
+*
+* Gains always have a total power of 1, so a particle is as loud wherever
+* it is. Layouts are immutable.
+*/
+public abstract class SpeakerLayout {
+
+    private final String name;
+    private final float[] x; // location of each speaker
+    private final float[] y;
+
+    private SpeakerLayout(String name, float[] x, float[] y) {
+        if (x.length == 0 || x.length != y.length) {
+            throw new IllegalArgumentException("a speaker layout needs one location per speaker");
+        }
+        this.name = name;
+        this.x = x.clone();
+        this.y = y.clone();
+    }
+
+    public static SpeakerLayout stereo() {
+        return new Stereo();
+    }
+
+    /*
+    * speakers (at least 3) equally spaced on the circle inscribed in the
+    * screen, clockwise from the one at the top centre
+    */
+    public static SpeakerLayout ring(int speakers) {
+        if (speakers < 3) {
+            throw new IllegalArgumentException("a ring needs at least 3 speakers");
+        }
+        return new Ring(speakers);
+    }
+
+    // columns x rows speakers equally spaced over the screen, row by row from the top left
+    public static SpeakerLayout grid(int columns, int rows) {
+        if (columns < 1 || rows < 1) {
+            throw new IllegalArgumentException("a grid needs at least one column and one row");
+        }
+        float[] x = new float[columns * rows];
+        float[] y = new float[columns * rows];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns; c++) {
+                x[r * columns + c] = (c + 0.5f) / columns;
+                y[r * columns + c] = (r + 0.5f) / rows;
+            }
+        }
+        return new DistanceBased(columns + "x" + rows + " grid", x, y);
+    }
+
+    // speakers at the given locations, channel k is the speaker at (x[k], y[k])
+    public static SpeakerLayout distanceBased(float[] x, float[] y) {
+        return new DistanceBased(x.length + " speakers", x, y);
+    }
+
+    // "stereo", "ring 8" or "grid 4x2", as written by the user
+    public static SpeakerLayout fromName(String name) {
+        String[] words = name.trim().toLowerCase().split("\\s+");
+        switch (words[0]) {
+            case "stereo":
+                return stereo();
+            case "ring":
+                if (words.length == 2) {
+                    return ring(Integer.parseInt(words[1]));
+                }
+                break;
+            case "grid":
+                String[] size = words.length == 2 ? words[1].split("x") : new String[0];
+                if (size.length == 2) {
+                    return grid(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+                }
+                break;
+            default:
+                break;
+        }
+        throw new IllegalArgumentException("unknown speaker layout: " + name);
+    }
+
+    public int getChannels() {
+        return x.length;
+    }
+
+    public float getX(int speaker) {
+        return x[speaker];
+    }
+
+    public float getY(int speaker) {
+        return y[speaker];
+    }
+
+    /*
+    * gains of all the channels for a particle at (px, py), written in
+    * gains from offset on
+    */
+    public abstract void gains(float px, float py, float[] gains, int offset);
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static final class Stereo extends SpeakerLayout {
+
+        Stereo() {
+            super("stereo", new float[] {0, 1}, new float[] {0.5f, 0.5f});
+        }
+
+        @Override
+        public void gains(float px, float py, float[] gains, int offset) {
+            double angle = Math.max(0, Math.min(1, px)) * Math.PI * 0.5;
+            gains[offset] = (float) Math.cos(angle);
+            gains[offset + 1] = (float) Math.sin(angle);
+        }
+
+    }
+
+    private static final class Ring extends SpeakerLayout {
+
+        private final double spacing; // angle between two speakers
+
+        Ring(int speakers) {
+            super(speakers + " speakers ring", ringX(speakers), ringY(speakers));
+            spacing = 2 * Math.PI / speakers;
+        }
+
+        private static float[] ringX(int speakers) {
+            float[] x = new float[speakers];
+            for (int k = 0; k < speakers; k++) {
+                x[k] = (float) (0.5 + 0.5 * Math.sin(2 * Math.PI * k / speakers));
+            }
+            return x;
+        }
+
+        private static float[] ringY(int speakers) {
+            float[] y = new float[speakers];
+            for (int k = 0; k < speakers; k++) {
+                y[k] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * k / speakers));
+            }
+            return y;
+        }
+
+        @Override
+        public void gains(float px, float py, float[] gains, int offset) {
+            int n = getChannels();
+            for (int k = 0; k < n; k++) {
+                gains[offset + k] = 0;
+            }
+            // direction of the particle, clockwise from the top as the speakers
+            double angle = Math.atan2(px - 0.5, 0.5 - py);
+            if (angle < 0) {
+                angle += 2 * Math.PI;
+            }
+            int k = Math.min(n - 1, (int) (angle / spacing));
+            double within = angle - k * spacing; // angle past speaker k
+            // the gains of the pair that sum to the direction, normalized to a power of 1
+            double g1 = Math.sin(spacing - within);
+            double g2 = Math.sin(within);
+            double norm = 1 / Math.sqrt(g1 * g1 + g2 * g2);
+            gains[offset + k] = (float) (g1 * norm);
+            gains[offset + (k + 1) % n] = (float) (g2 * norm);
+        }
+
+    }
+
+    private static final class DistanceBased extends SpeakerLayout {
+
+        // keeps the gain of a speaker finite when a particle is right on it
+        private static final double BLUR = 0.1;
+
+        DistanceBased(String name, float[] x, float[] y) {
+            super(name, x, y);
+        }
+
+        @Override
+        public void gains(float px, float py, float[] gains, int offset) {
+            int n = getChannels();
+            double power = 0;
+            for (int k = 0; k < n; k++) {
+                double dx = px - getX(k);
+                double dy = py - getY(k);
+                // 6 dB less each time the distance doubles
+                double g = 1 / Math.sqrt(dx * dx + dy * dy + BLUR * BLUR);
+                gains[offset + k] = (float) g;
+                power += g * g;
+            }
+            float norm = (float) (1 / Math.sqrt(power));
+            for (int k = 0; k < n; k++) {
+                gains[offset + k] *= norm;
+            }
+        }
+
+    }
+
+}
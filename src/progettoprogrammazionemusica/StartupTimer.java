@@ -0,0 +1,89 @@
+package progettoprogrammazionemusica;
+import java.lang.management.ManagementFactory;
+
+/*
+* StartupTimer records when the sketch reaches each milestone of its start,
+* in milliseconds since the JVM started, so that cold starts (e.g. of an
+* installation after a power cycle) can be measured and compared. The JVM
+* start is moved onto the System.nanoTime clock once, when the timer is
+* created, so that milestones are as precise as nanoTime.
+*
+* Only the first time a milestone is reached counts. When all the
+* milestones have been reached the report is printed once.
+*/
+public class StartupTimer {
+
+    // milestones of the start of ProcessingGraphics
+    public static final int SKETCH = 0; // the sketch is constructed
+    public static final int SETUP = 1; // setup() called, Processing opened the surface
+    public static final int FIRST_FRAME = 2; // first frame with the particles drawn
+    public static final int AUDIO = 3; // the audio device is open and the synthesizer runs
+    public static final int FIRST_SOUND = 4; // first block with a voice sounding, rendered
+    private static final String[] MILESTONES = {"sketch", "setup", "first frame", "audio device", "first sound"};
+
+    private final long jvmStart; // start of the JVM on the nanoTime clock
+    private final long[] reachedAt; // nanoTime of each milestone, 0 if not reached yet
+    private boolean reported;
+
+    public StartupTimer() {
+        long now = System.nanoTime();
+        jvmStart = now - ManagementFactory.getRuntimeMXBean().getUptime() * 1_000_000L;
+        reachedAt = new long[MILESTONES.length];
+    }
+
+    public void mark(int milestone) {
+        mark(milestone, System.nanoTime());
+    }
+
+    // milestone reached at nanos (System.nanoTime), e.g. measured on another thread
+    public synchronized void mark(int milestone, long nanos) {
+        if (reachedAt[milestone] != 0) {
+            return;
+        }
+        reachedAt[milestone] = nanos;
+        if (!reported && isComplete()) {
+            reported = true;
+            System.out.println("Startup: " + this);
+        }
+    }
+
+    public synchronized boolean isReached(int milestone) {
+        return reachedAt[milestone] != 0;
+    }
+
+    // milliseconds since the JVM started, -1 if not reached yet
+    public synchronized double getMillis(int milestone) {
+        return reachedAt[milestone] == 0 ? -1 : (reachedAt[milestone] - jvmStart) / 1e6;
+    }
+
+    private boolean isComplete() {
+        for (long nanos : reachedAt) {
+            if (nanos == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static String getMilestoneName(int milestone) {
+        return MILESTONES[milestone];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int milestone = 0; milestone < MILESTONES.length; milestone++) {
+            if (milestone > 0) {
+                text.append(", ");
+            }
+            text.append(MILESTONES[milestone]).append(' ');
+            if (reachedAt[milestone] == 0) {
+                text.append('-');
+            } else {
+                text.append(String.format("%.0f ms", (reachedAt[milestone] - jvmStart) / 1e6));
+            }
+        }
+        return text.toString();
+    }
+
+}
@@ -0,0 +1,97 @@
+package progettoprogrammazionemusica;
+import java.util.Arrays;
+
+/*
+* TimeHistogram counts durations in nanoseconds in buckets whose width grows
+* with the value, like an HDR histogram: each power of two is split into 32
+* buckets, so any recorded value is known within about 3% from 1 ns up to
+* more than half an hour.
+*
+* Recording only increments a counter in a preallocated array, it does not
+* allocate and costs a few nanoseconds. It is not thread safe: one thread
+* records, reading must be done by the same thread or after it stopped.
+*/
+public class TimeHistogram {
+
+    private static final int SUB_BITS = 5; // 2^SUB_BITS buckets per power of two
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_SHIFT = 35; // values are clipped below 2^(MAX_SHIFT + SUB_BITS + 1)
+    private static final long MAX_VALUE = (1L << (MAX_SHIFT + SUB_BITS + 1)) - 1;
+
+    private final long[] counts;
+    private long total; // number of recorded values
+    private long sum; // sum of the recorded values
+    private long max; // largest recorded value
+
+    public TimeHistogram() {
+        counts = new long[(MAX_SHIFT + 2) * SUB_BUCKETS];
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(MAX_VALUE, nanos));
+        counts[bucketOf(value)]++;
+        total++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /*
+    * The first 2 * SUB_BUCKETS values have a bucket each, above them the
+    * bucket is given by the SUB_BITS + 1 most significant bits of the value
+    */
+    private static int bucketOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    // middle of the range of values counted by bucket b
+    private static long valueOf(int b) {
+        if (b < 2 * SUB_BUCKETS) {
+            return b;
+        }
+        int shift = b / SUB_BUCKETS - 1;
+        long lowest = (long) (b % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) / 2;
+    }
+
+    // value below which the fraction p (between 0 and 1) of the recorded values lies, 0 if empty
+    public long percentile(double p) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int b = 0; b < counts.length; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                return Math.min(valueOf(b), max);
+            }
+        }
+        return max;
+    }
+
+    public double mean() {
+        return total == 0 ? 0 : (double) sum / total;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getCount() {
+        return total;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        sum = 0;
+        max = 0;
+    }
+
+}
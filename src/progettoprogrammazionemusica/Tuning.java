@@ -0,0 +1,112 @@
+package progettoprogrammazionemusica;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/*
+* Tuning maps the color of a particle onto the frequency of its voice. Each
+* shade has a scale: the hue range of the shade is split in as many parts as
+* the degrees of the scale, the part the color falls into is the degree, the
+* root of ParticleSystemAudio (a midi pitch) is the note the scale starts
+* from and the voice plays one of the first HARMONICS harmonics of the note.
+*
+* All the frequencies, for every shade, root, degree and harmonic, are
+* computed when the tuning is built, so changing the pitch of a voice is a
+* multiplication and a table lookup and allocates nothing. Tunings are
+* immutable: a different one is built with withScale or withReference and
+* can be handed to the audio thread as it is.
+*/
+public final class Tuning {
+
+    public static final int HARMONICS = 10; // harmonics a voice can play, the first one is the note
+    private static final int ROOTS = 128; // roots are midi pitches
+
+    // the scales of the sketch: diatonic for red, whole tone for green, pentatonic for blue
+    public static final Tuning STANDARD = new Tuning(440, defaultScales());
+
+    private final double reference; // frequency of midi pitch 69 (A4)
+    private final EnumMap<Shade, Scale> scales;
+    private final int[] sizes; // by shade, degrees of the scale
+    private final double[] degreesPerHue; // by shade, degrees per unit of color
+    private final double[][] frequencies; // by shade, [root][degree][harmonic] flattened
+
+    private Tuning(double reference, EnumMap<Shade, Scale> scales) {
+        this.reference = reference;
+        this.scales = scales;
+        Shade[] shades = Shade.values();
+        sizes = new int[shades.length];
+        degreesPerHue = new double[shades.length];
+        frequencies = new double[shades.length][];
+        for (Shade shade : shades) {
+            Scale scale = scales.get(shade);
+            int size = scale.size();
+            sizes[shade.ordinal()] = size;
+            // just below size, so that the last color of the range is still on the last degree
+            degreesPerHue[shade.ordinal()] = (size - 0.01) / (shade.getMaxHue() - shade.getMinHue());
+            double[] table = new double[ROOTS * size * HARMONICS];
+            for (int root = 0; root < ROOTS; root++) {
+                for (int d = 0; d < size; d++) {
+                    double cents = (root - 69) * 100 + scale.getCents(d);
+                    double note = reference * Math.pow(2, cents / 1200);
+                    for (int h = 0; h < HARMONICS; h++) {
+                        table[(root * size + d) * HARMONICS + h] = note * (h + 1);
+                    }
+                }
+            }
+            frequencies[shade.ordinal()] = table;
+        }
+    }
+
+    private static EnumMap<Shade, Scale> defaultScales() {
+        EnumMap<Shade, Scale> scales = new EnumMap<>(Shade.class);
+        scales.put(Shade.RED, Scale.DIATONIC);
+        scales.put(Shade.GREEN, Scale.WHOLE_TONE);
+        scales.put(Shade.BLUE, Scale.PENTATONIC);
+        return scales;
+    }
+
+    // the same tuning with shade mapped onto scale
+    public Tuning withScale(Shade shade, Scale scale) {
+        EnumMap<Shade, Scale> changed = new EnumMap<>(scales);
+        changed.put(shade, scale);
+        return new Tuning(reference, changed);
+    }
+
+    // the same scales with A4 at the given frequency
+    public Tuning withReference(double frequency) {
+        return new Tuning(frequency, new EnumMap<>(scales));
+    }
+
+    // degree of the scale of shade that color (between 0 and 360) is mapped onto
+    public int degree(Shade shade, float color) {
+        int s = shade.ordinal();
+        int d = (int) ((color - shade.getMinHue()) * degreesPerHue[s]);
+        return Math.max(0, Math.min(sizes[s] - 1, d));
+    }
+
+    // frequency of the note that color is mapped onto, scaleRoot is a midi pitch
+    public double frequency(Shade shade, float color, int scaleRoot) {
+        return frequency(shade, color, scaleRoot, 0);
+    }
+
+    // frequency of harmonic (0 is the note itself) of the note that color is mapped onto
+    public double frequency(Shade shade, float color, int scaleRoot, int harmonic) {
+        int size = sizes[shade.ordinal()];
+        int root = Math.max(0, Math.min(ROOTS - 1, scaleRoot));
+        return frequencies[shade.ordinal()][(root * size + degree(shade, color)) * HARMONICS + harmonic];
+    }
+
+    public Scale getScale(Shade shade) {
+        return scales.get(shade);
+    }
+
+    public double getReference() {
+        return reference;
+    }
+
+    // scales by shade, they cannot be changed
+    public Map<Shade, Scale> getScales() {
+        return Collections.unmodifiableMap(scales);
+    }
+
+}
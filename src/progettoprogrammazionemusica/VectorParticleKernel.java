@@ -0,0 +1,123 @@
+package progettoprogrammazionemusica;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+* ParticleKernel on the Vector API: particles are processed lanes at a time.
+* The cell of each lane is computed in vector registers and the flow vectors
+* are gathered from the flow field, the speed bound and the edge wrapping
+* are blends under masks instead of branches.
+*
+* Only multiplications, additions, divisions and square roots are used, in
+* the order of the scalar code and without fused multiply-add, so the
+* particles end up exactly where ParticleStore would move them.
+*
+* The JIT turns vector operations into SIMD instructions only when the
+* species is a constant, so the width is chosen once per JVM: the bits
+* (64, 128, 256 or 512) of the system property
+* progettoprogrammazionemusica.vectorBits, or the width preferred by the CPU
+* when it is 0.
+*
+* Load it through ParticleKernel.vector(), it needs the jdk.incubator.vector
+* module both to build and to run.
+*/
+final class VectorParticleKernel implements ParticleKernel {
+
+    static final String BITS_PROPERTY = "progettoprogrammazionemusica.vectorBits";
+    private static final VectorSpecies<Float> SPECIES = selectSpecies(Integer.getInteger(BITS_PROPERTY, 0));
+
+    private final int[] cells; // cell of each lane, the index map of the gathers
+
+    /*
+    * Wider vectors than the CPU registers would be emulated, far slower than
+    * the scalar code, so they are refused
+    */
+    public VectorParticleKernel() {
+        if (SPECIES == null) {
+            throw new IllegalStateException(Integer.getInteger(BITS_PROPERTY) + " bits vectors are not supported");
+        }
+        cells = new int[SPECIES.length()];
+    }
+
+    private static VectorSpecies<Float> selectSpecies(int bits) {
+        if (bits == 0) {
+            return FloatVector.SPECIES_PREFERRED;
+        }
+        try {
+            VectorSpecies<Float> species = VectorSpecies.of(float.class, VectorShape.forBitSize(bits));
+            boolean supported = species.vectorBitSize() == bits && bits <= FloatVector.SPECIES_MAX.vectorBitSize();
+            return supported ? species : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int move(float[] x, float[] y, float[] previousX, float[] previousY,
+                    float[] speedX, float[] speedY, float[] accelerationX, float[] accelerationY,
+                    int n, FlowField flowField, float aspect, float force, float maxspeed) {
+        int cols = flowField.getCols();
+        float[] cos = flowField.getCos();
+        float[] sin = flowField.getSin();
+        float toColumn = (cols - 1) / aspect;
+        float toRow = flowField.getRows() - 1;
+        float maxSquared = maxspeed * maxspeed;
+        FloatVector maxVector = FloatVector.broadcast(SPECIES, maxspeed);
+        FloatVector zero = FloatVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(n);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            FloatVector px = FloatVector.fromArray(SPECIES, x, i);
+            FloatVector py = FloatVector.fromArray(SPECIES, y, i);
+
+            // following the flow vector of the cell
+            IntVector column = (IntVector) px.mul(toColumn).convert(VectorOperators.F2I, 0);
+            IntVector row = (IntVector) py.mul(toRow).convert(VectorOperators.F2I, 0);
+            column.add(row.mul(cols)).intoArray(cells, 0);
+            FloatVector ax = FloatVector.fromArray(SPECIES, accelerationX, i)
+                                        .add(FloatVector.fromArray(SPECIES, cos, 0, cells, 0).mul(force));
+            FloatVector ay = FloatVector.fromArray(SPECIES, accelerationY, i)
+                                        .add(FloatVector.fromArray(SPECIES, sin, 0, cells, 0).mul(force));
+
+            // speed bounded to maxspeed
+            FloatVector sx = FloatVector.fromArray(SPECIES, speedX, i).add(ax);
+            FloatVector sy = FloatVector.fromArray(SPECIES, speedY, i).add(ay);
+            FloatVector magSquared = sx.mul(sx).add(sy.mul(sy));
+            VectorMask<Float> tooFast = magSquared.compare(VectorOperators.GT, maxSquared);
+            FloatVector scale = maxVector.div(magSquared.sqrt());
+            sx = sx.blend(sx.mul(scale), tooFast);
+            sy = sy.blend(sy.mul(scale), tooFast);
+            sx.intoArray(speedX, i);
+            sy.intoArray(speedY, i);
+            zero.intoArray(accelerationX, i);
+            zero.intoArray(accelerationY, i);
+            px = px.add(sx);
+            py = py.add(sy);
+
+            // wrapping at the edges, in the order of edgesCollision
+            VectorMask<Float> right = px.compare(VectorOperators.GT, aspect);
+            px = px.blend(0, right);
+            VectorMask<Float> left = px.compare(VectorOperators.LT, 0);
+            px = px.blend(aspect, left);
+            VectorMask<Float> bottom = py.compare(VectorOperators.GT, 1);
+            py = py.blend(0, bottom);
+            VectorMask<Float> top = py.compare(VectorOperators.LT, 0);
+            py = py.blend(1, top);
+            px.intoArray(x, i);
+            py.intoArray(y, i);
+            VectorMask<Float> wrapped = right.or(left).or(bottom).or(top);
+            FloatVector.fromArray(SPECIES, previousX, i).blend(px, wrapped).intoArray(previousX, i);
+            FloatVector.fromArray(SPECIES, previousY, i).blend(py, wrapped).intoArray(previousY, i);
+        }
+        return bound;
+    }
+
+    @Override
+    public int getLanes() {
+        return SPECIES.length();
+    }
+
+}
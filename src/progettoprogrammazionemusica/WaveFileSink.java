@@ -0,0 +1,112 @@
+package progettoprogrammazionemusica;
+import com.jsyn.ports.UnitInputPort;
+import com.jsyn.unitgen.UnitGenerator;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/*
+* WaveFileSink writes its stereo input to a 16 bit PCM WAV file.
+*
+* Samples are converted into a direct buffer and written to the file channel
+* only when the buffer is full, so the synthesizer does few and large writes.
+* The header is written with empty sizes and patched by close(), when the
+* length of the audio is known.
+*
+* It must be started to pull the audio, like LineOut.
+*/
+public class WaveFileSink extends UnitGenerator {
+
+    private static final int HEADER_SIZE = 44;
+    private static final int CHANNELS = 2;
+    private static final int BYTES_PER_SAMPLE = 2;
+
+    public final UnitInputPort input; // stereo input
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int frameRate;
+    private long dataSize; // bytes of audio written so far
+
+    public WaveFileSink(File file, int frameRate) throws IOException {
+        this(file, frameRate, 1 << 16);
+    }
+
+    public WaveFileSink(File file, int frameRate, int bufferSize) throws IOException {
+        addPort(input = new UnitInputPort(CHANNELS, PORT_NAME_INPUT));
+        this.frameRate = frameRate;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(Math.max(HEADER_SIZE, bufferSize)).order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader(0);
+        channel.position(HEADER_SIZE); // the audio follows the header
+    }
+
+    @Override
+    public void generate(int start, int limit) {
+        double[] left = input.getValues(0);
+        double[] right = input.getValues(1);
+        for (int i = start; i < limit; i++) {
+            if (buffer.remaining() < CHANNELS * BYTES_PER_SAMPLE) {
+                flush();
+            }
+            buffer.putShort(toPcm(left[i]));
+            buffer.putShort(toPcm(right[i]));
+        }
+    }
+
+    // sample between -1 and 1 to 16 bit, clipping what is outside
+    private static short toPcm(double sample) {
+        double clipped = Math.max(-1, Math.min(1, sample));
+        return (short) Math.round(clipped * Short.MAX_VALUE);
+    }
+
+    private void flush() {
+        buffer.flip();
+        dataSize += buffer.remaining();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // generate cannot throw checked exceptions
+        }
+        buffer.clear();
+    }
+
+    // RIFF header of a PCM file with dataSize bytes of audio
+    private void writeHeader(long dataSize) throws IOException {
+        buffer.clear();
+        buffer.put(new byte[] {'R', 'I', 'F', 'F'});
+        buffer.putInt((int) (36 + dataSize));
+        buffer.put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '});
+        buffer.putInt(16); // size of the fmt chunk
+        buffer.putShort((short) 1); // PCM
+        buffer.putShort((short) CHANNELS);
+        buffer.putInt(frameRate);
+        buffer.putInt(frameRate * CHANNELS * BYTES_PER_SAMPLE); // bytes per second
+        buffer.putShort((short) (CHANNELS * BYTES_PER_SAMPLE)); // bytes per frame
+        buffer.putShort((short) (8 * BYTES_PER_SAMPLE));
+        buffer.put(new byte[] {'d', 'a', 't', 'a'});
+        buffer.putInt((int) dataSize);
+        buffer.flip();
+        channel.write(buffer, 0);
+        buffer.clear();
+    }
+
+    // writing the audio left in the buffer, patching the header and closing the file
+    public void close() throws IOException {
+        flush();
+        writeHeader(dataSize);
+        channel.close();
+    }
+
+    // seconds of audio written so far
+    public double getDuration() {
+        return (double) (dataSize + buffer.position()) / (frameRate * CHANNELS * BYTES_PER_SAMPLE);
+    }
+
+}
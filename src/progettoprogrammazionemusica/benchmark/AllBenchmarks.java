@@ -0,0 +1,19 @@
+package progettoprogrammazionemusica.benchmark;
+
+/*
+* Runs every benchmark of the project in sequence, headless and with fixed
+* seeds, so that runs on different machines or commits can be compared.
+* Warmup and measurement seconds can be given as the first two arguments.
+*/
+public class AllBenchmarks {
+
+    public static void main(String[] args) throws InterruptedException {
+        NoiseBenchmark.main(args);
+        FieldBenchmark.main(args);
+        ParticleBenchmark.main(args);
+        ProximityBenchmark.main(args);
+        GlowBenchmark.main(args);
+        AudioBenchmark.main(args);
+    }
+
+}
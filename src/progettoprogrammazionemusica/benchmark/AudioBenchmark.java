@@ -0,0 +1,162 @@
+package progettoprogrammazionemusica.benchmark;
+import com.jsyn.Synthesizer;
+import com.jsyn.ports.UnitInputPort;
+import com.jsyn.JSyn;
+import com.jsyn.ports.UnitOutputPort;
+import com.jsyn.unitgen.UnitGenerator;
+import com.jsyn.unitgen.WhiteNoise;
+import java.util.Random;
+import progettoprogrammazionemusica.Chorus;
+import progettoprogrammazionemusica.FusedChorus;
+import progettoprogrammazionemusica.FusedPingPongDelay;
+import progettoprogrammazionemusica.Mode;
+import progettoprogrammazionemusica.ParticleAudio;
+import progettoprogrammazionemusica.ParticleStore;
+import progettoprogrammazionemusica.ParticleSystemAudio;
+import progettoprogrammazionemusica.PingPongDelay;
+import progettoprogrammazionemusica.Shade;
+import progettoprogrammazionemusica.SpeakerLayout;
+import progettoprogrammazionemusica.Tuning;
+
+/*
+* Cost of the audio hot paths, without sound card: the synthesizer runs in
+* non-realtime mode and is advanced one block at a time.
+*
+* - ParticleAudio.setPitch, one operation is one call;
+* - one block rendered by N voices through the delay and the chorus, with
+*   voices as ParticleAudio circuits or as slots of the additive bank. One
+*   operation is one block, the hand off to the synthesizer thread included;
+* - the same block with the bank on 8 to 32 speakers, in a ring (two gains
+*   per voice) or in a grid (a gain per voice and speaker);
+* - one block of white noise through the delay and the chorus, built from
+*   JSyn units (PingPongDelay and Chorus) or fused (FusedPingPongDelay and
+*   FusedChorus).
+*
+* Particles locations and colors, the voices and the effects come from a
+* fixed seed, so every run renders the same blocks.
+*/
+public class AudioBenchmark {
+
+    private static final int FRAME_RATE = 44100;
+    private static final int SEED = 0;
+
+    public static void main(String[] args) throws InterruptedException {
+        Bench bench = Bench.fromArgs(args);
+
+        ParticleAudio audio = new ParticleAudio(300, Shade.RED, 0.5f, 0.5f, 100, 36, Tuning.STANDARD, Mode.PARTICLE,
+                                                new Random(SEED));
+        Random rand = new Random(SEED);
+        bench.run("ParticleAudio.setPitch", 1, () -> {
+            float color = 216 + rand.nextFloat() * 144;
+            audio.setPitch(color, Shade.RED, 36, Tuning.STANDARD);
+            Bench.sink = color;
+        });
+
+        for (int n : new int[] {20, 100, 400}) {
+            runBlock(bench, n, false, SpeakerLayout.stereo());
+            runBlock(bench, n, true, SpeakerLayout.stereo());
+        }
+        for (SpeakerLayout layout : new SpeakerLayout[] {SpeakerLayout.ring(8), SpeakerLayout.ring(32),
+                                                         SpeakerLayout.grid(4, 2), SpeakerLayout.grid(8, 4)}) {
+            runBlock(bench, 400, true, layout);
+        }
+
+        runEffects(bench, false);
+        runEffects(bench, true);
+    }
+
+    private static void runBlock(Bench bench, int n, boolean additiveBank, SpeakerLayout layout)
+            throws InterruptedException {
+        ParticleStore particles = new ParticleStore(1280f / 720f, n, new Random(SEED));
+        particles.ensureSize(n, Shade.RED);
+        ParticleSystemAudio audioSystem = new ParticleSystemAudio(n, additiveBank, layout, new Random(SEED));
+        Synthesizer synth = audioSystem.getSynthesizer();
+        OutputSink sink = new OutputSink();
+        synth.add(sink);
+        audioSystem.getOutput().connect(0, sink.input, 0);
+        audioSystem.getOutput().connect(1, sink.input, 1);
+        audioSystem.startOfflineAudioSystem(FRAME_RATE);
+        sink.start();
+        audioSystem.setSoundingParticles(particles, n, Shade.RED, Mode.FLOW);
+
+        double blockDuration = (double) Synthesizer.FRAMES_PER_BLOCK / FRAME_RATE;
+        String voices = additiveBank ? "bank" : "circuits";
+        if (layout.getChannels() != 2) {
+            voices += ", " + layout;
+        }
+        bench.run("audio block, " + n + " voices, " + voices, 1, () -> {
+            try {
+                synth.sleepUntil(synth.getCurrentTime() + blockDuration);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Bench.sink = sink.last;
+        });
+        audioSystem.stopAudioSystem();
+    }
+
+    private static void runEffects(Bench bench, boolean fused) throws InterruptedException {
+        Synthesizer synth = JSyn.createSynthesizer();
+        WhiteNoise noise = new WhiteNoise();
+        OutputSink sink = new OutputSink();
+        synth.add(noise);
+        synth.add(sink);
+        UnitInputPort delayInput;
+        UnitOutputPort output;
+        if (fused) {
+            FusedPingPongDelay delay = new FusedPingPongDelay(2, new Random(SEED));
+            FusedChorus chorus = new FusedChorus(2, new Random(SEED));
+            synth.add(delay);
+            synth.add(chorus);
+            delay.output.connect(0, chorus.input, 0);
+            delay.output.connect(1, chorus.input, 1);
+            delayInput = delay.input;
+            output = chorus.output;
+        } else {
+            PingPongDelay delay = new PingPongDelay(new Random(SEED));
+            Chorus chorus = new Chorus(new Random(SEED));
+            synth.add(delay);
+            synth.add(chorus);
+            delay.output.connect(0, chorus.input, 0);
+            delay.output.connect(1, chorus.input, 1);
+            delayInput = delay.input;
+            output = chorus.output;
+        }
+        noise.output.connect(0, delayInput, 0);
+        noise.output.connect(0, delayInput, 1);
+        output.connect(0, sink.input, 0);
+        output.connect(1, sink.input, 1);
+        synth.setRealTime(false);
+        synth.start(FRAME_RATE, -1, 0, -1, 0);
+        sink.start();
+
+        double blockDuration = (double) Synthesizer.FRAMES_PER_BLOCK / FRAME_RATE;
+        bench.run("effects block, " + (fused ? "fused" : "units"), 1, () -> {
+            try {
+                synth.sleepUntil(synth.getCurrentTime() + blockDuration);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Bench.sink = sink.last;
+        });
+        synth.stop();
+    }
+
+    // pulls the output of the effects chain, as LineOut would
+    private static class OutputSink extends UnitGenerator {
+
+        final UnitInputPort input;
+        float last;
+
+        OutputSink() {
+            addPort(input = new UnitInputPort(2, PORT_NAME_INPUT));
+        }
+
+        @Override
+        public void generate(int start, int limit) {
+            last = (float) (input.getValues(0)[limit - 1] + input.getValues(1)[limit - 1]);
+        }
+
+    }
+
+}
@@ -0,0 +1,138 @@
+package progettoprogrammazionemusica.benchmark;
+import com.jsyn.Synthesizer;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+import progettoprogrammazionemusica.AudioHealth;
+import progettoprogrammazionemusica.FlowSimulation;
+import progettoprogrammazionemusica.FrameProfiler;
+import progettoprogrammazionemusica.Mode;
+import progettoprogrammazionemusica.ParticleSystemAudio;
+import progettoprogrammazionemusica.Shade;
+import progettoprogrammazionemusica.SimulationLoop;
+
+/*
+* Headless stress test of the audio engine: how many voices can sound on
+* this machine before the engine misses its deadlines.
+*
+* The sketch is run without window and without sound card: the simulation
+* moves on its own thread and feeds the voices as in the sketch, while the
+* synthesizer renders offline paced by an emulated device. The device holds
+* BUFFER_FRAMES frames and plays them in real time: rendering waits while
+* the device buffer is full, and when rendering falls behind the device
+* runs out of frames. AudioHealth watches the engine as it does on a sound
+* card.
+*
+* The sounding particles are raised step by step, each step lasting
+* STEP_SECONDS. The test stops at the first step with dropouts or with the
+* 99th percentile of the block time above the block period, and prints the
+* last step that met its deadlines. Steps, the device buffer and the voices
+* can be given as arguments: first voices, last voices, buffer frames.
+*/
+public class AudioStressTest {
+
+    private static final int FRAME_RATE = 44100;
+    private static final int BUFFER_FRAMES = 1764; // the default latency of JSyn, 40 ms
+    private static final double STEP_SECONDS = 1.5;
+    private static final int SEED = 0;
+
+    public static void main(String[] args) throws InterruptedException {
+        int firstVoices = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int lastVoices = args.length > 1 ? Integer.parseInt(args[1]) : 12800;
+        int bufferFrames = args.length > 2 ? Integer.parseInt(args[2]) : BUFFER_FRAMES;
+
+        FlowSimulation simulation = new FlowSimulation(64, 36, 1280f / 720f, 36 * 0.1f, 36 * 0.0003f, new Random(SEED));
+        simulation.setNumParticles(firstVoices);
+        ParticleSystemAudio audioSystem = new ParticleSystemAudio(lastVoices, true);
+        SimulationLoop loop = new SimulationLoop(simulation, 30, new FrameProfiler(60));
+        loop.setListener(sim -> audioSystem.updateVoices(sim.getParticles(), sim.getGrid(), sim.getNumParticles(),
+                                                         sim.getShade(), Mode.FLOW));
+        audioSystem.startOfflineAudioSystem(FRAME_RATE);
+        AudioHealth health = audioSystem.getHealth();
+        health.reset(bufferFrames);
+        health.setReportBlocks((int) (STEP_SECONDS * FRAME_RATE / Synthesizer.FRAMES_PER_BLOCK) / 2);
+        loop.start();
+
+        System.out.printf("device buffer %d frames (%.1f ms)%n", bufferFrames, bufferFrames * 1e3 / FRAME_RATE);
+        Synthesizer synth = audioSystem.getSynthesizer();
+        Device device = new Device(bufferFrames);
+        render(synth, device); // warmup, so that the first step is not judged on the interpreter
+        int sustained = 0;
+        for (int voices = firstVoices; voices <= lastVoices; voices *= 2) {
+            int n = voices;
+            loop.submit(() -> simulation.setNumParticles(n));
+            long dropouts = health.getDropouts();
+            long late = health.getLateBlocks();
+            render(synth, device);
+            dropouts = health.getDropouts() - dropouts;
+            late = health.getLateBlocks() - late;
+            System.out.printf("%6d voices (%d sounding): %s, this step late blocks %d, dropouts %d%n",
+                              voices, audioSystem.getActiveVoices(), health, late, dropouts);
+            double blockMicros = Synthesizer.FRAMES_PER_BLOCK * 1e6 / FRAME_RATE;
+            if (dropouts > 0 || health.getBlockP99Micros() > blockMicros) {
+                break;
+            }
+            sustained = voices;
+        }
+        loop.stop();
+        audioSystem.stopAudioSystem();
+        if (sustained == 0) {
+            System.out.println("deadlines missed from the first step");
+        } else {
+            System.out.println("deadlines met up to " + sustained + " voices");
+        }
+    }
+
+    // rendering STEP_SECONDS of sound as fast as the device plays it
+    private static void render(Synthesizer synth, Device device) throws InterruptedException {
+        long end = System.nanoTime() + (long) (STEP_SECONDS * 1e9);
+        while (System.nanoTime() < end) {
+            device.waitForSpace();
+            // offline each call renders the next buffer of the engine on this thread
+            long frames = synth.getFrameCount();
+            synth.sleepUntil(synth.getCurrentTime() + (double) Synthesizer.FRAMES_PER_BLOCK / FRAME_RATE);
+            device.write(synth.getFrameCount() - frames);
+        }
+    }
+
+    /*
+    * Device buffer emulated on the wall clock: written by the renderer and
+    * played at FRAME_RATE. When it runs empty the device plays silence and
+    * the frames played restart from the frames written.
+    */
+    private static class Device {
+
+        private final int bufferFrames;
+        private long written; // frames written since the start
+        private long startNanos; // when the frame 0 would have been played, 0 before the first write
+
+        Device(int bufferFrames) {
+            this.bufferFrames = bufferFrames;
+        }
+
+        private long played(long now) {
+            return startNanos == 0 ? 0 : (long) ((now - startNanos) * FRAME_RATE / 1e9);
+        }
+
+        // waiting as a blocking write on a full buffer would
+        void waitForSpace() {
+            long now = System.nanoTime();
+            long queued = written - played(now);
+            while (queued >= bufferFrames) {
+                LockSupport.parkNanos((long) ((queued - bufferFrames + 1) * 1e9 / FRAME_RATE));
+                now = System.nanoTime();
+                queued = written - played(now);
+            }
+        }
+
+        void write(long frames) {
+            long now = System.nanoTime();
+            if (startNanos == 0 || played(now) > written) {
+                // empty: the device starts again from the frames written
+                startNanos = now - (long) (written * 1e9 / FRAME_RATE);
+            }
+            written += frames;
+        }
+
+    }
+
+}
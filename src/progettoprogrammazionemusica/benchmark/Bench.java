@@ -0,0 +1,54 @@
+package progettoprogrammazionemusica.benchmark;
+
+/*
+* Minimal benchmark harness: each case is run for a warmup time, so that the
+* JIT compiles it, and then measured for a fixed time. The throughput is
+* printed as operations per second and nanoseconds per operation.
+*
+* Results of the measured code must be written to sink, otherwise the JIT
+* could remove the code as dead.
+*/
+public class Bench {
+
+    public static volatile float sink;
+
+    private final long warmupNanos;
+    private final long measureNanos;
+
+    public Bench(double warmupSeconds, double measureSeconds) {
+        warmupNanos = (long) (warmupSeconds * 1e9);
+        measureNanos = (long) (measureSeconds * 1e9);
+    }
+
+    // warmup and measurement seconds can be given as the first two arguments
+    public static Bench fromArgs(String[] args) {
+        double warmup = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+        double measure = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        return new Bench(warmup, measure);
+    }
+
+    /*
+    * Running body repeatedly, each call counts as opsPerCall operations.
+    * Returns the number of operations per second.
+    */
+    public double run(String name, long opsPerCall, Runnable body) {
+        long end = System.nanoTime() + warmupNanos;
+        while (System.nanoTime() < end) {
+            body.run();
+        }
+        long calls = 0;
+        long start = System.nanoTime();
+        long now = start;
+        end = start + measureNanos;
+        while (now < end) {
+            body.run();
+            calls++;
+            now = System.nanoTime();
+        }
+        double seconds = (now - start) / 1e9;
+        double opsPerSecond = calls * opsPerCall / seconds;
+        System.out.printf("%-48s %14.0f ops/s %12.2f ns/op%n", name, opsPerSecond, 1e9 / opsPerSecond);
+        return opsPerSecond;
+    }
+
+}
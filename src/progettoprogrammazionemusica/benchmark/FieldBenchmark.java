@@ -0,0 +1,57 @@
+package progettoprogrammazionemusica.benchmark;
+import java.util.concurrent.ForkJoinPool;
+import progettoprogrammazionemusica.FlowField;
+import progettoprogrammazionemusica.FlowFieldKeyframes;
+import progettoprogrammazionemusica.PerlinNoise;
+
+/*
+* Cost of generating the flow field for one frame with the settings of
+* ProcessingGraphics: a 64 x 36 grid (1280 x 720 with cells of 20 pixels),
+* Perlin noise with a fixed seed. Finer grids show how the cost grows with
+* the number of cells.
+*
+* One operation is one frame.
+*/
+public class FieldBenchmark {
+
+    private static final float ASPECT = 1280f / 720f;
+    private static final float NOISE_SCALE = 36 * 0.1f;
+    private static final float Z_PER_FRAME = 36 * 0.0003f;
+    private static final int SEED = 0;
+
+    private static float zOffset;
+
+    public static void main(String[] args) {
+        Bench bench = Bench.fromArgs(args);
+        PerlinNoise noise = new PerlinNoise(SEED);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+
+        for (int cellSize : new int[] {20, 10, 5}) {
+            int cols = 1280 / cellSize;
+            int rows = 720 / cellSize;
+            String grid = cols + " x " + rows;
+            FlowField field = new FlowField(cols, rows, ASPECT, NOISE_SCALE, Z_PER_FRAME);
+
+            bench.run("field " + grid + ", sequential", 1, () -> {
+                field.update(noise, zOffset);
+                zOffset += Z_PER_FRAME;
+                Bench.sink = field.getAngle(0);
+            });
+
+            bench.run("field " + grid + ", parallel", 1, () -> {
+                field.update(noise, zOffset, pool);
+                zOffset += Z_PER_FRAME;
+                Bench.sink = field.getAngle(0);
+            });
+
+            // the default of the sketch: a full field every 8 frames, interpolated in between
+            FlowFieldKeyframes keyframes = new FlowFieldKeyframes(field, 8, pool);
+            keyframes.reset(noise, zOffset);
+            bench.run("field " + grid + ", keyframes every 8", 1, () -> {
+                keyframes.advance();
+                Bench.sink = field.getAngle(0);
+            });
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package progettoprogrammazionemusica.benchmark;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import processing.awt.PGraphicsJava2D;
+import processing.core.PApplet;
+import progettoprogrammazionemusica.GlowRenderer;
+
+/*
+* Cost of drawing one frame of particle mode on a 1280 x 720 sketch, with
+* the batched GlowRenderer and with the five stroke passes per particle on
+* an offscreen Java2D renderer (the default renderer of the sketch).
+* Particles have locations, hues and transparencies from a fixed seed.
+*
+* One operation is one frame.
+*/
+public class GlowBenchmark {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int SEED = 0;
+    private static final float[] WEIGHTS = {7, 14, 28, 56, 112};
+    private static final float[] ALPHAS = {255, 75, 50, 20, 10};
+
+    public static void main(String[] args) {
+        Bench bench = Bench.fromArgs(args);
+        GlowRenderer renderer = new GlowRenderer(WIDTH, HEIGHT, 4, ForkJoinPool.commonPool());
+        PGraphicsJava2D graphics = new PGraphicsJava2D();
+        graphics.setParent(new PApplet());
+        graphics.setPrimary(false);
+        graphics.setSize(WIDTH, HEIGHT);
+
+        for (int n : new int[] {100, 1000, 10000}) {
+            Random rand = new Random(SEED);
+            float[] x = new float[n];
+            float[] y = new float[n];
+            float[] color = new float[n];
+            float[] alpha = new float[n];
+            for (int i = 0; i < n; i++) {
+                x[i] = rand.nextFloat() * WIDTH;
+                y[i] = rand.nextFloat() * HEIGHT;
+                color[i] = 216 + rand.nextFloat() * 144;
+                alpha[i] = rand.nextFloat();
+            }
+
+            bench.run("glow, " + n + " particles, batched", 1, () -> {
+                renderer.begin(0xFF080808);
+                for (int i = 0; i < n; i++) {
+                    renderer.add(x[i], y[i], color[i], alpha[i]);
+                }
+                Bench.sink = renderer.render().pixels[0];
+            });
+
+            bench.run("glow, " + n + " particles, five strokes", 1, () -> {
+                graphics.beginDraw();
+                graphics.colorMode(PApplet.HSB, 360, 100, 100, 255);
+                graphics.background(0, 0, 3);
+                for (int i = 0; i < n; i++) {
+                    for (int k = 0; k < WEIGHTS.length; k++) {
+                        graphics.stroke(color[i], 100, 100, alpha[i] * ALPHAS[k]);
+                        graphics.strokeWeight(WEIGHTS[k]);
+                        graphics.point(x[i], y[i]);
+                    }
+                }
+                graphics.endDraw();
+                Bench.sink = graphics.strokeWeight;
+            });
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package progettoprogrammazionemusica.benchmark;
+import processing.core.PApplet;
+import progettoprogrammazionemusica.NoiseSource;
+import progettoprogrammazionemusica.PerlinNoise;
+import progettoprogrammazionemusica.SimplexNoise;
+
+/*
+* Throughput of the noise implementations sampling one frame of the flow
+* field with the settings of ProcessingGraphics: a 64 x 36 grid (1280 x 720
+* with cells of 20 pixels), noiseIncrement 0.1 and zIncrement 0.0003.
+* PerlinNoise and SimplexNoise are compared at the same number of octaves,
+* 1 and 4: the sketch uses 4 octaves of perlin and 1 of simplex.
+*
+* One operation is one noise sample.
+*/
+public class NoiseBenchmark {
+
+    private static final int COLS = 64;
+    private static final int ROWS = 36;
+    private static final float NOISE_INCREMENT = 0.1f;
+    private static final float Z_INCREMENT = 0.0003f;
+    private static final int SEED = 0;
+
+    private static float zOffset;
+
+    public static void main(String[] args) {
+        Bench bench = Bench.fromArgs(args);
+        int cells = COLS * ROWS;
+        float[] out = new float[cells];
+
+        PApplet applet = new PApplet();
+        applet.noiseSeed(SEED);
+        bench.run("PApplet.noise", cells, () -> {
+            float sum = 0;
+            for (int y = 0; y < ROWS; y++) {
+                for (int x = 0; x < COLS; x++) {
+                    sum += applet.noise(x * NOISE_INCREMENT, y * NOISE_INCREMENT, zOffset);
+                }
+                zOffset += Z_INCREMENT;
+            }
+            Bench.sink = sum;
+        });
+
+        // the sketch used to call noiseSeed every frame, which rebuilds the table
+        bench.run("PApplet.noise + noiseSeed per frame", cells, () -> {
+            applet.noiseSeed(SEED);
+            float sum = 0;
+            for (int y = 0; y < ROWS; y++) {
+                for (int x = 0; x < COLS; x++) {
+                    sum += applet.noise(x * NOISE_INCREMENT, y * NOISE_INCREMENT, zOffset);
+                }
+                zOffset += Z_INCREMENT;
+            }
+            Bench.sink = sum;
+        });
+
+        runSource(bench, "PerlinNoise 1 octave", new PerlinNoise(SEED, 1, 0.5f), out);
+        runSource(bench, "SimplexNoise 1 octave", new SimplexNoise(SEED, 1, 0.5f), out);
+        runSource(bench, "PerlinNoise 4 octaves", new PerlinNoise(SEED, 4, 0.5f), out);
+        runSource(bench, "SimplexNoise 4 octaves", new SimplexNoise(SEED, 4, 0.5f), out);
+
+        SimplexNoise simplex = new SimplexNoise(SEED, 1, 0.5f);
+        bench.run("SimplexNoise 1 octave, noiseGrid", cells, () -> {
+            simplex.noiseGrid(0, NOISE_INCREMENT, 0, NOISE_INCREMENT, zOffset, Z_INCREMENT, COLS, ROWS, out);
+            zOffset += ROWS * Z_INCREMENT;
+            Bench.sink = out[cells - 1];
+        });
+    }
+
+    // sampling the grid row by row through the NoiseSource interface
+    private static void runSource(Bench bench, String name, NoiseSource noise, float[] out) {
+        bench.run(name + ", noiseRow", COLS * ROWS, () -> {
+            for (int y = 0; y < ROWS; y++) {
+                noise.noiseRow(0, NOISE_INCREMENT, y * NOISE_INCREMENT, zOffset, out, y * COLS, COLS);
+                zOffset += Z_INCREMENT;
+            }
+            Bench.sink = out[COLS * ROWS - 1];
+        });
+    }
+
+}
@@ -0,0 +1,91 @@
+package progettoprogrammazionemusica.benchmark;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import progettoprogrammazionemusica.FlowField;
+import progettoprogrammazionemusica.ParticleKernel;
+import progettoprogrammazionemusica.ParticleStore;
+import progettoprogrammazionemusica.PerlinNoise;
+import progettoprogrammazionemusica.Shade;
+
+/*
+* Cost of one simulation step of the particles (following the flow field,
+* moving and wrapping at the edges) at 100, 1000, 10000 and 100000
+* particles. Particles start in locations drawn from a fixed seed and move
+* in a fixed 64 x 36 field, so every run does the same work.
+*
+* The step is measured with the scalar loops and, when the JVM is started
+* with --add-modules jdk.incubator.vector and the SIMD kernel was built, with
+* the kernel, printing its speedup over the scalar loops. The lane width of the kernel is fixed for
+* the whole JVM, so each width is measured by a new JVM running this
+* benchmark with the width in the progettoprogrammazionemusica.vectorBits
+* property.
+*
+* One operation is the step of one particle.
+*/
+public class ParticleBenchmark {
+
+    private static final float ASPECT = 1280f / 720f;
+    private static final int SEED = 0;
+    private static final String BITS_PROPERTY = "progettoprogrammazionemusica.vectorBits";
+    private static final int[] VECTOR_BITS = {64, 128, 256, 512};
+
+    public static void main(String[] args) throws InterruptedException {
+        if (ParticleKernel.isVectorAvailable() && System.getProperty(BITS_PROPERTY) == null) {
+            for (int bits : VECTOR_BITS) {
+                runWidth(bits, args);
+            }
+            return;
+        }
+        Bench bench = Bench.fromArgs(args);
+        FlowField field = new FlowField(64, 36, ASPECT, 36 * 0.1f, 36 * 0.0003f);
+        field.update(new PerlinNoise(SEED), 0);
+        ParticleKernel kernel = ParticleKernel.vector();
+        if (!ParticleKernel.isVectorAvailable()) {
+            System.out.println("Vector API not available, only the scalar step is measured");
+        } else if (kernel == null) {
+            System.out.println(System.getProperty(BITS_PROPERTY) + " bits vectors not supported by this CPU, or the kernel was not built");
+            return;
+        }
+
+        for (int n : new int[] {100, 1000, 10000, 100000}) {
+            double scalar = run(bench, "particle step, scalar, " + n + " particles", field, n, null);
+            if (kernel != null) {
+                double simd = run(bench, "particle step, " + kernel.getLanes() + " lanes, " + n + " particles",
+                                  field, n, kernel);
+                System.out.printf("%-48s %14.2fx%n", "  speedup over scalar", simd / scalar);
+            }
+        }
+    }
+
+    private static double run(Bench bench, String name, FlowField field, int n, ParticleKernel kernel) {
+        ParticleStore particles = new ParticleStore(ASPECT, n, new Random(SEED));
+        particles.ensureSize(n, Shade.RED);
+        particles.setKernel(kernel);
+        return bench.run(name, n, () -> {
+            particles.move(field, n);
+            Bench.sink = particles.getX(n - 1);
+        });
+    }
+
+    // running this benchmark in a new JVM with vectors of the given bits
+    private static void runWidth(int bits, String[] args) throws InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("--add-modules");
+        command.add("jdk.incubator.vector");
+        command.add("-D" + BITS_PROPERTY + "=" + bits);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ParticleBenchmark.class.getName());
+        command.addAll(Arrays.asList(args));
+        try {
+            new ProcessBuilder(command).inheritIO().start().waitFor();
+        } catch (IOException e) {
+            System.err.println("Cannot start the benchmark with " + bits + " bits vectors: " + e);
+        }
+    }
+
+}
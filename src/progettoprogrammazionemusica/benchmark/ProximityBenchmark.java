@@ -0,0 +1,83 @@
+package progettoprogrammazionemusica.benchmark;
+import java.util.Random;
+import progettoprogrammazionemusica.FlowField;
+import progettoprogrammazionemusica.ParticleGrid;
+import progettoprogrammazionemusica.ParticleStore;
+import progettoprogrammazionemusica.PerlinNoise;
+import progettoprogrammazionemusica.Shade;
+
+/*
+* Cost of finding the proximity events of one step: rebuilding the uniform
+* grid and comparing each particle with the ones in the cells around it,
+* against comparing every pair of particles. The grid is built on the
+* finest flow field of a 1280 x 720 sketch (64 x 36 cells of 20 pixels),
+* as it is or with each cell split in 2 x 2 (the size of the radius). Particles start from a fixed seed and
+* move in a fixed field between two measures. The 2 x 2 grid is also
+* measured with the events limited to the VOICES particles that have a
+* voice in the sketch, as FlowSimulation does.
+*
+* One operation is one particle.
+*/
+public class ProximityBenchmark {
+
+    private static final float ASPECT = 1280f / 720f;
+    private static final float RADIUS = 10f / 720;
+    private static final int SEED = 0;
+    private static final int VOICES = 100; // voice pool of the sketch
+
+    public static void main(String[] args) {
+        Bench bench = Bench.fromArgs(args);
+        FlowField field = new FlowField(64, 36, ASPECT, 36 * 0.1f, 36 * 0.0003f);
+        field.update(new PerlinNoise(SEED), 0);
+
+        for (int n : new int[] {1000, 10000, 50000}) {
+            ParticleStore particles = new ParticleStore(ASPECT, n, new Random(SEED));
+            particles.ensureSize(n, Shade.RED);
+            for (int k = 0; k < 300; k++) {
+                step(particles, field, n);
+            }
+            for (int subdivision : new int[] {1, 2}) {
+                ParticleGrid grid = new ParticleGrid(64, 36, subdivision, ASPECT);
+                bench.run("proximity, " + n + " particles, grid " + grid.getCols() + " x " + grid.getRows(), n, () -> {
+                    grid.rebuild(particles, n);
+                    Bench.sink = grid.updateProximity(RADIUS);
+                });
+            }
+            ParticleGrid grid = new ParticleGrid(64, 36, 2, ASPECT);
+            bench.run("proximity, " + n + " particles, events for " + VOICES, n, () -> {
+                grid.rebuild(particles, n);
+                Bench.sink = grid.updateProximity(RADIUS, VOICES);
+            });
+
+            if (n <= 10000) {
+                bench.run("proximity, " + n + " particles, all pairs", n, () -> {
+                    Bench.sink = countPairs(particles, n);
+                });
+            }
+        }
+    }
+
+    private static void step(ParticleStore particles, FlowField field, int n) {
+        particles.advanceAll(n);
+        particles.followFlowField(field, n);
+        particles.update(n);
+        particles.edgesCollision(n);
+    }
+
+    // the O(n^2) check the grid replaces
+    private static int countPairs(ParticleStore particles, int n) {
+        float radiusSquared = RADIUS * RADIUS;
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                float dx = particles.getX(j) - particles.getX(i);
+                float dy = particles.getY(j) - particles.getY(i);
+                if (dx * dx + dy * dy < radiusSquared) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+}